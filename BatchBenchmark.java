@@ -0,0 +1,100 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compares files per second for many small files sent one /store or /get at a
+ * time, waiting for each reply as the GUI client does, against one /mstore or
+ * /mget for the whole set. Runs against a running server.
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java BatchBenchmark <IP address> <port> [files] [file size KB]");
+            return;
+        }
+        String ipAddress = args[0];
+        int port = Integer.parseInt(args[1]);
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        int size = (args.length > 3 ? Integer.parseInt(args[3]) : 4) * 1024;
+
+        Random random = new Random(42);
+        byte[][] bodies = new byte[files][size];
+        for (byte[] body : bodies) {
+            random.nextBytes(body);
+        }
+
+        try (Socket socket = new Socket(ipAddress, port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 256 * 1024));
+            FileExchangeServer.readLine(in);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                out.write(("/store single-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.writeLong(size);
+                out.write(bodies[i]);
+                out.flush();
+                FileExchangeServer.readLine(in);
+                expect(FileExchangeServer.readLine(in), "File uploaded successfully");
+            }
+            double singleStore = rate(files, start);
+
+            start = System.nanoTime();
+            out.write(("/mstore " + files + "\n").getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < files; i++) {
+                out.write(BatchTransfer.header("batch-" + i, size));
+                out.write(bodies[i]);
+            }
+            out.flush();
+            expect(FileExchangeServer.readLine(in), "BATCH " + files + " 0");
+            double batchStore = rate(files, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < files; i++) {
+                out.write(("/get single-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                expect(FileExchangeServer.readLine(in), "OK " + size);
+                in.skipNBytes(size);
+                FileExchangeServer.readLine(in);
+            }
+            double singleGet = rate(files, start);
+
+            start = System.nanoTime();
+            StringBuilder request = new StringBuilder("/mget " + files + "\n");
+            for (int i = 0; i < files; i++) {
+                request.append("batch-").append(i).append('\n');
+            }
+            out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            expect(FileExchangeServer.readLine(in), "MGET " + files);
+            for (int i = 0; i < files; i++) {
+                in.skipNBytes(in.readUnsignedShort());
+                long length = in.readLong();
+                if (length != size) {
+                    throw new IOException("Record " + i + " has size " + length);
+                }
+                in.skipNBytes(length);
+            }
+            double batchGet = rate(files, start);
+
+            System.out.printf("%d files of %d KB%n", files, size / 1024);
+            System.out.printf("%-8s %14s %14s %8s%n", "", "per file/s", "batch/s", "speedup");
+            System.out.printf("%-8s %14.0f %14.0f %7.1fx%n", "store", singleStore, batchStore, batchStore / singleStore);
+            System.out.printf("%-8s %14.0f %14.0f %7.1fx%n", "get", singleGet, batchGet, batchGet / singleGet);
+        }
+    }
+
+    private static double rate(int files, long start) {
+        return files / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void expect(String line, String prefix) throws IOException {
+        if (line == null || !line.startsWith(prefix)) {
+            throw new IOException("Expected " + prefix + " but got " + line);
+        }
+    }
+}
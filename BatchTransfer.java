@@ -0,0 +1,464 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many small files in one round trip. "/mstore <count>" is followed by count
+ * records and answered with a single report; "/mget <count>" is followed by
+ * count name lines and answered with "MGET <count>" and a record per name.
+ * A record is
+ *
+ *   name length (2 bytes) | UTF-8 name | size (8 bytes) | size bytes
+ *
+ * with size -1 and no bytes in an /mget reply for a name that cannot be read.
+ * The report is "BATCH <stored> <failed>" followed by a "FAILED <reason>
+ * <name>" line per failed record.
+ */
+public class BatchTransfer {
+    static final int MAX_COUNT = 100000;
+    static final int MAX_NAME_LENGTH = 1024;
+    // Records up to this size are buffered and written by the pool; larger ones
+    // are streamed to a temp file by the connection first
+    private static final int INLINE_SIZE = 1024 * 1024;
+    private static final int WRITERS = Math.min(8, Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // Bounded: when the queue is full the connection writes the record itself,
+    // which also stops it reading further records until the pool catches up
+    private static final ExecutorService writers = new ThreadPoolExecutor(WRITERS, WRITERS, 0L,
+            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WRITERS * 4), runnable -> {
+                Thread thread = new Thread(runnable, "batch-writer");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    static {
+        Metrics.registerPool("batch-writers", writers);
+    }
+
+    private BatchTransfer() {
+    }
+
+    /** Parses the count of "/mstore <count>" or "/mget <count>"; -1 if malformed. */
+    static int parseCount(String message) {
+        String[] parts = message.split(" ");
+        if (parts.length != 2) {
+            return -1;
+        }
+        try {
+            int count = Integer.parseInt(parts[1]);
+            return count >= 0 && count <= MAX_COUNT ? count : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Bytes of a record header: name length, name and size. */
+    static byte[] header(String name, long size) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(2 + encoded.length + Long.BYTES);
+        header.putShort((short) encoded.length).put(encoded).putLong(size);
+        return header.array();
+    }
+
+    /**
+     * Receives the records of one /mstore. The connection feeds each record with
+     * begin, accept and end; the files are written and published on the writer
+     * pool, and report waits for all of them.
+     */
+    static class Store {
+        private final int count;
+        private int received;
+        private final List<Future<?>> writes = new ArrayList<>();
+        private final AtomicInteger stored = new AtomicInteger();
+        private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+        private String name;
+        private long remaining;
+        private boolean rejected;
+        private ByteBuffer buffer;
+        private Path temp;
+        private FileChannel tempChannel;
+        private MessageDigest digest;
+
+        Store(int count) {
+            this.count = count;
+        }
+
+        boolean isComplete() {
+            return received == count;
+        }
+
+        /**
+         * Begins the next record if its whole header is in the buffer; returns false
+         * and consumes nothing otherwise. A header with an impossible length cannot
+         * be skipped, so it throws.
+         */
+        boolean begin(ByteBuffer data) throws IOException {
+            if (data.remaining() < 2) {
+                return false;
+            }
+            int nameLength = data.getShort(data.position()) & 0xffff;
+            if (nameLength > MAX_NAME_LENGTH) {
+                throw new IOException("Batch record name of " + nameLength + " bytes");
+            }
+            if (data.remaining() < 2 + nameLength + Long.BYTES) {
+                return false;
+            }
+            data.position(data.position() + 2);
+            byte[] encoded = new byte[nameLength];
+            data.get(encoded);
+            long size = data.getLong();
+            if (size < 0) {
+                throw new IOException("Batch record has size " + size);
+            }
+            begin(new String(encoded, StandardCharsets.UTF_8), size);
+            return true;
+        }
+
+        /** Reads one record header from a blocking stream and begins it. */
+        void begin(DataInputStream in) throws IOException {
+            int nameLength = in.readUnsignedShort();
+            if (nameLength > MAX_NAME_LENGTH) {
+                throw new IOException("Batch record name of " + nameLength + " bytes");
+            }
+            byte[] encoded = new byte[nameLength];
+            in.readFully(encoded);
+            long size = in.readLong();
+            if (size < 0) {
+                throw new IOException("Batch record has size " + size);
+            }
+            begin(new String(encoded, StandardCharsets.UTF_8), size);
+        }
+
+        private void begin(String name, long size) {
+            this.name = name;
+            this.remaining = size;
+            this.rejected = !FileExchangeServer.isValidName(name);
+            if (rejected) {
+                failures.add("FAILED invalid-name " + name);
+                return;
+            }
+            digest = BlobStore.newDigest();
+            try {
+                if (size <= INLINE_SIZE) {
+                    buffer = ByteBuffer.allocate((int) size);
+                } else {
+                    temp = BlobStore.newTempFile();
+                    tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                }
+            } catch (IOException e) {
+                fail("io-error");
+            }
+        }
+
+        long remaining() {
+            return remaining;
+        }
+
+        /** Consumes up to remaining() bytes of the current record's body. */
+        void accept(ByteBuffer data) {
+            int count = data.remaining();
+            remaining -= count;
+            if (rejected) {
+                data.position(data.limit());
+                return;
+            }
+            digest.update(data.duplicate());
+            try {
+                if (buffer != null) {
+                    buffer.put(data);
+                } else {
+                    while (data.hasRemaining()) {
+                        tempChannel.write(data);
+                    }
+                }
+            } catch (IOException e) {
+                data.position(data.limit());
+                fail("io-error");
+            }
+        }
+
+        /** Hands a fully received record to the writer pool. */
+        void end() {
+            received++;
+            if (rejected) {
+                return;
+            }
+            String fileName = name;
+            byte[] sha256 = digest.digest();
+            ByteBuffer body = buffer;
+            Path written = temp;
+            buffer = null;
+            temp = null;
+            try {
+                if (tempChannel != null) {
+                    tempChannel.close();
+                    tempChannel = null;
+                }
+            } catch (IOException e) {
+                fail("io-error");
+                return;
+            }
+            writes.add(writers.submit(() -> {
+                Path file = written;
+                try {
+                    if (file == null) {
+                        file = BlobStore.newTempFile(body.array());
+                    }
+                    BlobStore.publish(file, fileName, sha256);
+                    file = null;
+                    stored.incrementAndGet();
+                } catch (IOException e) {
+                    failures.add("FAILED io-error " + fileName);
+                } finally {
+                    if (file != null) {
+                        BlobStore.discard(file);
+                    }
+                }
+            }));
+        }
+
+        // Drops the current record's partial body; the rest of it is still consumed
+        private void fail(String reason) {
+            if (!rejected) {
+                rejected = true;
+                failures.add("FAILED " + reason + " " + name);
+            }
+            buffer = null;
+            discardTemp();
+        }
+
+        private void discardTemp() {
+            if (tempChannel != null) {
+                try {
+                    tempChannel.close();
+                } catch (IOException ignored) {
+                    // Deleted next
+                }
+                tempChannel = null;
+            }
+            if (temp != null) {
+                BlobStore.discard(temp);
+                temp = null;
+            }
+        }
+
+        /** Waits for every queued write and returns the report, one line per entry. */
+        String report() {
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException e) {
+                    System.out.println("Error: Batch write failed.");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            StringBuilder report = new StringBuilder();
+            report.append("BATCH ").append(stored.get()).append(' ').append(failures.size()).append('\n');
+            for (String failure : failures) {
+                report.append(failure).append('\n');
+            }
+            return report.toString();
+        }
+
+        /** Releases a partly received record if the connection drops. */
+        void discard() {
+            discardTemp();
+        }
+    }
+
+    /**
+     * Produces the records of an /mget reply a buffer at a time, so any number of
+     * names is sent with bounded memory. Small files are packed together into one
+     * buffer; large ones are sent with transferTo.
+     */
+    static class Get {
+        private static final int SMALL_FILE = 64 * 1024;
+
+        private final List<String> names;
+        private int next;
+        private final ByteBuffer staging = ByteBuffer.allocate(256 * 1024);
+        private long sent;
+
+        private FileChannel source;
+        private long position;
+        private long sourceRemaining;
+        private InputStream inflating;
+
+        Get(List<String> names) {
+            this.names = names;
+            staging.flip();
+        }
+
+        /** Bytes written so far, for session accounting. */
+        long sent() {
+            return sent;
+        }
+
+        /**
+         * Writes as much as the channel accepts, at most limit bytes, and returns
+         * true once every record is written. A blocking channel stops only at the
+         * limit.
+         */
+        boolean writeTo(WritableByteChannel channel, long limit) throws IOException {
+            long end = limit == Long.MAX_VALUE ? Long.MAX_VALUE : sent + limit;
+            while (true) {
+                if (staging.hasRemaining()) {
+                    if (sent >= end) {
+                        return false;
+                    }
+                    int stagingLimit = staging.limit();
+                    staging.limit((int) Math.min(stagingLimit, staging.position() + (end - sent)));
+                    sent += channel.write(staging);
+                    staging.limit(stagingLimit);
+                    if (staging.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (source != null) {
+                    while (sourceRemaining > 0) {
+                        if (sent >= end) {
+                            return false;
+                        }
+                        long transferred = TlsChannel.transfer(source, position,
+                                Math.min(sourceRemaining, end - sent), channel);
+                        if (transferred == 0) {
+                            if (position >= source.size()) {
+                                throw new EOFException("File truncated during transfer");
+                            }
+                            return false;
+                        }
+                        position += transferred;
+                        sourceRemaining -= transferred;
+                        sent += transferred;
+                    }
+                    source.close();
+                    source = null;
+                }
+                if (inflating != null) {
+                    fillFromInflater();
+                    continue;
+                }
+                if (next == names.size()) {
+                    return true;
+                }
+                fill();
+            }
+        }
+
+        // Packs headers and small bodies into the staging buffer until it is full
+        // or the next body has to be streamed
+        private void fill() throws IOException {
+            staging.clear();
+            while (next < names.size()) {
+                String name = names.get(next);
+                byte[] missing = header(name, -1);
+                if (staging.remaining() < missing.length + SMALL_FILE) {
+                    break;
+                }
+                next++;
+
+                Path file = Paths.get(FileExchangeServer.STORAGE_DIR, name);
+                ColdStore.Location cold = FileExchangeServer.isValidName(name) && !Files.isRegularFile(file)
+                        ? ColdStore.location(name)
+                        : null;
+                if (cold != null) {
+                    // Streamed out of its segment; a batch read does not make the file hot
+                    try {
+                        inflating = ColdStore.open(name);
+                    } catch (IOException e) {
+                        staging.put(missing);
+                        continue;
+                    }
+                    staging.put(header(name, cold.size));
+                    sourceRemaining = cold.size;
+                    break;
+                }
+                long size;
+                try {
+                    if (!FileExchangeServer.isValidName(name) || !Files.isRegularFile(file)) {
+                        staging.put(missing);
+                        continue;
+                    }
+                    size = BlobStore.contentSize(name);
+                } catch (IOException e) {
+                    staging.put(missing);
+                    continue;
+                }
+
+                if (BlobStore.isCompressed(name)) {
+                    InputStream stored = new BufferedInputStream(Files.newInputStream(file));
+                    stored.skipNBytes(BlobStore.COMPRESSED_HEADER);
+                    staging.put(header(name, size));
+                    inflating = Compression.decompress(stored);
+                    sourceRemaining = size;
+                    break;
+                }
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                staging.put(header(name, size));
+                if (size <= SMALL_FILE) {
+                    try (channel) {
+                        int end = staging.position() + (int) size;
+                        while (staging.position() < end) {
+                            if (channel.read(staging) == -1) {
+                                throw new EOFException("File truncated during transfer");
+                            }
+                        }
+                    }
+                } else {
+                    source = channel;
+                    position = 0;
+                    sourceRemaining = size;
+                    break;
+                }
+            }
+            staging.flip();
+        }
+
+        private void fillFromInflater() throws IOException {
+            staging.clear();
+            int count = (int) Math.min(staging.capacity(), sourceRemaining);
+            int read = inflating.readNBytes(staging.array(), 0, count);
+            if (read < count) {
+                throw new EOFException("Compressed blob is shorter than its header");
+            }
+            staging.position(count);
+            sourceRemaining -= count;
+            if (sourceRemaining == 0) {
+                inflating.close();
+                inflating = null;
+            }
+            staging.flip();
+        }
+
+        void close() {
+            try {
+                if (source != null) {
+                    source.close();
+                }
+                if (inflating != null) {
+                    inflating.close();
+                }
+            } catch (IOException ignored) {
+                // Read-only; nothing to flush
+            }
+        }
+    }
+}
@@ -0,0 +1,553 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content-addressed storage under server_files. Every distinct file body is
+ * stored once as .blobs/<aa>/<sha256>, and each user-visible name in
+ * server_files is a hard link to its blob, so /get, byte ranges and /dir keep
+ * working on plain files while identical uploads share one copy on disk.
+ * The name-to-digest index is kept in memory and in an append-only .index log.
+ *
+ * With at-rest compression enabled, a compressible blob is stored instead as
+ * <sha256>.deflate: its original size as an 8-byte header followed by a raw
+ * Deflate stream. Readers go through contentSize() and isCompressed() rather
+ * than the file size, and /get inflates such files transparently.
+ *
+ * Writers of the same name are serialised by a per-name lock, and a name only
+ * changes by an atomic link or rename, so readers never see a partial file. A
+ * per-digest lock keeps a blob from being collected while a name is linked to it.
+ * Bodies, directory entries and index records are forced to disk as the
+ * Durability policy asks before publish() returns. On startup init() removes
+ * what a crash can leave behind: temp files, and blobs no name links to.
+ *
+ * These are the hot files. ColdStore packs files nobody has fetched for a
+ * while into segments, after which demote() drops the name here; restore()
+ * brings one back when it is fetched again.
+ */
+public class BlobStore {
+    static final String BLOB_DIR = ".blobs";
+    static final String COMPRESSED_SUFFIX = ".deflate";
+    static final int COMPRESSED_HEADER = 8;
+    private static final String INDEX_FILE = ".index";
+
+    private static final Path storageRoot = Paths.get(FileExchangeServer.STORAGE_DIR);
+    private static final Path blobRoot = storageRoot.resolve(BLOB_DIR);
+    private static final Path tempDir = blobRoot.resolve("tmp");
+    private static final Path indexPath = storageRoot.resolve(INDEX_FILE);
+
+    private static final Map<String, String> index = new ConcurrentHashMap<>();
+    // Writers of one name, and publishers and collectors of one blob, take turns
+    private static final Map<String, KeyLock> nameLocks = new ConcurrentHashMap<>();
+    private static final Map<String, KeyLock> blobLocks = new ConcurrentHashMap<>();
+    private static final ReentrantLock indexLock = new ReentrantLock();
+    // Open for appends for the life of the server; written under indexLock
+    private static Writer indexLog;
+    // Temp and staging names come from a counter: UUIDs and createTempFile draw on SecureRandom
+    private static final AtomicLong nextTemp = new AtomicLong(System.currentTimeMillis() * 1000);
+    private static String restCodec;
+
+    /** Lock for one name or digest, dropped from its map once nobody holds or waits for it. */
+    private static class KeyLock {
+        final ReentrantLock lock = new ReentrantLock();
+        int holders;
+    }
+
+    private BlobStore() {
+    }
+
+    /**
+     * Loads the index log and rewrites it without superseded entries. Names whose
+     * file has since been removed from server_files are dropped, as are orphans
+     * of uploads a crash interrupted.
+     */
+    static void init() throws IOException {
+        Files.createDirectories(tempDir);
+        int orphans = removeTempFiles();
+        if (Files.exists(indexPath)) {
+            for (String line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+                int space = line.indexOf(' ');
+                // A torn last record from a crash mid-append has no valid digest
+                if (space == 64 && line.substring(0, space).matches("[0-9a-f]{64}")) {
+                    index.put(line.substring(space + 1), line.substring(0, space));
+                }
+            }
+        }
+        index.keySet().removeIf(name -> !Files.isRegularFile(storageRoot.resolve(name)));
+        orphans += removeUnlinkedBlobs();
+        orphans += ChunkedUpload.removeOrphans();
+        if (orphans > 0) {
+            System.out.println("Recovery removed " + orphans + " orphaned files.");
+        }
+
+        Path compacted = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : index.entrySet()) {
+                writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+            }
+        }
+        Files.move(compacted, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Durability.sync(compacted.getParent(), indexPath);
+        indexLog = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /** Nothing is in flight at startup, so everything in the temp directory is left from a crash. */
+    private static int removeTempFiles() throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(tempDir)) {
+            for (Path entry : entries) {
+                if (Files.deleteIfExists(entry)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Deletes blobs that were moved into place but never linked to a name before
+     * a crash. As in collect(), a blob is kept if link counts are unavailable.
+     */
+    private static int removeUnlinkedBlobs() throws IOException {
+        Set<String> referenced = new HashSet<>(index.values());
+        int removed = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobRoot, Files::isDirectory)) {
+            for (Path prefix : prefixes) {
+                if (prefix.equals(tempDir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : blobs) {
+                        String digest = blob.getFileName().toString();
+                        if (digest.endsWith(COMPRESSED_SUFFIX)) {
+                            digest = digest.substring(0, digest.length() - COMPRESSED_SUFFIX.length());
+                        }
+                        if (!referenced.contains(digest) && linkCount(blob) == 1 && Files.deleteIfExists(blob)) {
+                            removed++;
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /** Compresses new blobs with codec when it pays off; null stores them as-is. Call before serving. */
+    static void configureCompression(String codec) {
+        restCodec = codec;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A fresh temporary file on the same file system as the blobs, for an upload body. */
+    static Path newTempFile() throws IOException {
+        while (true) {
+            try {
+                return Files.createFile(tempDir.resolve("upload-" + nextTemp.incrementAndGet() + ".tmp"));
+            } catch (FileAlreadyExistsException e) {
+                // Left over from an earlier run; take the next name
+            }
+        }
+    }
+
+    /** A temp file holding content, for bodies small enough to arrive in one buffer. */
+    static Path newTempFile(byte[] content) throws IOException {
+        while (true) {
+            Path temp = tempDir.resolve("upload-" + nextTemp.incrementAndGet() + ".tmp");
+            try {
+                Files.write(temp, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                return temp;
+            } catch (FileAlreadyExistsException e) {
+                // Left over from an earlier run; take the next name
+            }
+        }
+    }
+
+    static void discard(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.out.println("Error: Failed to delete temporary file " + temp);
+        }
+    }
+
+    static int nameCount() {
+        return index.size();
+    }
+
+    /** Digest of the blob the name currently points to, or null if it was not stored here. */
+    static String digestOf(String fileName) {
+        return index.get(fileName);
+    }
+
+    /**
+     * Publishes a fully written temp file under fileName. The body is moved into
+     * the blob store unless an identical blob already exists, in which case the
+     * temp file is simply dropped. sha256 may be null if the caller did not hash
+     * the body while receiving it. Returns the hex digest.
+     */
+    static String publish(Path temp, String fileName, byte[] sha256) throws IOException {
+        return publish(temp, fileName, sha256, false);
+    }
+
+    /**
+     * Publishes the body of a cold file back under its name, unless a newer file
+     * has taken the name meanwhile. Returns false in that case; the temp file is
+     * gone either way.
+     */
+    static boolean restore(Path temp, String fileName, byte[] sha256) throws IOException {
+        return publish(temp, fileName, sha256, true) != null;
+    }
+
+    private static String publish(Path temp, String fileName, byte[] sha256, boolean ifAbsent) throws IOException {
+        long start = System.nanoTime();
+        String digest = HexFormat.of().formatHex(sha256 != null ? sha256 : FileExchangeServer.sha256(temp));
+        // Compress and force a new body before taking the blob's lock
+        Path body = Files.exists(storedPath(digest)) ? null : prepare(temp, digest);
+        String previous = null;
+        boolean taken = false;
+        KeyLock lock = lockKey(blobLocks, digest);
+        try {
+            Path blob = storedPath(digest);
+            if (Files.exists(blob)) {
+                Files.delete(body != null ? body : temp);
+            } else {
+                if (body == null) {
+                    // The blob was collected since it was seen
+                    body = prepare(temp, digest);
+                }
+                blob = body != temp ? compressedPath(digest) : blobPath(digest);
+                Files.move(body, blob, StandardCopyOption.ATOMIC_MOVE);
+            }
+            try {
+                previous = link(blob, digest, fileName, ifAbsent);
+            } catch (FileAlreadyExistsException e) {
+                taken = ifAbsent;
+                if (!taken) {
+                    throw e;
+                }
+            }
+        } finally {
+            unlockKey(blobLocks, digest, lock);
+        }
+        if (taken) {
+            // The blob may have been moved in for nothing
+            collect(digest);
+            return null;
+        }
+        collectReplaced(previous, digest);
+        Metrics.recordPublish(System.nanoTime() - start);
+        return digest;
+    }
+
+    /**
+     * Gets an upload body ready to become a blob: compressed if configured and
+     * worthwhile, and forced to disk before any name can point at it. Returns the
+     * file to move into place.
+     */
+    private static Path prepare(Path temp, String digest) throws IOException {
+        Path parent = blobPath(digest).getParent();
+        if (!Files.isDirectory(parent)) {
+            Files.createDirectories(parent);
+        }
+        Path compressed = restCodec != null ? compress(temp) : null;
+        if (compressed != null) {
+            Files.delete(temp);
+            temp = compressed;
+        }
+        Durability.sync(temp);
+        return temp;
+    }
+
+    /**
+     * Points fileName at an existing blob without any body being sent. Returns
+     * false if no blob with that digest and size is stored.
+     */
+    static boolean linkExisting(String digest, long size, String fileName) throws IOException {
+        if (!digest.matches("[0-9a-f]{64}")) {
+            return false;
+        }
+        String previous;
+        KeyLock lock = lockKey(blobLocks, digest);
+        try {
+            Path blob = storedPath(digest);
+            if (!Files.isRegularFile(blob) || contentSize(blob) != size) {
+                return false;
+            }
+            previous = link(blob, digest, fileName, false);
+        } finally {
+            unlockKey(blobLocks, digest, lock);
+        }
+        collectReplaced(previous, digest);
+        return true;
+    }
+
+    /**
+     * Drops fileName from the hot tier once ColdStore holds its body, provided it
+     * still points to digest. Returns false if it has been replaced meanwhile.
+     * publish runs under the name lock just before the hot copy goes, so a /store
+     * of the name sees either the hot copy or the cold location, never neither.
+     * No index record is written: init() forgets names whose file is gone.
+     */
+    static boolean demote(String fileName, String digest, Runnable publish) throws IOException {
+        KeyLock lock = lockKey(nameLocks, fileName);
+        try {
+            if (!digest.equals(index.get(fileName))) {
+                return false;
+            }
+            publish.run();
+            unlink(fileName);
+        } finally {
+            unlockKey(nameLocks, fileName, lock);
+        }
+        DirectoryIndex.update(fileName);
+        collect(digest);
+        return true;
+    }
+
+    /**
+     * Removes fileName, hot or cold, once cluster sync has handed it to the
+     * members that own it, provided it still holds digest. Returns false if it
+     * has been replaced meanwhile.
+     */
+    static boolean remove(String fileName, String digest) throws IOException {
+        boolean hot;
+        KeyLock lock = lockKey(nameLocks, fileName);
+        try {
+            hot = digest.equals(index.get(fileName));
+            if (hot) {
+                unlink(fileName);
+            } else {
+                ColdStore.Location cold = ColdStore.location(fileName);
+                if (cold == null || !digest.equals(cold.sha256)
+                        || Files.exists(storageRoot.resolve(fileName), LinkOption.NOFOLLOW_LINKS)) {
+                    return false;
+                }
+                ColdStore.remove(fileName);
+            }
+        } finally {
+            unlockKey(nameLocks, fileName, lock);
+        }
+        DirectoryIndex.update(fileName);
+        if (hot) {
+            collect(digest);
+        }
+        return true;
+    }
+
+    /** Deletes the visible file and its index entry; called with the name's lock held. */
+    private static void unlink(String fileName) throws IOException {
+        Files.delete(storageRoot.resolve(fileName));
+        index.remove(fileName);
+        Durability.sync(storageRoot);
+    }
+
+    /** Path of the uncompressed blob with this digest; it does not exist if the blob is stored compressed. */
+    static Path blobPath(String digest) {
+        return blobRoot.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private static Path compressedPath(String digest) {
+        return blobRoot.resolve(digest.substring(0, 2)).resolve(digest + COMPRESSED_SUFFIX);
+    }
+
+    /** The blob file as stored, compressed or not. */
+    private static Path storedPath(String digest) {
+        Path compressed = compressedPath(digest);
+        return Files.exists(compressed) ? compressed : blobPath(digest);
+    }
+
+    /** True if the visible file fileName links to a compressed blob. */
+    static boolean isCompressed(String fileName) {
+        String digest = index.get(fileName);
+        return digest != null && Files.exists(compressedPath(digest));
+    }
+
+    /** Size of the content behind a visible name, which differs from its file size when compressed. */
+    static long contentSize(String fileName) throws IOException {
+        Path file = storageRoot.resolve(fileName);
+        return isCompressed(fileName) ? compressedContentSize(file) : Files.size(file);
+    }
+
+    private static long contentSize(Path blob) throws IOException {
+        return blob.getFileName().toString().endsWith(COMPRESSED_SUFFIX)
+                ? compressedContentSize(blob)
+                : Files.size(blob);
+    }
+
+    private static long compressedContentSize(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Writes a compressed copy of a new blob body, or returns null if the body
+     * looks incompressible or would shrink by less than a tenth.
+     */
+    private static Path compress(Path body) throws IOException {
+        long size = Files.size(body);
+        if (size == 0 || !Compression.isCompressible(body)) {
+            return null;
+        }
+        Path compressed = newTempFile();
+        long compressedSize;
+        try (InputStream in = Files.newInputStream(body);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compressed)))) {
+            out.writeLong(size);
+            compressedSize = Compression.compress(in, size, out, restCodec);
+        } catch (IOException e) {
+            discard(compressed);
+            throw e;
+        }
+        if (compressedSize > size * 0.9) {
+            discard(compressed);
+            return null;
+        }
+        return compressed;
+    }
+
+    /**
+     * Points fileName at the blob and returns the digest it pointed to before.
+     * Called with the blob's lock held, so the blob cannot be collected meanwhile;
+     * the name's lock is taken inside it, never the other way round. With
+     * ifAbsent set it throws FileAlreadyExistsException if the name exists.
+     */
+    private static String link(Path blob, String digest, String fileName, boolean ifAbsent) throws IOException {
+        String previous;
+        KeyLock lock = lockKey(nameLocks, fileName);
+        try {
+            // Replacing a name: stage the link next to the blobs, then rename it over the
+            // visible name so readers see either the old or the new content, never a
+            // missing file. A new name is linked in place in one step.
+            Path target = storageRoot.resolve(fileName);
+            if (ifAbsent && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(fileName);
+            }
+            Path staging = Files.exists(target, LinkOption.NOFOLLOW_LINKS) ? stage(blob) : null;
+
+            // Index first so a directory watcher seeing the new file finds its digest
+            previous = index.put(fileName, digest);
+            try {
+                if (staging == null && !linkInPlace(target, blob)) {
+                    // The name was taken outside the store, or there are no hard links
+                    staging = stage(blob);
+                }
+                if (staging != null) {
+                    Files.move(staging, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                if (previous != null) {
+                    index.put(fileName, previous);
+                } else {
+                    index.remove(fileName);
+                }
+                if (staging != null) {
+                    Files.deleteIfExists(staging);
+                }
+                throw e;
+            }
+            indexLock.lock();
+            try {
+                indexLog.write(digest + " " + fileName + "\n");
+                indexLog.flush();
+            } finally {
+                indexLock.unlock();
+            }
+            // Held until durable, so a later writer of the name is never acknowledged first
+            Durability.sync(blob.getParent(), storageRoot, indexPath);
+            // The hot file supersedes any cold copy
+            ColdStore.remove(fileName);
+        } finally {
+            unlockKey(nameLocks, fileName, lock);
+        }
+        DirectoryIndex.update(fileName);
+        return previous;
+    }
+
+    private static KeyLock lockKey(Map<String, KeyLock> locks, String key) {
+        KeyLock lock = locks.compute(key, (k, current) -> {
+            KeyLock held = current != null ? current : new KeyLock();
+            held.holders++;
+            return held;
+        });
+        lock.lock.lock();
+        return lock;
+    }
+
+    private static void unlockKey(Map<String, KeyLock> locks, String key, KeyLock lock) {
+        lock.lock.unlock();
+        locks.computeIfPresent(key, (k, current) -> --current.holders == 0 ? null : current);
+    }
+
+    private static boolean linkInPlace(Path target, Path blob) {
+        try {
+            Files.createLink(target, blob);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            return false;
+        }
+    }
+
+    /** A new link to the blob in the temp directory, or a private copy without hard links. */
+    private static Path stage(Path blob) throws IOException {
+        Path staging = tempDir.resolve(nextTemp.incrementAndGet() + ".link");
+        try {
+            Files.createLink(staging, blob);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(blob, staging);
+        }
+        return staging;
+    }
+
+    /** Collects the blob a name pointed to before it was relinked, if the content changed. */
+    private static void collectReplaced(String previous, String digest) {
+        if (previous != null && !previous.equals(digest)) {
+            collect(previous);
+        }
+    }
+
+    /**
+     * Deletes a blob once no visible name links to it any more (Unix link count 1).
+     * Under the blob's lock, so it cannot race a new link to the same content.
+     */
+    private static void collect(String digest) {
+        KeyLock lock = lockKey(blobLocks, digest);
+        try {
+            Path blob = storedPath(digest);
+            if (linkCount(blob) == 1) {
+                Files.deleteIfExists(blob);
+                ReadCache.invalidate(digest);
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Failed to delete blob " + digest);
+        } finally {
+            unlockKey(blobLocks, digest, lock);
+        }
+    }
+
+    /** Unix link count of a file, or -1 if unavailable, in which case blobs are kept rather than risk losing data. */
+    private static int linkCount(Path file) {
+        try {
+            Object links = Files.getAttribute(file, "unix:nlink");
+            return links instanceof Integer ? (Integer) links : -1;
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return -1;
+        }
+    }
+}
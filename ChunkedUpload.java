@@ -0,0 +1,346 @@
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Server side of a resumable chunked upload. Each chunk body is collected in a
+ * scratch buffer and only written, with a positional FileChannel write, into a
+ * temporary ".part" file under server_files/.uploads once its checksum has
+ * verified, so a corrupt resend never touches data already accepted. A
+ * ".progress" record of verified chunks is persisted after each one so a
+ * reconnecting client only has to send what is missing. An upload is keyed by
+ * the name, size, chunk size and SHA-256 of the whole file, and the finished
+ * file is published through the BlobStore once every chunk has verified and the
+ * assembled file matches that digest.
+ */
+public class ChunkedUpload {
+    static final String UPLOAD_DIR = ".uploads";
+    static final int MAX_CHUNKS = 1 << 20;
+    // Bounds the scratch buffer a connection holds for one chunk body
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    // Connections resuming the same upload share one instance
+    private static final Map<String, ChunkedUpload> activeUploads = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final String fileName;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final byte[] sha256;
+    private final Path partPath;
+    private final Path progressPath;
+    private final FileChannel partChannel;
+    private final BitSet received;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int references;
+    private volatile boolean published;
+
+    /**
+     * Header of one "/chunk <index> <offset> <length> <crc32c> [<codec> <wire length>]"
+     * frame. With a codec the body on the wire is wireLength compressed bytes that
+     * inflate to length bytes; the CRC covers the inflated data.
+     */
+    static class Chunk {
+        final int index;
+        final long offset;
+        final int length;
+        final int crc32c;
+        final String codec;
+        final int wireLength;
+
+        Chunk(int index, long offset, int length, int crc32c, String codec, int wireLength) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.crc32c = crc32c;
+            this.codec = codec;
+            this.wireLength = wireLength;
+        }
+    }
+
+    private ChunkedUpload(String key, String fileName, long fileSize, int chunkSize, byte[] sha256)
+            throws IOException {
+        this.key = key;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) chunkCount(fileSize, chunkSize);
+        this.sha256 = sha256;
+
+        Path uploadDir = Paths.get(FileExchangeServer.STORAGE_DIR, UPLOAD_DIR);
+        Files.createDirectories(uploadDir);
+        partPath = uploadDir.resolve(key + ".part");
+        progressPath = uploadDir.resolve(key + ".progress");
+
+        BitSet progress = readProgress();
+        received = progress != null ? progress : new BitSet(chunkCount);
+        partChannel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (progress == null) {
+            partChannel.truncate(0);
+        }
+    }
+
+    /** Number of chunks of chunkSize that cover fileSize, computed without overflow. */
+    static long chunkCount(long fileSize, int chunkSize) {
+        return fileSize / chunkSize + (fileSize % chunkSize == 0 ? 0 : 1);
+    }
+
+    /**
+     * Starts or resumes the upload of fileName with the given whole-file digest.
+     * Each call must be matched by a release() once the connection is done with
+     * the upload.
+     */
+    static ChunkedUpload open(String fileName, long fileSize, int chunkSize, byte[] sha256) throws IOException {
+        // Different content under the same name and size is a different upload
+        String key = URLEncoder.encode(fileName, StandardCharsets.UTF_8) + "." + fileSize + "." + chunkSize
+                + "." + HexFormat.of().formatHex(sha256);
+        try {
+            return activeUploads.compute(key, (k, upload) -> {
+                try {
+                    if (upload == null || upload.published) {
+                        upload = new ChunkedUpload(k, fileName, fileSize, chunkSize, sha256);
+                    }
+                    upload.references++;
+                    return upload;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Removes progress records torn by a crash mid-rename, and part files with no
+     * progress record, which hold no verified chunk. Call at startup.
+     */
+    static int removeOrphans() throws IOException {
+        Path uploadDir = Paths.get(FileExchangeServer.STORAGE_DIR, UPLOAD_DIR);
+        if (!Files.isDirectory(uploadDir)) {
+            return 0;
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(uploadDir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                boolean orphan = name.endsWith(".progress.tmp") || name.endsWith(".part")
+                        && !Files.exists(entry.resolveSibling(name.substring(0, name.length() - 5) + ".progress"));
+                if (orphan && Files.deleteIfExists(entry)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    void release() {
+        // Reference counts only change inside compute() for this key, which
+        // serialises them; a published instance may already have been replaced
+        activeUploads.compute(key, (k, current) -> {
+            if (--references > 0) {
+                return current;
+            }
+            closeChannel();
+            return current == this ? null : current;
+        });
+    }
+
+    /**
+     * Parses a chunk header. Returns null if the header is malformed, in which
+     * case the length of the following body is unknown and the stream cannot be
+     * resynchronised.
+     */
+    static Chunk parseChunk(String message) {
+        String[] parts = message.split(" ");
+        if (parts.length != 5 && parts.length != 7) {
+            return null;
+        }
+        try {
+            int length = Integer.parseInt(parts[3]);
+            String codec = parts.length == 7 ? parts[5] : null;
+            int wireLength = parts.length == 7 ? Integer.parseInt(parts[6]) : length;
+            if (length < 0 || wireLength < 0 || codec != null && !Compression.isSupported(codec)) {
+                return null;
+            }
+            return new Chunk(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), length,
+                    Integer.parseUnsignedInt(parts[4], 16), codec, wireLength);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Checks that the chunk's offset and length match its index for this upload,
+     * and that the chunk has not been received already.
+     */
+    boolean isValid(Chunk chunk) {
+        // Once published the part file is the shared blob and must not be written
+        if (published || chunk.index < 0 || chunk.index >= chunkCount) {
+            return false;
+        }
+        long offset = (long) chunk.index * chunkSize;
+        if (chunk.offset != offset || chunk.length != Math.min(chunkSize, fileSize - offset)) {
+            return false;
+        }
+        lock.lock();
+        try {
+            return !received.get(chunk.index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a buffer of at least length bytes to collect a chunk body in,
+     * cleared and limited to length: scratch itself if it is large enough.
+     */
+    static ByteBuffer scratch(ByteBuffer scratch, int length) {
+        if (scratch == null || scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(length);
+        }
+        scratch.clear().limit(length);
+        return scratch;
+    }
+
+    /**
+     * Writes the body of a chunk whose checksum verified into the part file,
+     * marks it received and persists the progress record. The chunk data is
+     * forced to disk first so the record never claims a chunk a crash could have
+     * lost. A chunk another connection has stored meanwhile is left alone.
+     */
+    void store(Chunk chunk, ByteBuffer body) throws IOException {
+        lock.lock();
+        try {
+            if (published || received.get(chunk.index)) {
+                return;
+            }
+            long position = chunk.offset;
+            while (body.hasRemaining()) {
+                position += partChannel.write(body, position);
+            }
+            partChannel.force(false);
+            received.set(chunk.index);
+            writeProgress();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isComplete() {
+        lock.lock();
+        try {
+            return received.cardinality() == chunkCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Missing chunk indexes as comma-separated ranges, e.g. "0-3,7,9-12"; empty if none. */
+    String missingRanges() {
+        lock.lock();
+        try {
+            StringBuilder ranges = new StringBuilder();
+            int start = received.nextClearBit(0);
+            while (start < chunkCount) {
+                int next = received.nextSetBit(start);
+                int end = (next < 0 ? chunkCount : next) - 1;
+                if (ranges.length() > 0) {
+                    ranges.append(',');
+                }
+                ranges.append(start);
+                if (end > start) {
+                    ranges.append('-').append(end);
+                }
+                start = received.nextClearBit(end + 1);
+            }
+            return ranges.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes the verified file into the blob store under its name, which
+     * appears in server_files atomically, and drops the progress record. Returns
+     * false, and starts the upload over, if the assembled file does not match
+     * the digest it was announced with.
+     */
+    boolean publish() throws IOException {
+        lock.lock();
+        try {
+            if (published) {
+                return true;
+            }
+            partChannel.force(true);
+            if (!Arrays.equals(FileExchangeServer.sha256(partPath), sha256)) {
+                received.clear();
+                Files.deleteIfExists(progressPath);
+                partChannel.truncate(0);
+                return false;
+            }
+            BlobStore.publish(partPath, fileName, sha256);
+            Files.deleteIfExists(progressPath);
+            published = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isPublished() {
+        return published;
+    }
+
+    private BitSet readProgress() {
+        if (!Files.exists(progressPath) || !Files.exists(partPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(progressPath)))) {
+            if (in.readLong() != fileSize || in.readInt() != chunkSize) {
+                return null;
+            }
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            return BitSet.valueOf(bits);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeProgress() throws IOException {
+        // Write-then-rename so a crash mid-write never leaves a torn record
+        Path temp = progressPath.resolveSibling(progressPath.getFileName() + ".tmp");
+        byte[] bits = received.toByteArray();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        Files.move(temp, progressPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void closeChannel() {
+        try {
+            partChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error: Failed to close upload " + fileName);
+        }
+    }
+}
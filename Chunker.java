@@ -0,0 +1,107 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking in the style of FastCDC: a gear rolling hash picks
+ * cut points from the data itself, so an edit only changes the chunks around
+ * it and the rest of the file still matches chunks the server already holds.
+ * Client and server must agree on every constant here.
+ */
+public final class Chunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVG_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    // Normalized chunking: a stricter mask before AVG_SIZE and a looser one after
+    // pulls chunk sizes towards the average. Top bits carry the longest history.
+    private static final long MASK_SMALL = topBits(18);
+    private static final long MASK_LARGE = topBits(14);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6765617263646321L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Receives each chunk in order; data[from, from + length) is only valid during the call. */
+    interface ChunkConsumer {
+        void accept(long offset, byte[] data, int from, int length) throws IOException;
+    }
+
+    private Chunker() {
+    }
+
+    private static long topBits(int bits) {
+        return ((1L << bits) - 1) << (64 - bits);
+    }
+
+    /** Splits the whole stream into content-defined chunks. */
+    static void chunk(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[4 * MAX_SIZE];
+        int start = 0;
+        int end = 0;
+        long offset = 0;
+        boolean eof = false;
+
+        while (true) {
+            if (!eof && end - start < MAX_SIZE) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                while (end < buffer.length) {
+                    int bytesRead = in.read(buffer, end, buffer.length - end);
+                    if (bytesRead == -1) {
+                        eof = true;
+                        break;
+                    }
+                    end += bytesRead;
+                }
+            }
+            if (start == end) {
+                return;
+            }
+
+            int length = cutPoint(buffer, start, end - start);
+            consumer.accept(offset, buffer, start, length);
+            offset += length;
+            start += length;
+        }
+    }
+
+    private static int cutPoint(byte[] data, int start, int available) {
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+        int limit = Math.min(available, MAX_SIZE);
+        int normal = Math.min(limit, AVG_SIZE);
+        long fingerprint = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[start + i] & 0xff];
+            if ((fingerprint & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[data[start + i] & 0xff];
+            if ((fingerprint & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    static byte[] sha256(byte[] data, int from, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, from, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
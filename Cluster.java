@@ -0,0 +1,571 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Cluster mode, in which several servers split the stored files between them.
+ * Names are placed by consistent hashing: every member takes VIRTUAL_NODES
+ * points on a ring of 64-bit hashes, and a name belongs to the first replicas
+ * distinct members clockwise from its own hash, the first of them being its
+ * primary. A member joining or leaving only moves the names next to its points.
+ *
+ * A client that sends /store, /get or /stat for a name this member does not own
+ * is either answered "MOVED <host>:<port>" with the primary, or in forward mode
+ * served through this member, which relays the command to the owners. /have
+ * always redirects, since the dedup it asks for happens in the owner's blob
+ * store. Members talk to each other through an ExchangeClient whose connections
+ * announce themselves with /peer, and a peer's commands are never routed again.
+ *
+ * One background thread keeps the members in step. It pushes every change in
+ * the local listing to the name's other owners, unless they already hold the
+ * same digest; that replicates new files, hands off files stored on a member
+ * that does not own them (through /mstore or /upload, say) and copies
+ * everything to its new owners after the membership changes. A member that
+ * does not own a name drops its copy once the owners have it. The thread also
+ * follows each peer's /dir change feed, so a plain /dir is answered from the
+ * merged listing without a round trip. Removals are not replicated.
+ *
+ * Conflicting writes of one name on two members are settled by last writer
+ * wins. Every copy carries a stamp: when the write was recorded in its
+ * DirectoryIndex, and the member it was written on, which breaks ties. A push
+ * skips an owner whose copy has a newer stamp, and a pushed copy takes the
+ * stamp of the one it came from, so all owners end up with the newest write.
+ * The stamp is announced with /stamp before the upload and applies to the
+ * owner's copy as soon as it holds that content, so the copy never carries a
+ * fresh stamp of its own that the owner's sync could spread.
+ * Stamps of pushed copies are kept in memory; after a restart a member's
+ * files are stamped with their mtime.
+ */
+public class Cluster {
+    static final int VIRTUAL_NODES = 128;
+    private static final long SYNC_INTERVAL = 1000;
+    private static final int PEER_CONNECTIONS = 4;
+
+    /** One member, by the "host:port" it was listed under. */
+    private static class Member {
+        final String address;
+        // Peer connections to this member; null for this server itself
+        final ExchangeClient client;
+        // The member's names, current to its /dir version; touched by the sync thread only
+        final Set<String> names = new HashSet<>();
+        long version = -1;
+        boolean reachable = true;
+
+        Member(String address, ExchangeClient client) {
+            this.address = address;
+            this.client = client;
+        }
+    }
+
+    /** When and on which member a copy's content was written. */
+    static class Stamp {
+        final String sha256;
+        final long written;
+        final String origin;
+
+        Stamp(String sha256, long written, String origin) {
+            this.sha256 = sha256;
+            this.written = written;
+            this.origin = origin;
+        }
+
+        /** True if this write came after the one stamped written at origin. */
+        boolean isNewerThan(long otherWritten, String otherOrigin) {
+            return written != otherWritten ? written > otherWritten : origin.compareTo(otherOrigin) > 0;
+        }
+    }
+
+    private static final List<Member> members = new ArrayList<>();
+    private static final NavigableMap<Long, Member> ring = new TreeMap<>();
+    // Names listed by at least one peer, with how many peers list them
+    private static final NavigableMap<String, Integer> remoteNames = new ConcurrentSkipListMap<>();
+    // Names whose push failed, retried on the next round
+    private static final Set<String> pending = new LinkedHashSet<>();
+    // Stamps of copies other members pushed here, valid while the name holds the same digest
+    private static final Map<String, Stamp> adopted = new ConcurrentHashMap<>();
+    private static Member self;
+    private static int replicas = 1;
+    private static boolean forward;
+    private static volatile boolean enabled;
+    // Local listing version up to which changes have been pushed
+    private static long replicated;
+
+    private Cluster() {
+    }
+
+    static boolean isSupportedRoute(String route) {
+        return route.equals("redirect") || route.equals("forward");
+    }
+
+    /** Parses "host:port,host:port,..."; returns null if any entry is malformed. */
+    static List<String> parseMembers(String list) {
+        List<String> addresses = new ArrayList<>();
+        for (String address : list.split(",")) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                return null;
+            }
+            try {
+                int port = Integer.parseInt(address.substring(colon + 1));
+                if (port <= 0 || port > 65535) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    /**
+     * Enables cluster mode. selfAddress is this server's "host:port" as the other
+     * members list it, and is added to the members if missing; every member
+     * must be given the same list to agree on placement. replicaCount is capped
+     * at the number of members. tls is the client context for connections to
+     * the other members, or null if they speak plaintext.
+     */
+    static void configure(String selfAddress, List<String> addresses, int replicaCount, String route,
+            SSLContext tls) {
+        Set<String> unique = new LinkedHashSet<>(addresses);
+        unique.add(selfAddress);
+        for (String address : unique) {
+            ExchangeClient client = null;
+            if (!address.equals(selfAddress)) {
+                int colon = address.lastIndexOf(':');
+                client = new ExchangeClient(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)), PEER_CONNECTIONS);
+                client.setPeer(true);
+                client.setTls(tls);
+            }
+            Member member = new Member(address, client);
+            members.add(member);
+            if (client == null) {
+                self = member;
+            }
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(address + "#" + i), member);
+            }
+        }
+        replicas = Math.max(1, Math.min(replicaCount, members.size()));
+        forward = route.equals("forward");
+        enabled = true;
+    }
+
+    /** Starts the background sync; call once the blob store and directory index are up. */
+    static void start() {
+        System.out.println("Cluster of " + members.size() + " members, " + replicas + " replicas per file, "
+                + (forward ? "forwarding" : "redirecting") + " requests for other members' files.");
+        ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-sync");
+            thread.setDaemon(true);
+            // Replication competes with client transfers for disk and network
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(Cluster::sync, 0, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** True if requests for names this member does not own are relayed rather than redirected. */
+    static boolean forwards() {
+        return forward;
+    }
+
+    /**
+     * True if the name is served from this member's own files: outside cluster
+     * mode, for a peer, or when this member is one of its owners.
+     */
+    static boolean isLocal(String name, SessionRegistry.Session session) {
+        return !enabled || session.isPeer() || owners(name).contains(self);
+    }
+
+    /** "host:port" of the name's primary owner, for a MOVED reply. */
+    static String primary(String name) {
+        return owners(name).get(0).address;
+    }
+
+    /** The members owning name, primary first. */
+    private static List<Member> owners(String name) {
+        List<Member> owners = new ArrayList<>(replicas);
+        long point = hash(name);
+        for (Member member : ring.tailMap(point, true).values()) {
+            if (owners.size() == replicas) {
+                return owners;
+            }
+            if (!owners.contains(member)) {
+                owners.add(member);
+            }
+        }
+        // Wrap around the ring
+        for (Member member : ring.values()) {
+            if (owners.size() == replicas) {
+                break;
+            }
+            if (!owners.contains(member)) {
+                owners.add(member);
+            }
+        }
+        return owners;
+    }
+
+    /** First eight bytes of the SHA-256 of the key, as a point on the ring. */
+    private static long hash(String key) {
+        MessageDigest digest = BlobStore.newDigest();
+        byte[] sha256 = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        long point = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            point = (point << 8) | (sha256[i] & 0xff);
+        }
+        return point;
+    }
+
+    /**
+     * Stores a received file on the first owner that takes it, for a /store in
+     * forward mode; replication copies it to the rest. The temp file stays the
+     * caller's.
+     */
+    static void forwardStore(Path temp, String name) throws IOException {
+        IOException failure = null;
+        for (Member owner : owners(name)) {
+            try {
+                await(owner.client.upload(temp, name, ExchangeClient.Progress.NONE));
+                return;
+            } catch (ExchangeClient.ReplyException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Fetches name from the first owner that answers, for a /get in forward
+     * mode. Returns the whole file open for reading; the file itself is already
+     * deleted. Throws the owner's reply if it does not hold the name.
+     */
+    static FileChannel fetch(String name) throws IOException {
+        IOException failure = null;
+        for (Member owner : owners(name)) {
+            Path temp = BlobStore.newTempFile();
+            try {
+                await(owner.client.download(name, temp, ExchangeClient.Progress.NONE));
+                return FileChannel.open(temp, StandardOpenOption.READ);
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                BlobStore.discard(temp);
+            }
+        }
+        throw failure;
+    }
+
+    /** The /stat of name from the first owner that answers, for forward mode. */
+    static ExchangeClient.Stat stat(String name) throws IOException {
+        IOException failure = null;
+        for (Member owner : owners(name)) {
+            try {
+                return await(owner.client.stat(name));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /** The stamp of this member's copy of name, whose content is sha256. */
+    static Stamp stamp(String name, String sha256) {
+        Stamp copied = adopted.get(name);
+        if (copied != null && copied.sha256.equals(sha256)) {
+            return copied;
+        }
+        DirectoryIndex.Entry entry = DirectoryIndex.get(name);
+        return new Stamp(sha256, entry != null ? entry.written : 0, self.address);
+    }
+
+    /**
+     * Records the stamp a peer is about to push name with. It applies to this
+     * member's copy whenever that copy holds stamp.sha256, from the moment the
+     * pushed content lands. Returns false if the copy here holds other content
+     * from a later write, which the push must not replace.
+     */
+    static boolean adopt(String name, Stamp stamp) {
+        String current = BlobStore.digestOf(name);
+        if (current == null) {
+            ColdStore.Location cold = ColdStore.location(name);
+            current = cold != null ? cold.sha256 : null;
+        }
+        if (current != null && !current.equals(stamp.sha256)
+                && stamp(name, current).isNewerThan(stamp.written, stamp.origin)) {
+            return false;
+        }
+        adopted.put(name, stamp);
+        return true;
+    }
+
+    /**
+     * Every name in the cluster in order: this member's own, as they are now,
+     * merged with the peers' as of the last sync.
+     */
+    static Iterable<String> names() {
+        return () -> new Iterator<String>() {
+            private final Iterator<String> local = DirectoryIndex.names().iterator();
+            private final Iterator<String> remote = remoteNames.keySet().iterator();
+            private String nextLocal = advance(local);
+            private String nextRemote = advance(remote);
+
+            @Override
+            public boolean hasNext() {
+                return nextLocal != null || nextRemote != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int order = nextLocal == null ? 1 : nextRemote == null ? -1 : nextLocal.compareTo(nextRemote);
+                String name = order <= 0 ? nextLocal : nextRemote;
+                if (order <= 0) {
+                    nextLocal = advance(local);
+                }
+                if (order >= 0) {
+                    nextRemote = advance(remote);
+                }
+                return name;
+            }
+
+            private String advance(Iterator<String> names) {
+                return names.hasNext() ? names.next() : null;
+            }
+        };
+    }
+
+    private static void sync() {
+        try {
+            for (Member member : members) {
+                if (member != self) {
+                    syncListing(member);
+                }
+            }
+            replicate();
+        } catch (RuntimeException e) {
+            // A failed round must not cancel the schedule
+            System.out.println("Error: Cluster sync failed.");
+            e.printStackTrace();
+        }
+    }
+
+    /** Applies a peer's changes since the last sync to the merged listing. */
+    private static void syncListing(Member member) {
+        ExchangeClient.Changes changes;
+        try {
+            changes = await(member.client.changesSince(member.version));
+        } catch (IOException e) {
+            // Its last known names stay listed; replicas still serve them
+            if (member.reachable) {
+                System.out.println("Warning: Cluster member " + member.address + " is unreachable.");
+                member.reachable = false;
+            }
+            return;
+        }
+        if (!member.reachable) {
+            System.out.println("Cluster member " + member.address + " is reachable again.");
+            member.reachable = true;
+        }
+        if (changes.reset) {
+            for (String name : member.names) {
+                remoteNames.computeIfPresent(name, (key, count) -> count == 1 ? null : count - 1);
+            }
+            member.names.clear();
+        }
+        for (String name : changes.removed) {
+            if (member.names.remove(name)) {
+                remoteNames.computeIfPresent(name, (key, count) -> count == 1 ? null : count - 1);
+            }
+        }
+        for (String name : changes.added) {
+            if (member.names.add(name)) {
+                remoteNames.merge(name, 1, Integer::sum);
+            }
+        }
+        member.version = changes.version;
+    }
+
+    /** Pushes the local changes since the last round, and the names still pending, to their other owners. */
+    private static void replicate() {
+        List<String> retry = new ArrayList<>(pending);
+        pending.clear();
+        for (String name : retry) {
+            DirectoryIndex.Entry entry = DirectoryIndex.get(name);
+            if (entry != null) {
+                push(entry);
+            }
+        }
+
+        DirectoryIndex.Page page;
+        do {
+            page = DirectoryIndex.changesSince(replicated, "", DirectoryIndex.MAX_LIMIT);
+            if (page == null) {
+                // Tombstones since the last round are gone; removals are not pushed, so the listing will do
+                replicateAll();
+                return;
+            }
+            for (DirectoryIndex.Entry entry : page.entries) {
+                if (!entry.removed) {
+                    push(entry);
+                }
+            }
+            replicated = page.version;
+        } while (page.more);
+    }
+
+    private static void replicateAll() {
+        replicated = DirectoryIndex.version();
+        String after = null;
+        DirectoryIndex.Page page;
+        do {
+            page = DirectoryIndex.list("", after, DirectoryIndex.MAX_LIMIT);
+            for (DirectoryIndex.Entry entry : page.entries) {
+                push(entry);
+                after = entry.name;
+            }
+        } while (page.more);
+    }
+
+    /**
+     * Uploads the file, with its stamp, to each other owner holding neither the
+     * same content nor a newer write; queues it for retry on failure. If this
+     * member does not own the name, its copy is dropped once every owner has
+     * been seen to.
+     */
+    private static void push(DirectoryIndex.Entry entry) {
+        Path plain = null;
+        Path stored = Paths.get(FileExchangeServer.STORAGE_DIR, entry.name);
+        List<Member> owners = owners(entry.name);
+        boolean handedOff = true;
+        try {
+            String sha256 = entry.sha256;
+            for (Member owner : owners) {
+                if (owner == self) {
+                    continue;
+                }
+                try {
+                    if (sha256 == null) {
+                        sha256 = HexFormat.of().formatHex(FileExchangeServer.sha256(stored));
+                    }
+                    Stamp stamp = stamp(entry.name, sha256);
+                    ExchangeClient.Stat remote = remoteStat(owner, entry.name);
+                    if (remote != null && (sha256.equals(remote.sha256)
+                            || remote.origin != null && !stamp.isNewerThan(remote.written, remote.origin))) {
+                        // The same content, or a later write that the owner pushes in turn
+                        continue;
+                    }
+                    if (plain == null) {
+                        plain = plainCopy(entry.name);
+                    }
+                    // Announced first, so the copy carries this stamp from the moment it lands
+                    try {
+                        await(owner.client.stamp(entry.name, sha256, stamp.written, stamp.origin));
+                    } catch (ExchangeClient.ReplyException e) {
+                        // Written again on the owner since; that write is the newer one
+                        continue;
+                    }
+                    await(owner.client.upload(plain, entry.name, ExchangeClient.Progress.NONE));
+                } catch (NoSuchFileException e) {
+                    // Removed or replaced since; a newer change follows
+                    return;
+                } catch (IOException e) {
+                    pending.add(entry.name);
+                    handedOff = false;
+                }
+            }
+            if (handedOff && !owners.contains(self) && sha256 != null) {
+                // In forward mode a /get is then relayed to the owners rather than served stale
+                if (BlobStore.remove(entry.name, sha256)) {
+                    adopted.remove(entry.name);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Failed to drop handed-off file " + entry.name);
+        } finally {
+            if (plain != null && !plain.equals(stored)) {
+                BlobStore.discard(plain);
+            }
+        }
+    }
+
+    /** The owner's /stat of name, or null if it does not hold it. */
+    private static ExchangeClient.Stat remoteStat(Member owner, String name) throws IOException {
+        try {
+            return await(owner.client.stat(name));
+        } catch (ExchangeClient.ReplyException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The stored file, or for one compressed at rest or cold an inflated temp
+     * copy. Pushing a cold file does not make it hot here.
+     */
+    private static Path plainCopy(String name) throws IOException {
+        Path stored = Paths.get(FileExchangeServer.STORAGE_DIR, name);
+        boolean cold = !Files.exists(stored) && ColdStore.isCold(name);
+        if (!cold && !BlobStore.isCompressed(name)) {
+            return stored;
+        }
+        Path temp = BlobStore.newTempFile();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            if (cold) {
+                try (InputStream in = ColdStore.open(name)) {
+                    in.transferTo(out);
+                }
+            } else {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(stored))) {
+                    in.skipNBytes(BlobStore.COMPRESSED_HEADER);
+                    Compression.decompress(in).transferTo(out);
+                }
+            }
+        } catch (IOException e) {
+            BlobStore.discard(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a cluster member");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,659 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The cold tier. Files nobody has fetched with /get for a configured time are
+ * packed, Deflate-compressed where that pays off, into append-only segment
+ * files under server_files/.segments, and their name leaves server_files. A
+ * million cold files cost a few hundred segments instead of a million directory
+ * entries and inodes. Hot files stay plain hard links into the BlobStore.
+ *
+ * A segment is a run of records, each a header followed by the body:
+ *
+ *     byte type (PUT or REMOVE), short name length, name
+ *     PUT only: byte codec, long size, long modified, byte[32] sha256, long body length
+ *     int CRC32C of the header so far
+ *
+ * The offset index is kept in memory and rebuilt at startup by reading the
+ * headers in segment order, later records replacing earlier ones. A REMOVE is
+ * written when a name gets a hot file again, or when a demotion loses to one,
+ * so a restart cannot bring the cold copy back. A demoted record is published
+ * under BlobStore's name lock, in the same step that drops the hot copy. A torn
+ * record at the end of the newest segment is cut off.
+ *
+ * Cold files stay listed in the DirectoryIndex with their original size, mtime
+ * and digest, and /stat answers from here. /get restores a cold file to the hot
+ * tier before sending it; /mget and cluster replication stream it straight out
+ * of its segment. One low-priority thread demotes idle files and compacts
+ * sealed segments whose live share has dropped below COMPACT_BELOW, copying the
+ * live records to the newest segment and deleting the old file.
+ */
+public class ColdStore {
+    static final String SEGMENT_DIR = ".segments";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final double COMPACT_BELOW = 0.5;
+    private static final int MAX_NAME = 4096;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+
+    private static final Path segmentRoot = Paths.get(FileExchangeServer.STORAGE_DIR, SEGMENT_DIR);
+
+    /** Where a cold file's body lies, and what it is listed as. Immutable. */
+    static class Location {
+        final long segment;
+        final long record;
+        final long offset;
+        final long length;
+        final boolean deflated;
+        final long size;
+        final long modified;
+        final String sha256;
+
+        Location(long segment, long record, long offset, long length, boolean deflated, long size, long modified,
+                String sha256) {
+            this.segment = segment;
+            this.record = record;
+            this.offset = offset;
+            this.length = length;
+            this.deflated = deflated;
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+        }
+
+        /** Bytes of the whole record, header included. */
+        long recordLength() {
+            return offset + length - record;
+        }
+    }
+
+    /** One segment file; size and live are guarded by appendLock. */
+    private static class Segment {
+        final long id;
+        final Path path;
+        long size;
+        long live;
+
+        Segment(long id) {
+            this.id = id;
+            this.path = segmentRoot.resolve(String.format("%010d", id) + SEGMENT_SUFFIX);
+        }
+    }
+
+    /** A record header as read back from a segment. */
+    private static class Header {
+        byte type;
+        String name;
+        Location location;
+        int length;
+    }
+
+    private static final Map<String, Location> locations = new ConcurrentHashMap<>();
+    // Last /get of each hot name since startup
+    private static final Map<String, Long> lastRead = new ConcurrentHashMap<>();
+    private static final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // Appends, rolls and live accounting take turns
+    private static final ReentrantLock appendLock = new ReentrantLock();
+    private static FileChannel current;
+    private static Segment currentSegment;
+    // Read history is not kept across restarts, so every file gets a full period from startup
+    private static final long startedAt = System.currentTimeMillis();
+    private static long coldAfter;
+
+    private ColdStore() {
+    }
+
+    /** Demotes files after this many milliseconds without a /get; 0 keeps every file hot. Call before serving. */
+    static void configure(long millis) {
+        coldAfter = millis;
+    }
+
+    /**
+     * Loads the segments, dropping cold copies of names that have a hot file.
+     * Call after BlobStore.init() and before DirectoryIndex.init().
+     */
+    static void init() throws IOException {
+        Files.createDirectories(segmentRoot);
+        try (Stream<Path> listing = Files.list(segmentRoot)) {
+            listing.map(path -> path.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> {
+                        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(id, new Segment(id));
+                    });
+        }
+        for (Segment segment : segments.values()) {
+            load(segment, segment == segments.lastEntry().getValue());
+        }
+        for (String name : new ArrayList<>(locations.keySet())) {
+            if (Files.exists(Paths.get(FileExchangeServer.STORAGE_DIR, name))) {
+                remove(name);
+            }
+        }
+        if (!locations.isEmpty()) {
+            System.out.println("Cold tier holds " + locations.size() + " files in " + segments.size() + " segments.");
+        }
+
+        // Without --cold-after the worker only compacts what an earlier run packed
+        if (coldAfter > 0 || !segments.isEmpty()) {
+            ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cold-tier");
+                thread.setDaemon(true);
+                // Demotion and compaction can wait for client transfers
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            long interval = coldAfter > 0 ? Math.max(1000, Math.min(coldAfter / 2, 60_000)) : 60_000;
+            worker.scheduleWithFixedDelay(ColdStore::pass, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void load(Segment segment, boolean newest) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long position = 0;
+            long size = channel.size();
+            while (position < size) {
+                Header header = readHeader(channel, segment.id, position);
+                if (header == null) {
+                    if (newest) {
+                        // A record torn by a crash mid-append
+                        channel.truncate(position);
+                    } else {
+                        System.out.println("Error: Segment " + segment.path + " is corrupt after offset " + position);
+                    }
+                    break;
+                }
+                if (header.type == PUT) {
+                    Location previous = locations.put(header.name, header.location);
+                    if (previous != null) {
+                        segments.get(previous.segment).live -= previous.recordLength();
+                    }
+                    segment.live += header.location.recordLength();
+                    position = header.location.offset + header.location.length;
+                } else {
+                    Location previous = locations.remove(header.name);
+                    if (previous != null) {
+                        segments.get(previous.segment).live -= previous.recordLength();
+                    }
+                    position += header.length;
+                }
+            }
+            segment.size = position;
+        }
+    }
+
+    /** Reads the header at position, or returns null if it is torn or corrupt. */
+    private static Header readHeader(FileChannel channel, long segment, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(3 + MAX_NAME + 1 + 3 * Long.BYTES + 32 + Long.BYTES + Integer.BYTES);
+        channel.read(buffer, position);
+        buffer.flip();
+        try {
+            Header header = new Header();
+            header.type = buffer.get();
+            int nameLength = Short.toUnsignedInt(buffer.getShort());
+            if ((header.type != PUT && header.type != REMOVE) || nameLength == 0 || nameLength > MAX_NAME) {
+                return null;
+            }
+            byte[] name = new byte[nameLength];
+            buffer.get(name);
+            header.name = new String(name, StandardCharsets.UTF_8);
+            byte codec = 0;
+            long size = 0;
+            long modified = 0;
+            byte[] sha256 = new byte[32];
+            long length = 0;
+            if (header.type == PUT) {
+                codec = buffer.get();
+                size = buffer.getLong();
+                modified = buffer.getLong();
+                buffer.get(sha256);
+                length = buffer.getLong();
+            }
+            int end = buffer.position();
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), 0, end);
+            if (buffer.getInt() != (int) crc.getValue() || length < 0 || position + end + 4 + length > channel.size()) {
+                return null;
+            }
+            header.length = end + Integer.BYTES;
+            if (header.type == PUT) {
+                header.location = new Location(segment, position, position + header.length, length, codec == DEFLATED,
+                        size, modified, HexFormat.of().formatHex(sha256));
+            }
+            return header;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    static boolean isCold(String name) {
+        return locations.containsKey(name);
+    }
+
+    /** The cold copy of name, or null if it is hot or unknown. */
+    static Location location(String name) {
+        return locations.get(name);
+    }
+
+    /** Names of all cold files, for a directory rescan. */
+    static Set<String> names() {
+        return locations.keySet();
+    }
+
+    /**
+     * Records a /get of name, first restoring it to the hot tier if it is cold
+     * so the caller finds a plain file. Reads and writes the whole body, so the
+     * NIO engine calls it on a worker when isCold() says so.
+     */
+    static void read(String name) throws IOException {
+        Location location = locations.get(name);
+        if (location == null) {
+            if (coldAfter > 0 && DirectoryIndex.get(name) != null) {
+                lastRead.put(name, System.currentTimeMillis());
+            }
+            return;
+        }
+        Path temp = BlobStore.newTempFile();
+        try {
+            MessageDigest digest = BlobStore.newDigest();
+            try (InputStream in = open(name);
+                    OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)),
+                            digest)) {
+                in.transferTo(out);
+            }
+            byte[] sha256 = digest.digest();
+            if (!HexFormat.of().formatHex(sha256).equals(location.sha256)) {
+                throw new IOException("Cold copy of " + name + " does not match its digest");
+            }
+            // Keeps the listed mtime when the body becomes a new blob
+            Files.setLastModifiedTime(temp, FileTime.fromMillis(location.modified));
+            if (coldAfter > 0) {
+                lastRead.put(name, System.currentTimeMillis());
+            }
+            // Drops the cold copy once linked; does nothing if a newer file took the name
+            BlobStore.restore(temp, name, sha256);
+            temp = null;
+        } finally {
+            if (temp != null) {
+                BlobStore.discard(temp);
+            }
+        }
+    }
+
+    /** The content of a cold file, inflated as needed. Throws NoSuchFileException if it is not cold. */
+    static InputStream open(String name) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location location = locations.get(name);
+            if (location == null) {
+                throw new NoSuchFileException(name);
+            }
+            Segment segment = segments.get(location.segment);
+            try {
+                FileChannel channel = FileChannel.open(segment != null ? segment.path
+                        : new Segment(location.segment).path, StandardOpenOption.READ);
+                InputStream body = new BufferedInputStream(slice(channel, location.offset, location.length),
+                        64 * 1024);
+                return location.deflated ? Compression.decompress(body) : body;
+            } catch (NoSuchFileException e) {
+                // Compacted away since the lookup; the record has moved
+                if (attempt == 1) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** length bytes of the channel from offset, as a stream that closes the channel. */
+    private static InputStream slice(FileChannel channel, long offset, long length) {
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                if (count == -1) {
+                    throw new EOFException("Segment is shorter than its index");
+                }
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Forgets the cold copy of name, which now has a hot file, and records that
+     * in the newest segment. Called by BlobStore with the name's lock held.
+     */
+    static void remove(String name) throws IOException {
+        if (!locations.containsKey(name)) {
+            return;
+        }
+        appendLock.lock();
+        try {
+            Location removed = locations.remove(name);
+            if (removed == null) {
+                return;
+            }
+            release(removed);
+            append(REMOVE, name, null, null, 0, 0);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static void pass() {
+        try {
+            if (coldAfter > 0) {
+                demoteIdle();
+            }
+            compact();
+        } catch (IOException | RuntimeException e) {
+            // A failed pass must not cancel the schedule
+            System.out.println("Error: Cold tier pass failed.");
+            e.printStackTrace();
+        }
+    }
+
+    /** Moves every blob-backed file not written or fetched within coldAfter into the cold tier. */
+    private static void demoteIdle() throws IOException {
+        long cutoff = System.currentTimeMillis() - coldAfter;
+        if (startedAt > cutoff) {
+            return;
+        }
+        String after = null;
+        DirectoryIndex.Page page;
+        do {
+            page = DirectoryIndex.list("", after, DirectoryIndex.MAX_LIMIT);
+            for (DirectoryIndex.Entry entry : page.entries) {
+                after = entry.name;
+                if (entry.sha256 != null && entry.modified <= cutoff && lastRead.getOrDefault(entry.name, 0L) <= cutoff
+                        && !locations.containsKey(entry.name)) {
+                    try {
+                        demote(entry, cutoff);
+                    } catch (NoSuchFileException e) {
+                        // Replaced or removed since it was listed
+                    }
+                }
+            }
+        } while (page.more);
+    }
+
+    private static void demote(DirectoryIndex.Entry entry, long cutoff) throws IOException {
+        Path stored = Paths.get(FileExchangeServer.STORAGE_DIR, entry.name);
+        Path compressed = null;
+        Location location;
+        try (FileChannel source = FileChannel.open(stored, StandardOpenOption.READ)) {
+            long offset = 0;
+            long length = source.size();
+            byte codec = STORED;
+            if (BlobStore.isCompressed(entry.name)) {
+                // Already a raw Deflate stream behind its size header
+                offset = BlobStore.COMPRESSED_HEADER;
+                length -= offset;
+                codec = DEFLATED;
+            } else if (length > 0 && Compression.isCompressible(stored)) {
+                compressed = BlobStore.newTempFile();
+                long compressedLength;
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(stored));
+                        OutputStream out = new BufferedOutputStream(Files.newOutputStream(compressed))) {
+                    compressedLength = Compression.compress(in, length, out, Compression.DEFLATE);
+                }
+                if (compressedLength <= length * 0.9) {
+                    codec = DEFLATED;
+                    length = compressedLength;
+                }
+            }
+
+            Location template = new Location(0, 0, 0, length, codec == DEFLATED, entry.size, entry.modified,
+                    entry.sha256);
+            appendLock.lock();
+            try {
+                if (codec == DEFLATED && compressed != null) {
+                    try (FileChannel body = FileChannel.open(compressed, StandardOpenOption.READ)) {
+                        location = append(PUT, entry.name, template, body, 0, length);
+                    }
+                } else {
+                    location = append(PUT, entry.name, template, source, offset, length);
+                }
+            } finally {
+                appendLock.unlock();
+            }
+            Durability.sync(currentSegment.path);
+        } finally {
+            if (compressed != null) {
+                BlobStore.discard(compressed);
+            }
+        }
+
+        // A /get or /store may have come in while the body was being packed
+        if (lastRead.getOrDefault(entry.name, 0L) > cutoff
+                || !BlobStore.demote(entry.name, entry.sha256, () -> publish(entry.name, location))) {
+            abandon(entry.name, location);
+            return;
+        }
+        lastRead.remove(entry.name);
+    }
+
+    /** Makes a demoted record the name's cold copy; called under BlobStore's name lock. */
+    private static void publish(String name, Location location) {
+        appendLock.lock();
+        try {
+            Location previous = locations.put(name, location);
+            if (previous != null) {
+                release(previous);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /** Marks a record that was never published dead, so a restart does not revive it. */
+    private static void abandon(String name, Location location) throws IOException {
+        appendLock.lock();
+        try {
+            release(location);
+            append(REMOVE, name, null, null, 0, 0);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /** Rewrites the live records of sealed segments that are mostly dead, then deletes them. */
+    private static void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        appendLock.lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment != currentSegment && segment.live < segment.size * COMPACT_BELOW) {
+                    candidates.add(segment);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+
+        for (Segment segment : candidates) {
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < segment.size) {
+                    Header header = readHeader(channel, segment.id, position);
+                    if (header == null) {
+                        break;
+                    }
+                    appendLock.lock();
+                    try {
+                        if (header.type == PUT) {
+                            Location location = header.location;
+                            if (isSame(locations.get(header.name), location)) {
+                                Location moved = append(PUT, header.name, location, channel, location.offset,
+                                        location.length);
+                                release(location);
+                                locations.put(header.name, moved);
+                            }
+                            position = location.offset + location.length;
+                        } else {
+                            // Still needed if an older segment may hold a PUT it cancels
+                            if (segments.firstKey() != segment.id && !locations.containsKey(header.name)) {
+                                append(REMOVE, header.name, null, null, 0, 0);
+                            }
+                            position += header.length;
+                        }
+                    } finally {
+                        appendLock.unlock();
+                    }
+                }
+            }
+            Durability.sync(currentSegment.path);
+            appendLock.lock();
+            try {
+                segments.remove(segment.id);
+            } finally {
+                appendLock.unlock();
+            }
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    private static boolean isSame(Location a, Location b) {
+        return a != null && a.segment == b.segment && a.record == b.record;
+    }
+
+    /** Takes a record's bytes off its segment's live count. Called with appendLock held. */
+    private static void release(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.live -= location.recordLength();
+        }
+    }
+
+    /** The header of a record, with the CRC; location carries the PUT fields. */
+    private static ByteBuffer header(byte type, String name, Location location) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(3 + encoded.length + 1 + 3 * Long.BYTES + 32 + Long.BYTES
+                + Integer.BYTES);
+        buffer.put(type).putShort((short) encoded.length).put(encoded);
+        if (type == PUT) {
+            buffer.put(location.deflated ? DEFLATED : STORED)
+                    .putLong(location.size)
+                    .putLong(location.modified)
+                    .put(HexFormat.of().parseHex(location.sha256))
+                    .putLong(location.length);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Appends a record for name to the newest segment, starting a new one when
+     * it is full, with length bytes of body from offset for a PUT described by
+     * the fields of template. Returns where the PUT went. Called with
+     * appendLock held.
+     */
+    private static Location append(byte type, String name, Location template, FileChannel body, long offset,
+            long length) throws IOException {
+        ByteBuffer header = header(type, name, template);
+        int headerLength = header.remaining();
+        if (current == null || (currentSegment.size > 0
+                && currentSegment.size + headerLength + length > SEGMENT_SIZE)) {
+            roll();
+        }
+        long record = currentSegment.size;
+        long position = record;
+        while (header.hasRemaining()) {
+            position += current.write(header, position);
+        }
+        long end = position + length;
+        while (position < end) {
+            long transferred = body.transferTo(offset, end - position, current.position(position));
+            if (transferred <= 0) {
+                throw new EOFException("Body ended before its length");
+            }
+            offset += transferred;
+            position += transferred;
+        }
+        currentSegment.size = end;
+        if (type == REMOVE) {
+            return null;
+        }
+        currentSegment.live += end - record;
+        return new Location(currentSegment.id, record, record + headerLength, length, template.deflated,
+                template.size, template.modified, template.sha256);
+    }
+
+    /** Seals the newest segment and starts the next. Called with appendLock held. */
+    private static void roll() throws IOException {
+        if (current != null) {
+            current.close();
+        }
+        Segment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (last != null && current == null && last.size < SEGMENT_SIZE) {
+            // Carry on appending to the newest segment left by the last run
+            currentSegment = last;
+        } else {
+            currentSegment = new Segment(last != null ? last.id + 1 : 1);
+            segments.put(currentSegment.id, currentSegment);
+        }
+        current = FileChannel.open(currentSegment.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    static void sample(Metrics.Samples out) {
+        out.add("cold_files", "", locations.size());
+        appendLock.lock();
+        try {
+            long size = 0;
+            long live = 0;
+            for (Segment segment : segments.values()) {
+                size += segment.size;
+                live += segment.live;
+            }
+            out.add("cold_segments", "", segments.size());
+            out.add("cold_segment_bytes", "", size);
+            out.add("cold_live_bytes", "", live);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
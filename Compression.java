@@ -0,0 +1,235 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codecs for compressing transfer bodies and stored blobs. Both codecs produce
+ * a raw Deflate stream and differ only in level, so one decoder reads either:
+ * "deflate-fast" (level 1) trades ratio for speed, "deflate" (level 6) the
+ * reverse. A compressed body is always sent with its compressed length up
+ * front, so no framing is needed inside the stream.
+ */
+public final class Compression {
+    static final String DEFLATE_FAST = "deflate-fast";
+    static final String DEFLATE = "deflate";
+    /** Codecs this side supports, in order of preference. */
+    static final List<String> CODECS = List.of(DEFLATE_FAST, DEFLATE);
+
+    // Data above this many bits per byte is almost certainly already compressed
+    private static final double MAX_ENTROPY = 7.5;
+    private static final int SAMPLE_SIZE = 16 * 1024;
+    private static final int SAMPLES = 4;
+
+    private Compression() {
+    }
+
+    static boolean isSupported(String codec) {
+        return CODECS.contains(codec);
+    }
+
+    /** First codec in the space-separated offer that this side supports, or null. */
+    static String choose(String offer) {
+        for (String codec : offer.trim().split(" +")) {
+            if (isSupported(codec)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static int level(String codec) {
+        return codec.equals(DEFLATE_FAST) ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /** Shannon entropy of data[offset, offset + length) in bits per byte. */
+    static double entropy(byte[] data, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = offset; i < offset + length; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+
+    /** True unless a sample of the data looks already compressed or encrypted. */
+    static boolean isCompressible(byte[] data, int offset, int length) {
+        int sample = Math.min(length, SAMPLE_SIZE);
+        return entropy(data, offset, sample) < MAX_ENTROPY;
+    }
+
+    /** Samples a few windows spread across the file. */
+    static boolean isCompressible(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return false;
+            }
+            byte[] sample = new byte[SAMPLE_SIZE];
+            double total = 0;
+            int samples = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                long position = size <= SAMPLE_SIZE ? 0 : (size - SAMPLE_SIZE) * i / Math.max(1, SAMPLES - 1);
+                ByteBuffer buffer = ByteBuffer.wrap(sample);
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+                    // Fill the sample window
+                }
+                total += entropy(sample, 0, buffer.position());
+                samples++;
+                if (size <= SAMPLE_SIZE) {
+                    break;
+                }
+            }
+            return total / samples < MAX_ENTROPY;
+        }
+    }
+
+    /** Compresses a whole buffer, for a chunk body that is sent in one piece. */
+    static byte[] compress(byte[] data, int offset, int length, String codec) {
+        Deflater deflater = new Deflater(level(codec), true);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] output = new byte[Math.max(64, length / 2)];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
+            return Arrays.copyOf(output, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Compresses count bytes from in to out and returns the compressed size. */
+    static long compress(InputStream in, long count, OutputStream out, String codec) throws IOException {
+        Deflater deflater = new Deflater(level(codec), true);
+        CountingOutputStream counter = new CountingOutputStream(out);
+        try (DeflaterOutputStream deflating = new DeflaterOutputStream(counter, deflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                // Finish the stream but leave the target open for the caller
+                finish();
+            }
+        }) {
+            byte[] buffer = new byte[64 * 1024];
+            while (count > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (bytesRead == -1) {
+                    throw new EOFException("Source ended before its length");
+                }
+                deflating.write(buffer, 0, bytesRead);
+                count -= bytesRead;
+            }
+        } finally {
+            deflater.end();
+        }
+        return counter.count;
+    }
+
+    /** Decompresses a stream written by either codec. */
+    static InputStream decompress(InputStream in) {
+        return new InflaterInputStream(in, new Inflater(true), 64 * 1024);
+    }
+
+    /** Receives decompressed output; the buffer is only valid during the call. */
+    interface Sink {
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Incremental decoder for a compressed body that arrives in pieces. Malformed
+     * input or output beyond the expected length marks the body as failed instead
+     * of throwing, so the caller can keep consuming the body and stay in sync.
+     */
+    static class Decoder {
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] output = new byte[64 * 1024];
+        private final long expected;
+        private long produced;
+        private boolean failed;
+
+        Decoder(long expected) {
+            this.expected = expected;
+        }
+
+        void accept(ByteBuffer compressed, Sink sink) throws IOException {
+            if (failed) {
+                compressed.position(compressed.limit());
+                return;
+            }
+            inflater.setInput(compressed);
+            try {
+                // Keep inflating after the input runs out to drain pending output
+                while (!inflater.finished()) {
+                    int count = inflater.inflate(output);
+                    if (count == 0) {
+                        failed = !inflater.needsInput();
+                        break;
+                    }
+                    produced += count;
+                    if (produced > expected) {
+                        failed = true;
+                        break;
+                    }
+                    sink.write(ByteBuffer.wrap(output, 0, count));
+                }
+            } catch (DataFormatException e) {
+                failed = true;
+            }
+            if (compressed.hasRemaining()) {
+                // Bytes after the end of the stream, or left over after a failure
+                failed = true;
+                compressed.position(compressed.limit());
+            }
+        }
+
+        /** True once the whole body was consumed and inflated to exactly the expected length. */
+        boolean isValid() {
+            return !failed && inflater.finished() && produced == expected;
+        }
+
+        void end() {
+            inflater.end();
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Reports compression ratio and single-thread throughput of each codec on
+ * log-like, JSON-like and random data, and whether the entropy check would
+ * send the data compressed at all. Throughput is measured on 4 MB buffers, the
+ * chunk size the client uploads, after a warm-up pass.
+ */
+public class CompressionBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) * 1024 * 1024 : 4 * 1024 * 1024;
+        Random random = new Random(42);
+
+        System.out.printf("%-8s %-13s %9s %7s %12s %14s%n", "data", "codec", "entropy", "ratio", "compress MB/s",
+                "decompress MB/s");
+        report("logs", logLike(size, random));
+        report("json", jsonLike(size, random));
+        byte[] noise = new byte[size];
+        random.nextBytes(noise);
+        report("random", noise);
+    }
+
+    private static void report(String name, byte[] data) throws IOException {
+        double entropy = Compression.entropy(data, 0, Math.min(data.length, 16 * 1024));
+        if (!Compression.isCompressible(data, 0, data.length)) {
+            System.out.printf("%-8s %-13s %9.2f %7s %12s %14s%n", name, "skipped", entropy, "1.00", "-", "-");
+        }
+        for (String codec : Compression.CODECS) {
+            byte[] compressed = Compression.compress(data, 0, data.length, codec);
+            inflate(compressed, data.length);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                compressed = Compression.compress(data, 0, data.length, codec);
+            }
+            double compressSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                inflate(compressed, data.length);
+            }
+            double decompressSeconds = (System.nanoTime() - start) / 1e9;
+
+            double megabytes = (double) data.length * ROUNDS / (1024 * 1024);
+            System.out.printf("%-8s %-13s %9.2f %7.2f %12.1f %14.1f%n", name, codec, entropy,
+                    (double) data.length / compressed.length, megabytes / compressSeconds,
+                    megabytes / decompressSeconds);
+        }
+    }
+
+    private static void inflate(byte[] compressed, int expected) throws IOException {
+        try (InputStream in = Compression.decompress(new ByteArrayInputStream(compressed))) {
+            byte[] output = in.readAllBytes();
+            if (output.length != expected) {
+                throw new IOException("Round trip produced " + output.length + " bytes");
+            }
+        }
+    }
+
+    private static byte[] logLike(int size, Random random) {
+        String[] levels = { "INFO", "INFO", "INFO", "WARN", "DEBUG" };
+        String[] events = { "request completed", "file stored", "chunk verified", "client connected" };
+        StringBuilder text = new StringBuilder(size + 256);
+        long time = 1_700_000_000_000L;
+        while (text.length() < size) {
+            time += random.nextInt(50);
+            text.append(time).append(' ').append(levels[random.nextInt(levels.length)]).append(' ')
+                    .append(events[random.nextInt(events.length)]).append(" bytes=")
+                    .append(random.nextInt(10_000_000)).append(" ms=").append(random.nextInt(500)).append('\n');
+        }
+        return exact(text, size);
+    }
+
+    private static byte[] jsonLike(int size, Random random) {
+        StringBuilder text = new StringBuilder(size + 256);
+        while (text.length() < size) {
+            text.append("{\"id\":").append(random.nextInt(1_000_000)).append(",\"name\":\"file-")
+                    .append(Integer.toHexString(random.nextInt())).append(".bin\",\"size\":")
+                    .append(random.nextInt(100_000_000)).append(",\"shared\":").append(random.nextBoolean())
+                    .append("},\n");
+        }
+        return exact(text, size);
+    }
+
+    private static byte[] exact(StringBuilder text, int size) {
+        byte[] data = new byte[size];
+        System.arraycopy(text.toString().getBytes(), 0, data, 0, size);
+        return data;
+    }
+}
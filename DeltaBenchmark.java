@@ -0,0 +1,92 @@
+import java.io.*;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Reports the bytes a /delta upload puts on the wire for common edit patterns,
+ * compared with sending the whole file. Wire bytes are the manifest (36 bytes
+ * per chunk) plus the bodies of chunks the server does not already hold, which
+ * is exactly what the protocol sends after the base version was stored.
+ */
+public class DeltaBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) * 1024 * 1024 : 32 * 1024 * 1024;
+        Random random = new Random(42);
+        byte[] base = textLike(size, random);
+
+        System.out.printf("%-28s %12s %12s %12s %8s%n", "edit pattern", "file bytes", "wire bytes", "saved", "saved%");
+        report("unchanged", base, base);
+        report("overwrite 4 KB in middle", base, overwrite(base, size / 2, 4096, random));
+        report("insert 100 B at start", base, splice(base, 0, 0, bytes(100, random)));
+        report("insert 100 B in middle", base, splice(base, size / 2, 0, bytes(100, random)));
+        report("delete 64 KB in middle", base, splice(base, size / 2, 64 * 1024, new byte[0]));
+        report("append 1 MB", base, splice(base, size, 0, textLike(1024 * 1024, random)));
+        report("10 scattered 1 KB edits", base, scattered(base, 10, 1024, random));
+        report("rewrite every byte", base, textLike(size, new Random(7)));
+    }
+
+    private static void report(String name, byte[] base, byte[] edited) throws IOException {
+        Set<String> stored = new HashSet<>();
+        Chunker.chunk(new ByteArrayInputStream(base), (offset, data, from, length) ->
+                stored.add(HexFormat.of().formatHex(Chunker.sha256(data, from, length))));
+
+        long[] wire = new long[1];
+        Chunker.chunk(new ByteArrayInputStream(edited), (offset, data, from, length) -> {
+            wire[0] += DeltaUpload.RECORD_SIZE;
+            if (!stored.contains(HexFormat.of().formatHex(Chunker.sha256(data, from, length)))) {
+                wire[0] += length;
+            }
+        });
+
+        long saved = edited.length - wire[0];
+        System.out.printf("%-28s %12d %12d %12d %7.2f%%%n", name, edited.length, wire[0], saved,
+                100.0 * saved / edited.length);
+    }
+
+    /** Log-like data: repeated words with random numbers, so chunks are not trivially equal. */
+    private static byte[] textLike(int size, Random random) {
+        String[] words = { "INFO", "WARN", "request", "completed", "in", "ms", "user", "file", "stored", "bytes" };
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        while (out.size() < size) {
+            String line = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " "
+                    + random.nextInt(1_000_000) + " " + words[random.nextInt(words.length)] + "\n";
+            out.writeBytes(line.getBytes());
+        }
+        byte[] data = out.toByteArray();
+        byte[] exact = new byte[size];
+        System.arraycopy(data, 0, exact, 0, size);
+        return exact;
+    }
+
+    private static byte[] bytes(int length, Random random) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] overwrite(byte[] base, int at, int length, Random random) {
+        byte[] edited = base.clone();
+        byte[] patch = bytes(length, random);
+        System.arraycopy(patch, 0, edited, at, length);
+        return edited;
+    }
+
+    private static byte[] scattered(byte[] base, int edits, int length, Random random) {
+        byte[] edited = base;
+        for (int i = 0; i < edits; i++) {
+            edited = overwrite(edited, random.nextInt(base.length - length), length, random);
+        }
+        return edited;
+    }
+
+    private static byte[] splice(byte[] base, int at, int remove, byte[] insert) {
+        byte[] edited = new byte[base.length - remove + insert.length];
+        System.arraycopy(base, 0, edited, 0, at);
+        System.arraycopy(insert, 0, edited, at, insert.length);
+        System.arraycopy(base, at + remove, edited, at + insert.length, base.length - at - remove);
+        return edited;
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side of a delta upload. The client sends a manifest of its file's
+ * content-defined chunks ("/delta <fileSize> <chunkCount> <filename>" followed
+ * by chunkCount records of a 32-byte SHA-256 and a 4-byte length). The server
+ * replies "NEED <ranges>" with the chunk indexes it cannot find, receives just
+ * those bodies back to back, and assembles the new version from them and from
+ * chunks of blobs it already stores.
+ *
+ * Chunks are never stored separately: the chunk index maps a chunk digest to
+ * its location inside an immutable blob. It is rebuilt on demand, so it is not
+ * persisted.
+ */
+public class DeltaUpload {
+    static final int RECORD_SIZE = 36;
+    static final int MAX_CHUNKS = 1 << 20;
+
+    private static final Map<String, Location> chunkIndex = new ConcurrentHashMap<>();
+    private static final Set<String> indexedBlobs = ConcurrentHashMap.newKeySet();
+
+    private final String fileName;
+    private final long fileSize;
+    private final int chunkCount;
+    // Grown as manifest records arrive, so memory follows what the client has sent
+    private byte[] hashes = new byte[0];
+    private int[] lengths = new int[0];
+    private int received;
+    private long receivedBytes;
+    private boolean manifestValid = true;
+    private Location[] sources;
+    private final BitSet missing = new BitSet();
+    private long missingBytes;
+
+    // Receiving state for the missing chunk bodies, written in order to a temp file
+    private Path bodies;
+    private FileChannel bodiesChannel;
+    private int currentChunk = -1;
+    private int currentFilled;
+    private MessageDigest currentDigest;
+    private long bodyRemaining;
+    private int failedChunk = -1;
+
+    private static class Location {
+        final String blob;
+        final long offset;
+
+        Location(String blob, long offset) {
+            this.blob = blob;
+            this.offset = offset;
+        }
+    }
+
+    private DeltaUpload(String fileName, long fileSize, int chunkCount) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Parses the /delta command line. Returns null if it is malformed, in which
+     * case the size of the manifest that follows is unknown. Every chunk but the
+     * last is at least Chunker.MIN_SIZE, which bounds the count by the file size.
+     */
+    static DeltaUpload parse(String message) {
+        String[] parts = message.split(" ", 4);
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            long fileSize = Long.parseLong(parts[1]);
+            int chunkCount = Integer.parseInt(parts[2]);
+            if (fileSize < 0 || chunkCount < 0 || chunkCount > MAX_CHUNKS
+                    || chunkCount > fileSize / Chunker.MIN_SIZE + 1) {
+                return null;
+            }
+            return new DeltaUpload(parts[3], fileSize, chunkCount);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    /** Manifest bytes still expected from the client. */
+    long manifestRemaining() {
+        return (long) (chunkCount - received) * RECORD_SIZE;
+    }
+
+    boolean isManifestComplete() {
+        return received == chunkCount;
+    }
+
+    /** Whether the complete manifest's chunk lengths were valid and add up to the file size. */
+    boolean isManifestValid() {
+        return manifestValid && receivedBytes == fileSize;
+    }
+
+    /**
+     * Takes the whole manifest records off data and leaves a partial one for the
+     * next call. Records after an invalid one are consumed but not kept.
+     */
+    void acceptManifest(ByteBuffer data) {
+        while (received < chunkCount && data.remaining() >= RECORD_SIZE) {
+            if (!manifestValid) {
+                data.position(data.position() + RECORD_SIZE);
+                received++;
+                continue;
+            }
+            if (received == lengths.length) {
+                int capacity = Math.min(chunkCount, Math.max(1024, lengths.length * 2));
+                hashes = Arrays.copyOf(hashes, capacity * 32);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            data.get(hashes, received * 32, 32);
+            int length = data.getInt();
+            lengths[received++] = length;
+            receivedBytes += length;
+            if (length <= 0 || length > Chunker.MAX_SIZE || receivedBytes > fileSize) {
+                manifestValid = false;
+            }
+        }
+    }
+
+    /**
+     * Finds a stored copy of every chunk, indexing the blob currently stored under
+     * the same name first since it is the most likely base. Returns the missing
+     * chunk indexes in the same range format as /upload.
+     */
+    String resolve() throws IOException {
+        String base = BlobStore.digestOf(fileName);
+        if (base != null) {
+            indexBlob(base);
+        }
+
+        sources = new Location[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            Location location = chunkIndex.get(chunkKey(i));
+            if (location != null && !Files.isRegularFile(BlobStore.blobPath(location.blob))) {
+                // The blob was collected after its name was overwritten
+                chunkIndex.remove(chunkKey(i), location);
+                indexedBlobs.remove(location.blob);
+                location = null;
+            }
+            if (location != null) {
+                sources[i] = location;
+            } else {
+                missing.set(i);
+                missingBytes += lengths[i];
+            }
+        }
+        bodyRemaining = missingBytes;
+
+        bodies = BlobStore.newTempFile();
+        bodiesChannel = FileChannel.open(bodies, StandardOpenOption.WRITE);
+        advanceChunk();
+        return ranges(missing, chunkCount);
+    }
+
+    boolean isResolved() {
+        return bodiesChannel != null && bodiesChannel.isOpen();
+    }
+
+    /** Body bytes still expected from the client. */
+    long bodyRemaining() {
+        return bodyRemaining;
+    }
+
+    boolean isBodyComplete() {
+        return bodyRemaining == 0;
+    }
+
+    /** Index of the first missing chunk whose body did not match its digest, or -1. */
+    int failedChunk() {
+        return failedChunk;
+    }
+
+    /** Appends received body bytes, verifying each chunk as its last byte arrives. */
+    void acceptBody(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && bodyRemaining > 0) {
+            int count = Math.min(data.remaining(), lengths[currentChunk] - currentFilled);
+            ByteBuffer slice = data.slice();
+            slice.limit(count);
+            currentDigest.update(slice.duplicate());
+            while (slice.hasRemaining()) {
+                bodiesChannel.write(slice);
+            }
+            data.position(data.position() + count);
+            currentFilled += count;
+            bodyRemaining -= count;
+
+            if (currentFilled == lengths[currentChunk]) {
+                if (failedChunk < 0 && !Arrays.equals(currentDigest.digest(), 0, 32,
+                        hashes, currentChunk * 32, currentChunk * 32 + 32)) {
+                    failedChunk = currentChunk;
+                }
+                advanceChunk();
+            }
+        }
+    }
+
+    private void advanceChunk() {
+        currentChunk = missing.nextSetBit(currentChunk + 1);
+        currentFilled = 0;
+        currentDigest = BlobStore.newDigest();
+    }
+
+    /**
+     * Writes the new version from stored and received chunks, publishes it
+     * through the BlobStore and indexes its chunks for later deltas.
+     */
+    void assemble() throws IOException {
+        bodiesChannel.close();
+        Path temp = BlobStore.newTempFile();
+        Map<String, FileChannel> blobs = new HashMap<>();
+        try {
+            MessageDigest whole = BlobStore.newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(Chunker.MAX_SIZE);
+            try (FileChannel output = FileChannel.open(temp, StandardOpenOption.WRITE);
+                    FileChannel received = FileChannel.open(bodies, StandardOpenOption.READ)) {
+                long receivedPosition = 0;
+                for (int i = 0; i < chunkCount; i++) {
+                    buffer.clear();
+                    buffer.limit(lengths[i]);
+                    if (missing.get(i)) {
+                        readFully(received, buffer, receivedPosition);
+                        receivedPosition += lengths[i];
+                    } else {
+                        FileChannel blob = blobs.get(sources[i].blob);
+                        if (blob == null) {
+                            blob = FileChannel.open(BlobStore.blobPath(sources[i].blob), StandardOpenOption.READ);
+                            blobs.put(sources[i].blob, blob);
+                        }
+                        readFully(blob, buffer, sources[i].offset);
+                        if (!Arrays.equals(Chunker.sha256(buffer.array(), 0, lengths[i]), 0, 32,
+                                hashes, i * 32, i * 32 + 32)) {
+                            chunkIndex.remove(chunkKey(i));
+                            throw new IOException("Stored chunk " + i + " no longer matches its digest");
+                        }
+                    }
+                    buffer.flip();
+                    whole.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                }
+            }
+
+            String digest = BlobStore.publish(temp, fileName, whole.digest());
+            temp = null;
+            indexedBlobs.add(digest);
+            long offset = 0;
+            for (int i = 0; i < chunkCount; i++) {
+                // The newest blob is the least likely to be collected soon
+                chunkIndex.put(chunkKey(i), new Location(digest, offset));
+                offset += lengths[i];
+            }
+        } finally {
+            for (FileChannel blob : blobs.values()) {
+                blob.close();
+            }
+            if (temp != null) {
+                BlobStore.discard(temp);
+            }
+        }
+    }
+
+    /** Releases the temp file holding received bodies. */
+    void discard() {
+        try {
+            if (bodiesChannel != null) {
+                bodiesChannel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error: Failed to close delta upload " + fileName);
+        }
+        if (bodies != null) {
+            BlobStore.discard(bodies);
+        }
+    }
+
+    private String chunkKey(int index) {
+        return HexFormat.of().formatHex(hashes, index * 32, index * 32 + 32);
+    }
+
+    private static void indexBlob(String digest) throws IOException {
+        // Chunks are read back by offset, which compressed blobs do not allow
+        if (!Files.isRegularFile(BlobStore.blobPath(digest)) || !indexedBlobs.add(digest)) {
+            return;
+        }
+        try (InputStream in = Files.newInputStream(BlobStore.blobPath(digest))) {
+            Chunker.chunk(in, (offset, data, from, length) -> chunkIndex.putIfAbsent(
+                    HexFormat.of().formatHex(Chunker.sha256(data, from, length)), new Location(digest, offset)));
+        } catch (IOException e) {
+            indexedBlobs.remove(digest);
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("Chunk source is shorter than expected");
+            }
+            position += bytesRead;
+        }
+    }
+
+    /** Formats set bits as comma-separated ranges, e.g. "0-3,7,9-12". */
+    private static String ranges(BitSet bits, int size) {
+        StringBuilder ranges = new StringBuilder();
+        int start = bits.nextSetBit(0);
+        while (start >= 0 && start < size) {
+            int end = bits.nextClearBit(start) - 1;
+            if (ranges.length() > 0) {
+                ranges.append(',');
+            }
+            ranges.append(start);
+            if (end > start) {
+                ranges.append('-').append(end);
+            }
+            start = bits.nextSetBit(end + 1);
+        }
+        return ranges.toString();
+    }
+}
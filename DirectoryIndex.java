@@ -0,0 +1,303 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * In-memory listing of the files in server_files, so /dir never scans the
+ * directory. Stores publish through update(); a WatchService thread picks up
+ * files added, replaced or removed behind the server's back. Every change gets
+ * the next version number, and removed files leave a tombstone for a while so
+ * clients can ask for the changes since the version they last saw.
+ */
+public class DirectoryIndex {
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10000;
+    private static final int MAX_TOMBSTONES = 100000;
+
+    private static final Path storageRoot = Paths.get(FileExchangeServer.STORAGE_DIR);
+
+    private static final NavigableMap<String, Entry> files = new ConcurrentSkipListMap<>();
+    private static final Map<String, Entry> tombstones = new ConcurrentHashMap<>();
+    // Latest version of each name, live or removed, in change order
+    private static final NavigableMap<Long, String> changes = new ConcurrentSkipListMap<>();
+    private static final ReentrantLock updateLock = new ReentrantLock();
+    private static volatile long version;
+    // Changes at or below this version may have lost their tombstone
+    private static volatile long horizon;
+
+    /**
+     * One listed file, or a tombstone if removed is set. Immutable. written is
+     * when this member recorded the change, or the file's mtime for files found
+     * at startup; cluster mode orders conflicting writes by it.
+     */
+    static class Entry {
+        final String name;
+        final long size;
+        final long modified;
+        final String sha256;
+        final long version;
+        final boolean removed;
+        final long written;
+
+        Entry(String name, long size, long modified, String sha256, long version, boolean removed, long written) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+            this.version = version;
+            this.removed = removed;
+            this.written = written;
+        }
+
+        /** "+ <size> <mtime> <sha256|-> <name>" for a file, "- <name>" for a removal. */
+        String format() {
+            if (removed) {
+                return "- " + name;
+            }
+            return "+ " + size + " " + modified + " " + (sha256 != null ? sha256 : "-") + " " + name;
+        }
+    }
+
+    /** One page of a listing or of a change feed. */
+    static class Page {
+        final long version;
+        final List<Entry> entries;
+        final boolean more;
+
+        Page(long version, List<Entry> entries, boolean more) {
+            this.version = version;
+            this.entries = entries;
+            this.more = more;
+        }
+    }
+
+    private DirectoryIndex() {
+    }
+
+    /** Loads the current directory contents and starts watching for outside changes. */
+    static void init() throws IOException {
+        WatchService watcher = storageRoot.getFileSystem().newWatchService();
+        storageRoot.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        rescan(true);
+
+        Thread thread = new Thread(() -> watch(watcher), "directory-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    try {
+                        rescan(false);
+                    } catch (IOException e) {
+                        System.out.println("Error: Failed to rescan " + storageRoot);
+                    }
+                } else {
+                    update(((Path) event.context()).toString());
+                }
+            }
+            if (!key.reset()) {
+                System.out.println("Error: Stopped watching " + storageRoot);
+                return;
+            }
+        }
+    }
+
+    /** Reconciles the index with a full directory scan; loading is set for the scan at startup. */
+    private static void rescan(boolean loading) throws IOException {
+        Set<String> present = new HashSet<>();
+        try (Stream<Path> listing = Files.list(storageRoot)) {
+            listing.forEach(path -> present.add(path.getFileName().toString()));
+        }
+        present.addAll(ColdStore.names());
+        for (String name : present) {
+            update(name, loading);
+        }
+        for (String name : files.keySet()) {
+            if (!present.contains(name)) {
+                update(name, loading);
+            }
+        }
+    }
+
+    /**
+     * Re-reads one name from disk and records a new version if its size, mtime or
+     * digest changed, or if it appeared or disappeared.
+     */
+    static void update(String name) {
+        update(name, false);
+    }
+
+    private static void update(String name, boolean loading) {
+        // Dot entries hold server bookkeeping such as in-progress uploads
+        if (name.startsWith(".")) {
+            return;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(storageRoot.resolve(name), BasicFileAttributes.class);
+        } catch (IOException e) {
+            attributes = null;
+        }
+
+        updateLock.lock();
+        try {
+            Entry current = files.get(name);
+            ColdStore.Location cold = attributes == null ? ColdStore.location(name) : null;
+            if (cold == null && (attributes == null || !attributes.isRegularFile())) {
+                if (current != null) {
+                    files.remove(name);
+                    record(new Entry(name, 0, 0, null, version + 1, true, System.currentTimeMillis()), current);
+                }
+                return;
+            }
+            long size;
+            long modified;
+            String sha256;
+            if (cold != null) {
+                // Packed into a segment; listed as it was when hot
+                size = cold.size;
+                modified = cold.modified;
+                sha256 = cold.sha256;
+            } else {
+                size = attributes.size();
+                if (BlobStore.isCompressed(name)) {
+                    try {
+                        size = BlobStore.contentSize(name);
+                    } catch (IOException e) {
+                        // Keep the file size; the next change event retries
+                    }
+                }
+                modified = attributes.lastModifiedTime().toMillis();
+                sha256 = BlobStore.digestOf(name);
+            }
+            if (current != null && current.size == size && current.modified == modified
+                    && (sha256 == null ? current.sha256 == null : sha256.equals(current.sha256))) {
+                return;
+            }
+            // Files already here at startup keep their mtime, so a restart does not make them the newest
+            long written = loading ? modified : System.currentTimeMillis();
+            Entry entry = new Entry(name, size, modified, sha256, version + 1, false, written);
+            files.put(name, entry);
+            record(entry, current != null ? current : tombstones.remove(name));
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    private static void record(Entry entry, Entry previous) {
+        if (previous != null) {
+            changes.remove(previous.version);
+        }
+        changes.put(entry.version, entry.name);
+        if (entry.removed) {
+            tombstones.put(entry.name, entry);
+            if (tombstones.size() > MAX_TOMBSTONES) {
+                forgetOldestTombstone();
+            }
+        }
+        version = entry.version;
+    }
+
+    private static void forgetOldestTombstone() {
+        for (Map.Entry<Long, String> change : changes.entrySet()) {
+            Entry tombstone = tombstones.get(change.getValue());
+            if (tombstone != null && tombstone.version == change.getKey()) {
+                tombstones.remove(tombstone.name);
+                changes.remove(change.getKey());
+                horizon = Math.max(horizon, tombstone.version);
+                return;
+            }
+        }
+    }
+
+    static long version() {
+        return version;
+    }
+
+    /** The listed file with that name, or null. */
+    static Entry get(String name) {
+        return files.get(name);
+    }
+
+    /** Names of all listed files in order, for the plain /dir reply. */
+    static Set<String> names() {
+        return files.keySet();
+    }
+
+    /**
+     * Up to limit files whose names start with prefix, in name order, after the
+     * given name (exclusive; null for the first page).
+     */
+    static Page list(String prefix, String after, int limit) {
+        long snapshot = version;
+        NavigableMap<String, Entry> view = files;
+        if (after != null && after.compareTo(prefix) >= 0) {
+            view = view.tailMap(after, false);
+        } else {
+            view = view.tailMap(prefix, true);
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : view.values()) {
+            if (!entry.name.startsWith(prefix)) {
+                return new Page(snapshot, entries, false);
+            }
+            if (entries.size() == limit) {
+                return new Page(snapshot, entries, true);
+            }
+            entries.add(entry);
+        }
+        return new Page(snapshot, entries, false);
+    }
+
+    /**
+     * Up to limit changes after version since, oldest first, including removals.
+     * The page version is the one to ask for next. Returns null if tombstones
+     * after since have been forgotten, so the client has to list again.
+     */
+    static Page changesSince(long since, String prefix, int limit) {
+        if (since < horizon) {
+            return null;
+        }
+        long snapshot = version;
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<Long, String> change : changes.tailMap(since, false).entrySet()) {
+            if (change.getKey() > snapshot) {
+                break;
+            }
+            if (entries.size() == limit) {
+                return new Page(entries.get(entries.size() - 1).version, entries, true);
+            }
+            String name = change.getValue();
+            Entry entry = files.get(name);
+            if (entry == null || entry.version != change.getKey()) {
+                entry = tombstones.get(name);
+            }
+            // Skip names changed again since this feed started; they show up later
+            if (entry != null && entry.version == change.getKey() && name.startsWith(prefix)) {
+                entries.add(entry);
+            }
+        }
+        return new Page(snapshot, entries, false);
+    }
+}
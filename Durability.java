@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * When stored files are forced to disk, selected with --fsync:
+ *
+ * none          nothing is forced; a crash may lose recent uploads, or leave a
+ *               visible name whose body never reached the disk
+ * on-close      each upload forces its body before it is published, then the
+ *               directory entries and index record that publish it
+ * group-commit  as on-close, but uploads hand their files to one committer
+ *               thread that forces everything queued since its last round
+ *               once, so concurrent uploads share the directory and index syncs
+ *
+ * An upload is only acknowledged after sync() returns.
+ */
+public class Durability {
+    static final String NONE = "none";
+    static final String ON_CLOSE = "on-close";
+    static final String GROUP_COMMIT = "group-commit";
+
+    private static String policy = NONE;
+    private static LinkedBlockingQueue<Commit> pending;
+
+    /** Files one caller is waiting on, completed by the committer. */
+    private static class Commit {
+        final List<Path> paths;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Commit(List<Path> paths) {
+            this.paths = paths;
+        }
+    }
+
+    private Durability() {
+    }
+
+    static boolean isSupported(String name) {
+        return name.equals(NONE) || name.equals(ON_CLOSE) || name.equals(GROUP_COMMIT);
+    }
+
+    /** Selects the policy. Call before serving. */
+    static void configure(String name) {
+        policy = name;
+        if (name.equals(GROUP_COMMIT) && pending == null) {
+            pending = new LinkedBlockingQueue<>();
+            Thread committer = new Thread(Durability::commitLoop, "group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    static boolean isEnabled() {
+        return !policy.equals(NONE);
+    }
+
+    /**
+     * Forces the files and directories to disk according to the policy, returning
+     * once they are durable. Directories are forced so that a rename or link
+     * into them survives a crash.
+     */
+    static void sync(Path... paths) throws IOException {
+        if (policy.equals(NONE)) {
+            return;
+        }
+        if (policy.equals(ON_CLOSE)) {
+            for (Path path : paths) {
+                force(path);
+            }
+            return;
+        }
+        Commit commit = new Commit(Arrays.asList(paths));
+        pending.add(commit);
+        try {
+            commit.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for group commit");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private static void commitLoop() {
+        List<Commit> round = new ArrayList<>();
+        while (true) {
+            try {
+                round.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Everything that queued up while the previous round was forcing
+            pending.drainTo(round);
+            Metrics.recordFsyncBatch(round.size());
+            Set<Path> paths = new LinkedHashSet<>();
+            for (Commit commit : round) {
+                paths.addAll(commit.paths);
+            }
+            Set<Path> failed = new LinkedHashSet<>();
+            IOException failure = null;
+            for (Path path : paths) {
+                try {
+                    force(path);
+                } catch (IOException e) {
+                    failed.add(path);
+                    failure = e;
+                }
+            }
+            for (Commit commit : round) {
+                if (failure != null && commit.paths.stream().anyMatch(failed::contains)) {
+                    commit.done.completeExceptionally(failure);
+                } else {
+                    commit.done.complete(null);
+                }
+            }
+            round.clear();
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        boolean directory = Files.isDirectory(path);
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+            Metrics.recordFsync(System.nanoTime() - start);
+        } catch (IOException e) {
+            // Some platforms cannot open directories; their entries are durable
+            // through the file system's own metadata handling or not at all
+            if (!directory) {
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,930 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Headless client for the file exchange protocol, safe to share between threads
+ * and needing no display. Every operation returns a CompletableFuture and runs
+ * on a connection of its own from a pool, so concurrent transfers never share a
+ * stream. Connections are opened on demand, at most maxConnections at a time;
+ * further operations wait for one to come free. Each connection offers the
+ * client's codecs once when it opens, and is reused until it fails.
+ *
+ * Uploads offer the SHA-256 first with /have and send nothing if the server
+ * already holds the content. Otherwise they go as a chunked /upload, which the
+ * server can resume, or as a /delta when delta uploads are on. Downloads use
+ * one /get, or parallel byte ranges verified against /stat when
+ * downloadStreams is above 1.
+ *
+ * Pooled connections are not registered: the server allows each alias on one
+ * connection only. Progress callbacks run on the transferring thread, and a
+ * GUI hands them to its event thread.
+ *
+ * With setTls every connection is TLS. All of them come from one SSLContext,
+ * so after the first handshake the others resume its session.
+ *
+ * A cluster member answers "MOVED <host>:<port>" for a name another member
+ * owns. The operation is then run once more against that member, through a
+ * client of its own kept for later redirects.
+ */
+public class ExchangeClient implements AutoCloseable {
+    static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    static final long RANGE_SIZE = 8L * 1024 * 1024;
+    private static final int LIST_PAGE = 1000;
+
+    /** Bytes, or for /mget files, moved so far out of the total. */
+    interface Progress {
+        Progress NONE = (transferred, total) -> {
+        };
+
+        void update(long transferred, long total);
+    }
+
+    /** An "Error: ..." reply. The connection is still in step and goes back to the pool. */
+    static class ReplyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ReplyException(String reply) {
+            super(reply);
+        }
+    }
+
+    /** A "MOVED <host>:<port>" reply: another cluster member owns the name. */
+    static class MovedException extends ReplyException {
+        private static final long serialVersionUID = 1L;
+
+        final String address;
+
+        MovedException(String reply) {
+            super(reply);
+            this.address = reply.substring(6).trim();
+        }
+    }
+
+    /**
+     * The reply to /stat. A peer connection also gets the write stamp of the
+     * copy; written is 0 and origin null otherwise.
+     */
+    static class Stat {
+        final long size;
+        final String sha256;
+        final long written;
+        final String origin;
+
+        Stat(long size, String sha256, long written, String origin) {
+            this.size = size;
+            this.sha256 = sha256;
+            this.written = written;
+            this.origin = origin;
+        }
+    }
+
+    /** The report of an /mstore: how many were stored, and a "FAILED <reason> <name>" line per failure. */
+    static class BatchReport {
+        final int stored;
+        final List<String> failures;
+
+        BatchReport(int stored, List<String> failures) {
+            this.stored = stored;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Names added to and removed from a server's listing, and the /dir version
+     * they bring it up to. With reset set they are the whole listing instead.
+     */
+    static class Changes {
+        final long version;
+        final boolean reset;
+        final List<String> added;
+        final List<String> removed;
+
+        Changes(long version, boolean reset, List<String> added, List<String> removed) {
+            this.version = version;
+            this.reset = reset;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    private interface Exchange<T> {
+        T run(Connection connection) throws IOException;
+    }
+
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "exchange-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile String codecs = String.join(" ", Compression.CODECS);
+    private volatile boolean deltaUploads;
+    private volatile int downloadStreams = 1;
+    private volatile boolean peer;
+    private volatile SSLContext tls;
+    private volatile boolean closed;
+    // Clients for the members that MOVED replies pointed to, by "host:port"
+    private final Map<String, ExchangeClient> redirects = new ConcurrentHashMap<>();
+
+    ExchangeClient(String host, int port, int maxConnections) {
+        this.host = host;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /** Codecs offered to the server, in order of preference; "none" turns compression off. */
+    void setCodecs(String codecs) {
+        this.codecs = codecs;
+    }
+
+    /** Sends uploads as content-defined chunk manifests, so only changed chunks go over the wire. */
+    void setDeltaUploads(boolean deltaUploads) {
+        this.deltaUploads = deltaUploads;
+    }
+
+    /** Connections a single download is split across, in RANGE_SIZE ranges. */
+    void setDownloadStreams(int downloadStreams) {
+        this.downloadStreams = Math.max(1, downloadStreams);
+    }
+
+    /** Connects with TLS through this context, which must trust the server's certificate; null for plaintext. */
+    void setTls(SSLContext tls) {
+        this.tls = tls;
+    }
+
+    /**
+     * Announces each connection with /peer, so a cluster member serves it from
+     * its own files instead of routing by owner. Only members set this.
+     */
+    void setPeer(boolean peer) {
+        this.peer = peer;
+    }
+
+    /** Stores the file under name; completes with the server's confirmation line. */
+    CompletableFuture<String> upload(Path file, String name, Progress progress) {
+        return submit(connection -> {
+            long size = Files.size(file);
+            String sha256 = HexFormat.of().formatHex(sha256(file));
+            connection.command("/have " + sha256 + " " + size + " " + name);
+            String reply = connection.reply();
+            if (reply.startsWith("File uploaded successfully")) {
+                progress.update(size, size);
+                return reply;
+            }
+            if (!reply.equals("SEND")) {
+                throw failure(reply);
+            }
+            return deltaUploads ? sendDelta(connection, file, name, size, progress)
+                    : sendChunked(connection, file, name, size, sha256, progress);
+        });
+    }
+
+    /**
+     * Stores the files under their own names in one /mstore. Completes with the
+     * report, which lists the files the server failed to store.
+     */
+    CompletableFuture<BatchReport> uploadAll(List<Path> files, Progress progress) {
+        return submit(connection -> {
+            long total = 0;
+            for (Path file : files) {
+                total += Files.size(file);
+            }
+            long sent = 0;
+            byte[] buffer = new byte[64 * 1024];
+            connection.command("/mstore " + files.size());
+            for (Path file : files) {
+                long length = Files.size(file);
+                connection.out.write(BatchTransfer.header(file.getFileName().toString(), length));
+                try (InputStream in = Files.newInputStream(file)) {
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("File changed during upload: " + file);
+                        }
+                        connection.out.write(buffer, 0, bytesRead);
+                        remaining -= bytesRead;
+                        sent += bytesRead;
+                        progress.update(sent, total);
+                    }
+                }
+            }
+            connection.out.flush();
+
+            String reply = connection.reply();
+            if (!reply.startsWith("BATCH ")) {
+                throw failure(reply);
+            }
+            String[] counts = reply.split(" ");
+            List<String> failures = new ArrayList<>();
+            for (int i = Integer.parseInt(counts[2]); i > 0; i--) {
+                failures.add(connection.reply());
+            }
+            return new BatchReport(Integer.parseInt(counts[1]), failures);
+        });
+    }
+
+    /** Fetches name into target; completes with its size. */
+    CompletableFuture<Long> download(String name, Path target, Progress progress) {
+        if (downloadStreams > 1) {
+            return downloadParallel(name, target, progress);
+        }
+        return submit(connection -> {
+            String codec = connection.codec;
+            connection.command("/get " + (codec != null ? "codec=" + codec + " " : "") + name);
+            String header = connection.reply();
+            if (!header.startsWith("OK ")) {
+                throw failure(header);
+            }
+            String[] parts = header.split(" ");
+            long size = Long.parseLong(parts[1]);
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (parts.length == 4) {
+                    receiveCompressed(connection.in, Long.parseLong(parts[3]), size, channel, progress);
+                } else {
+                    receive(connection.in, size, channel, 0, progress, new AtomicLong(), size);
+                }
+            }
+            // Completion line
+            connection.reply();
+            return size;
+        });
+    }
+
+    /**
+     * Fetches names into directory, each under its base name, in one /mget.
+     * Completes with how many were received; names the server could not read
+     * are skipped.
+     */
+    CompletableFuture<Integer> downloadAll(List<String> names, Path directory, Progress progress) {
+        return submit(connection -> {
+            StringBuilder request = new StringBuilder("/mget " + names.size());
+            for (String name : names) {
+                request.append('\n').append(name);
+            }
+            connection.command(request.toString());
+            String header = connection.reply();
+            if (!header.startsWith("MGET ")) {
+                throw failure(header);
+            }
+
+            int received = 0;
+            for (int i = 0; i < names.size(); i++) {
+                byte[] encodedName = new byte[connection.in.readUnsignedShort()];
+                connection.in.readFully(encodedName);
+                String fileName = Paths.get(new String(encodedName, StandardCharsets.UTF_8)).getFileName().toString();
+                long size = connection.in.readLong();
+                if (size >= 0) {
+                    try (FileChannel channel = FileChannel.open(directory.resolve(fileName), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        receive(connection.in, size, channel, 0, Progress.NONE, new AtomicLong(), size);
+                    }
+                    received++;
+                }
+                progress.update(i + 1, names.size());
+            }
+            return received;
+        });
+    }
+
+    CompletableFuture<Stat> stat(String name) {
+        return submit(connection -> {
+            connection.command("/stat " + name);
+            String reply = connection.reply();
+            if (!reply.startsWith("STAT ")) {
+                throw failure(reply);
+            }
+            String[] parts = reply.split(" ");
+            return parts.length >= 5
+                    ? new Stat(Long.parseLong(parts[1]), parts[2], Long.parseLong(parts[3]), parts[4])
+                    : new Stat(Long.parseLong(parts[1]), parts[2], 0, null);
+        });
+    }
+
+    /**
+     * Announces the write stamp of a copy of name about to be pushed to a member,
+     * for a peer connection. Fails with the reply if the member holds a later
+     * write of name.
+     */
+    CompletableFuture<Void> stamp(String name, String sha256, long written, String origin) {
+        return submit(connection -> {
+            connection.command("/stamp " + sha256 + " " + written + " " + origin + " " + name);
+            String reply = connection.reply();
+            if (!reply.equals("STAMPED")) {
+                throw failure(reply);
+            }
+            return null;
+        });
+    }
+
+    /** Every stored name, read a page of /dir at a time. */
+    CompletableFuture<List<String>> list() {
+        return submit(connection -> {
+            List<String> names = new ArrayList<>();
+            boolean more = true;
+            while (more) {
+                // after= runs to the end of the line, so it goes last
+                connection.command("/dir limit=" + LIST_PAGE
+                        + (names.isEmpty() ? "" : " after=" + names.get(names.size() - 1)));
+                String header = connection.reply();
+                if (!header.startsWith("DIR ")) {
+                    throw failure(header);
+                }
+                String[] parts = header.split(" ");
+                for (int i = Integer.parseInt(parts[2]); i > 0; i--) {
+                    // "+ <size> <modified> <sha256> <name>"
+                    names.add(connection.reply().split(" ", 5)[4]);
+                }
+                more = parts[3].equals("1");
+            }
+            return names;
+        });
+    }
+
+    /**
+     * The changes to the listing after version since, read a page of
+     * "/dir since=" at a time. With since below zero, or once the server has
+     * forgotten changes that old, completes with the whole listing instead.
+     */
+    CompletableFuture<Changes> changesSince(long since) {
+        return submit(connection -> {
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            long version = since;
+            boolean more = since >= 0;
+            while (more) {
+                connection.command("/dir since=" + version + " limit=" + LIST_PAGE);
+                String header = connection.reply();
+                if (header.startsWith("Error: Changes since")) {
+                    return listAll(connection);
+                }
+                if (!header.startsWith("DIR ")) {
+                    throw failure(header);
+                }
+                String[] parts = header.split(" ");
+                for (int i = Integer.parseInt(parts[2]); i > 0; i--) {
+                    // "+ <size> <modified> <sha256> <name>" or "- <name>"
+                    String entry = connection.reply();
+                    if (entry.startsWith("-")) {
+                        removed.add(entry.split(" ", 2)[1]);
+                    } else {
+                        added.add(entry.split(" ", 5)[4]);
+                    }
+                }
+                version = Long.parseLong(parts[1]);
+                more = parts[3].equals("1");
+            }
+            return since >= 0 ? new Changes(version, false, added, removed) : listAll(connection);
+        });
+    }
+
+    /** The whole listing, as of the version of its first page; later pages may be newer. */
+    private static Changes listAll(Connection connection) throws IOException {
+        List<String> names = new ArrayList<>();
+        long version = -1;
+        boolean more = true;
+        while (more) {
+            connection.command("/dir limit=" + LIST_PAGE
+                    + (names.isEmpty() ? "" : " after=" + names.get(names.size() - 1)));
+            String header = connection.reply();
+            if (!header.startsWith("DIR ")) {
+                throw failure(header);
+            }
+            String[] parts = header.split(" ");
+            if (version < 0) {
+                version = Long.parseLong(parts[1]);
+            }
+            for (int i = Integer.parseInt(parts[2]); i > 0; i--) {
+                names.add(connection.reply().split(" ", 5)[4]);
+            }
+            more = parts[3].equals("1");
+        }
+        return new Changes(version, true, names, List.of());
+    }
+
+    /** Closes idle connections; operations already running finish on theirs. */
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdown();
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+        for (ExchangeClient redirect : redirects.values()) {
+            redirect.close();
+        }
+    }
+
+    /**
+     * Runs the exchange on a pooled connection. A connection that fails is
+     * dropped. If it had been sitting in the pool, the exchange is tried once
+     * more on a fresh one, since the server may have closed it while idle. A
+     * MOVED reply runs it again on the member named, but not a second time.
+     */
+    private <T> CompletableFuture<T> submit(Exchange<T> exchange) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Client is closed"));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                try {
+                    return call(exchange);
+                } catch (MovedException e) {
+                    return redirect(e.address).call(exchange);
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    private <T> T call(Exchange<T> exchange) throws IOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+        }
+        try {
+            Connection pooled = idle.poll();
+            if (pooled != null) {
+                try {
+                    return exchange(pooled, exchange);
+                } catch (ReplyException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // Dropped while idle, most likely; retried below
+                }
+            }
+            return exchange(new Connection(), exchange);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** The client for the member a MOVED reply named, with the same settings as this one. */
+    private ExchangeClient redirect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Unexpected reply: MOVED " + address);
+        }
+        try {
+            int redirectPort = Integer.parseInt(address.substring(colon + 1));
+            return redirects.computeIfAbsent(address, key -> {
+                ExchangeClient client = new ExchangeClient(address.substring(0, colon), redirectPort, maxConnections);
+                client.codecs = codecs;
+                client.deltaUploads = deltaUploads;
+                client.peer = peer;
+                client.tls = tls;
+                return client;
+            });
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected reply: MOVED " + address);
+        }
+    }
+
+    private <T> T exchange(Connection connection, Exchange<T> exchange) throws IOException {
+        try {
+            T result = exchange.run(connection);
+            release(connection);
+            return result;
+        } catch (ReplyException e) {
+            if (connection.pipelined) {
+                // Replies to the commands sent after the failed one are still unread
+                connection.close();
+            } else {
+                release(connection);
+            }
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // Part of a body may be unread or unsent, so the stream is lost
+            connection.close();
+            throw e;
+        }
+    }
+
+    private void release(Connection connection) {
+        idle.push(connection);
+        if (closed && idle.remove(connection)) {
+            connection.close();
+        }
+    }
+
+    /**
+     * The exception for an unexpected reply. Anything but an error line means the
+     * two sides disagree about the protocol, so that connection is not reused.
+     */
+    private static IOException failure(String reply) {
+        if (reply.startsWith("MOVED ")) {
+            return new MovedException(reply);
+        }
+        return reply.startsWith("Error") ? new ReplyException(reply) : new IOException("Unexpected reply: " + reply);
+    }
+
+    /**
+     * Sends the chunks the server reports missing, then answers each "NAK <index>"
+     * by sending that chunk again until the server confirms the upload.
+     */
+    private static String sendChunked(Connection connection, Path file, String name, long size, String sha256,
+            Progress progress) throws IOException {
+        connection.command("/upload " + size + " " + CHUNK_SIZE + " " + sha256 + " " + name);
+        String reply = connection.reply();
+        if (!reply.startsWith("MISSING")) {
+            throw failure(reply);
+        }
+        BitSet missing = parseRanges(reply.substring(7).trim());
+        long sent = size;
+        for (int index = missing.nextSetBit(0); index >= 0; index = missing.nextSetBit(index + 1)) {
+            sent -= Math.min(CHUNK_SIZE, size - (long) index * CHUNK_SIZE);
+        }
+        progress.update(sent, size);
+
+        connection.pipelined = true;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            for (int index = missing.nextSetBit(0); index >= 0; index = missing.nextSetBit(index + 1)) {
+                sent += sendChunk(connection, channel, index, buffer);
+                progress.update(sent, size);
+            }
+            while (true) {
+                reply = connection.reply();
+                if (reply.startsWith("NAK ")) {
+                    // Checksum mismatch on the server; send that chunk again
+                    sendChunk(connection, channel, Integer.parseInt(reply.substring(4).trim()), buffer);
+                } else if (reply.startsWith("File uploaded successfully")) {
+                    connection.pipelined = false;
+                    return reply;
+                } else {
+                    throw failure(reply);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends one "/chunk <index> <offset> <length> <crc32c>" line and the raw
+     * bytes, or the compressed bytes if the line also names a codec and their
+     * length. Returns the chunk's length.
+     */
+    private static int sendChunk(Connection connection, FileChannel channel, int index, ByteBuffer buffer)
+            throws IOException {
+        long offset = (long) index * CHUNK_SIZE;
+        buffer.clear();
+        buffer.limit((int) Math.min(CHUNK_SIZE, channel.size() - offset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new EOFException("File changed during upload");
+            }
+        }
+        buffer.flip();
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        String header = "/chunk " + index + " " + offset + " " + buffer.remaining() + " "
+                + Integer.toHexString((int) crc.getValue());
+
+        // The checksum covers the original bytes, so the server verifies after inflating
+        String codec = connection.codec;
+        if (codec != null && Compression.isCompressible(buffer.array(), 0, buffer.remaining())) {
+            byte[] compressed = Compression.compress(buffer.array(), 0, buffer.remaining(), codec);
+            if (compressed.length < buffer.remaining() * 0.9) {
+                connection.write(header + " " + codec + " " + compressed.length);
+                connection.out.write(compressed);
+                connection.out.flush();
+                return buffer.remaining();
+            }
+        }
+        connection.write(header);
+        connection.out.write(buffer.array(), 0, buffer.remaining());
+        connection.out.flush();
+        return buffer.remaining();
+    }
+
+    /**
+     * Offers the file as a manifest of content-defined chunks: a "/delta" line
+     * followed by a 32-byte SHA-256 and 4-byte length per chunk. The server
+     * answers "NEED <ranges>" with the chunks it does not already hold, and
+     * their bodies follow back to back.
+     */
+    private static String sendDelta(Connection connection, Path file, String name, long size, Progress progress)
+            throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(records);
+        List<Integer> lengths = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            Chunker.chunk(in, (offset, data, from, length) -> {
+                recordOut.write(Chunker.sha256(data, from, length));
+                recordOut.writeInt(length);
+                lengths.add(length);
+            });
+        }
+        connection.write("/delta " + size + " " + lengths.size() + " " + name);
+        records.writeTo(connection.out);
+        connection.out.flush();
+
+        String reply = connection.reply();
+        if (!reply.startsWith("NEED")) {
+            throw failure(reply);
+        }
+        BitSet needed = parseRanges(reply.substring(4).trim());
+        long[] offsets = new long[lengths.size()];
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = offsets[i - 1] + lengths.get(i - 1);
+        }
+        long sent = size;
+        for (int index = needed.nextSetBit(0); index >= 0; index = needed.nextSetBit(index + 1)) {
+            sent -= lengths.get(index);
+        }
+        progress.update(sent, size);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Chunker.MAX_SIZE);
+            for (int index = needed.nextSetBit(0); index >= 0; index = needed.nextSetBit(index + 1)) {
+                buffer.clear();
+                buffer.limit(lengths.get(index));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, offsets[index] + buffer.position()) == -1) {
+                        throw new EOFException("File changed during upload");
+                    }
+                }
+                connection.out.write(buffer.array(), 0, buffer.limit());
+                sent += buffer.limit();
+                progress.update(sent, size);
+            }
+        }
+        connection.out.flush();
+
+        reply = connection.reply();
+        if (!reply.startsWith("File uploaded successfully")) {
+            throw failure(reply);
+        }
+        return reply;
+    }
+
+    /**
+     * Splits the download across downloadStreams pooled connections. Each claims
+     * the next RANGE_SIZE range, fetches it with "/get bytes=<first>-<last>" and
+     * writes it into the preallocated file with positional writes. A stream keeps
+     * its claim until the range is written, so when submit runs it again on a
+     * fresh connection it fetches that range first. The result is checked against
+     * the SHA-256 reported by /stat.
+     */
+    private CompletableFuture<Long> downloadParallel(String name, Path target, Progress progress) {
+        return stat(name).thenCompose(stat -> {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                if (stat.size > 0) {
+                    channel.write(ByteBuffer.allocate(1), stat.size - 1);
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            AtomicLong nextOffset = new AtomicLong();
+            AtomicLong received = new AtomicLong();
+            List<CompletableFuture<Void>> streams = new ArrayList<>();
+            for (int i = 0; i < downloadStreams; i++) {
+                // The offset this stream has claimed and not yet written, or -1
+                long[] claimed = { -1 };
+                streams.add(submit(connection -> {
+                    fetchRanges(connection, name, stat.size, nextOffset, claimed, channel, received, progress);
+                    return null;
+                }));
+            }
+            return CompletableFuture.allOf(streams.toArray(new CompletableFuture<?>[0])).whenComplete((done, error) -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }).thenApply(done -> {
+                try {
+                    if (!HexFormat.of().formatHex(sha256(target)).equals(stat.sha256)) {
+                        throw new CompletionException(new IOException("Received file failed digest verification"));
+                    }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                return stat.size;
+            });
+        });
+    }
+
+    private static void fetchRanges(Connection connection, String name, long size, AtomicLong nextOffset,
+            long[] claimed, FileChannel target, AtomicLong received, Progress progress) throws IOException {
+        while (true) {
+            if (claimed[0] < 0) {
+                claimed[0] = nextOffset.getAndAdd(RANGE_SIZE);
+            }
+            long offset = claimed[0];
+            if (offset >= size) {
+                return;
+            }
+            long last = Math.min(offset + RANGE_SIZE, size) - 1;
+            connection.command("/get bytes=" + offset + "-" + last + " " + name);
+            String header = connection.reply();
+            if (!header.startsWith("OK ")) {
+                throw failure(header);
+            }
+            receive(connection.in, Long.parseLong(header.substring(3).trim()), target, offset, progress, received,
+                    size);
+            // Completion line
+            connection.reply();
+            claimed[0] = -1;
+        }
+    }
+
+    /**
+     * Copies count bytes of the stream to the channel at position, adding them to
+     * received. On failure they are taken off again, since they will be fetched again.
+     */
+    private static void receive(DataInputStream in, long count, FileChannel target, long position,
+            Progress progress, AtomicLong received, long total) throws IOException {
+        byte[] buffer = new byte[256 * 1024];
+        long remaining = count;
+        try {
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed during transfer");
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (data.hasRemaining()) {
+                    position += target.write(data, position);
+                }
+                remaining -= bytesRead;
+                progress.update(received.addAndGet(bytesRead), total);
+            }
+        } catch (IOException e) {
+            received.addAndGet(remaining - count);
+            throw e;
+        }
+    }
+
+    /** Inflates wireSize compressed bytes, which must come to exactly fileSize bytes. */
+    private static void receiveCompressed(DataInputStream in, long wireSize, long fileSize, FileChannel target,
+            Progress progress) throws IOException {
+        Compression.Decoder decoder = new Compression.Decoder(fileSize);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = wireSize;
+            long[] written = { 0 };
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Connection closed during transfer");
+                }
+                decoder.accept(ByteBuffer.wrap(buffer, 0, bytesRead), data -> {
+                    written[0] += data.remaining();
+                    while (data.hasRemaining()) {
+                        target.write(data);
+                    }
+                });
+                remaining -= bytesRead;
+                progress.update(written[0], fileSize);
+            }
+        } finally {
+            decoder.end();
+        }
+        if (!decoder.isValid()) {
+            throw new IOException("Received file is corrupt");
+        }
+    }
+
+    /** Parses a server range list such as "0-3,7,9-12" into the set of indexes. */
+    static BitSet parseRanges(String ranges) {
+        BitSet indexes = new BitSet();
+        for (String range : ranges.split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+            indexes.set(first, last + 1);
+        }
+        return indexes;
+    }
+
+    static byte[] sha256(Path path) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    /** One pooled connection, used by one operation at a time. */
+    private class Connection implements Closeable {
+        final SocketChannel socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        // Codec both sides support, or null; from the CODECS reply to the offer sent on connect
+        final String codec;
+        // Set while commands have been sent ahead of their replies
+        boolean pipelined;
+
+        Connection() throws IOException {
+            socket = SocketChannel.open(new InetSocketAddress(host, port));
+            try {
+                socket.socket().setTcpNoDelay(true);
+                SSLContext context = tls;
+                if (context != null) {
+                    TlsChannel secure = TlsChannel.client(socket, context, host, port);
+                    secure.handshake();
+                    in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(secure), 64 * 1024));
+                    out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(secure), 64 * 1024));
+                } else {
+                    in = new DataInputStream(new BufferedInputStream(socket.socket().getInputStream(), 64 * 1024));
+                    out = new DataOutputStream(new BufferedOutputStream(socket.socket().getOutputStream(),
+                            64 * 1024));
+                }
+                // Greeting
+                reply();
+                String offered = codecs;
+                String chosen = null;
+                if (!offered.equals("none")) {
+                    // Servers without compression answer with an error
+                    command("/codecs " + offered);
+                    String[] reply = reply().split(" ");
+                    if (reply[0].equals("CODECS") && reply.length > 1) {
+                        chosen = reply[1];
+                    }
+                }
+                codec = chosen;
+                if (peer) {
+                    command("/peer");
+                    String reply = reply();
+                    if (!reply.equals("PEER")) {
+                        throw failure(reply);
+                    }
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /** Writes a command line, without flushing; a body may follow. */
+        void write(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void command(String line) throws IOException {
+            write(line);
+            out.flush();
+        }
+
+        String reply() throws IOException {
+            String line = FileExchangeServer.readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed by the server");
+            }
+            return line;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to flush
+            }
+        }
+    }
+}
@@ -1,16 +1,55 @@
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
 import javax.swing.*;
 
+/**
+ * Swing front end. Commands typed or chosen from the buttons go over one console
+ * connection, whose replies a reader thread prints. Transfers go through an
+ * ExchangeClient on pooled connections of their own, so they never freeze the
+ * event thread or share a stream with the console. Their progress and results
+ * are handed back to the event thread.
+ */
 public class FileExchangeClient extends JFrame {
+    private static final long serialVersionUID = 1L;
+    // Parallel downloads: -Ddownload.streams=N fetches /get in byte ranges over N connections
+    private static final int DOWNLOAD_STREAMS = Integer.getInteger("download.streams", 1);
+    // Transfers that may run at once, each on a connection of its own
+    private static final int TRANSFER_CONNECTIONS = Math.max(DOWNLOAD_STREAMS,
+            Integer.getInteger("transfer.connections", 4));
+    // -Dupload.mode=delta sends a content-defined chunk manifest so only changed chunks are sent
+    private static final boolean DELTA_UPLOADS = "delta".equals(System.getProperty("upload.mode", "chunked"));
+    // Codecs offered to the server, in order of preference; -Dtransfer.codecs=none turns compression off
+    private static final String OFFERED_CODECS = System.getProperty("transfer.codecs",
+            String.join(" ", Compression.CODECS));
+    // -Dtransfer.tls=on connects with TLS, trusting the JDK's certificates; a path instead names
+    // a truststore (e.g. the server's self-signed certificate), opened with -Dtransfer.tls.password
+    private static final String TLS = System.getProperty("transfer.tls", "off");
+
     private Socket socket;
     private PrintWriter out;
-    private BufferedReader in;
+    private DataInputStream in;
+    private ExchangeClient client;
     private JTextArea outputArea;
     private JTextField inputField;
+    private JProgressBar progressBar;
     private JFileChooser fileChooser;
     private Thread readThread;
+    // An upload the server may hold part of, resumed on the next connect
+    private volatile File pendingUpload;
+    // Shared by every connection, so reconnects and transfer connections resume the TLS session
+    private SSLContext tlsContext;
 
     public FileExchangeClient() {
         setTitle("File Exchange Client");
@@ -86,9 +125,14 @@ public class FileExchangeClient extends JFrame {
             } else {
                 int returnValue = fileChooser.showOpenDialog(this);
                 if (returnValue == JFileChooser.APPROVE_OPTION) {
-                    File selectedFile = fileChooser.getSelectedFile();
-                    outputArea.append("Storing file: " + selectedFile.getName() + "\n");
-                    storeFile(selectedFile);
+                    File[] selectedFiles = fileChooser.getSelectedFiles();
+                    if (selectedFiles.length == 1 && selectedFiles[0].isFile()) {
+                        outputArea.append("Storing file: " + selectedFiles[0].getName() + "\n");
+                        storeFile(selectedFiles[0]);
+                    } else {
+                        // Several files or a directory go in one /mstore
+                        storeBatch(selectedFiles);
+                    }
                 }
             }
         });
@@ -102,7 +146,6 @@ public class FileExchangeClient extends JFrame {
             if (fileName != null && !fileName.trim().isEmpty()) {
                 outputArea.append("Requesting file: " + fileName + "\n");
                 sendCommand("/get " + fileName);
-                receiveFile(fileName);
             } else {
                 JOptionPane.showMessageDialog(this, "Filename cannot be empty.", "Get File Error",
                         JOptionPane.ERROR_MESSAGE);
@@ -135,11 +178,21 @@ public class FileExchangeClient extends JFrame {
             sendCommand(command);
         });
 
-        add(inputField, BorderLayout.SOUTH);
+        // Progress of the latest transfer
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(inputField, BorderLayout.CENTER);
+        southPanel.add(progressBar, BorderLayout.SOUTH);
+        add(southPanel, BorderLayout.SOUTH);
 
         // File chooser
         fileChooser = new JFileChooser();
         fileChooser.setCurrentDirectory(new File(System.getProperty("user.dir")));
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        fileChooser.setMultiSelectionEnabled(true);
 
         pack();
         setLocationRelativeTo(null);
@@ -148,13 +201,41 @@ public class FileExchangeClient extends JFrame {
 
     private void connect(String serverIP, int port) {
         try {
-            socket = new Socket(serverIP, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            SSLContext context = tlsContext();
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverIP, port));
+            socket = channel.socket();
+            if (context != null) {
+                TlsChannel secure = TlsChannel.client(channel, context, serverIP, port);
+                secure.handshake();
+                out = new PrintWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(secure), StandardCharsets.UTF_8), true);
+                // Raw byte stream: the reader thread parses text lines itself
+                in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(secure)));
+            } else {
+                out = new PrintWriter(
+                        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            }
             outputArea.append("Connected to server: " + serverIP + " on port " + port + "\n");
 
             readThread = new Thread(this::readServerMessages);
             readThread.start();
+
+            if (client != null) {
+                client.close();
+            }
+            client = new ExchangeClient(serverIP, port, TRANSFER_CONNECTIONS);
+            client.setCodecs(OFFERED_CODECS);
+            client.setDeltaUploads(DELTA_UPLOADS);
+            client.setDownloadStreams(DOWNLOAD_STREAMS);
+            client.setTls(context);
+
+            // The server kept the verified chunks of an interrupted upload; ask for the rest
+            File upload = pendingUpload;
+            if (upload != null) {
+                outputArea.append("Resuming upload: " + upload.getName() + "\n");
+                storeFile(upload);
+            }
         } catch (IOException e) {
             outputArea
                     .append("Error: Connection to the Serveer has failed! Please check IP Address and Port Number.\n");
@@ -165,6 +246,20 @@ public class FileExchangeClient extends JFrame {
         }
     }
 
+    /** The TLS context transfer.tls asks for, or null for plaintext. */
+    private SSLContext tlsContext() throws IOException {
+        if (TLS.equals("off") || tlsContext != null) {
+            return tlsContext;
+        }
+        try {
+            tlsContext = TlsChannel.clientContext(TLS.equals("on") ? null : Path.of(TLS),
+                    System.getProperty("transfer.tls.password", "").toCharArray());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load truststore " + TLS, e);
+        }
+        return tlsContext;
+    }
+
     private void sendCommand(String command) {
         if (command.startsWith("/join")) {
             String[] parts = command.split(" ");
@@ -185,6 +280,16 @@ public class FileExchangeClient extends JFrame {
             }
         }
         if (out != null) {
+            // Bodies never go over the console connection
+            if (command.startsWith("/get ")) {
+                getFile(command.substring(5).trim());
+                return;
+            }
+            if (command.startsWith("/mget ")) {
+                // "/mget <name> <name>..."
+                getBatch(Arrays.asList(command.substring(6).trim().split(" +")));
+                return;
+            }
             out.println(command);
         } else {
             outputArea.append("Error: Not connected to server.\n");
@@ -199,96 +304,126 @@ public class FileExchangeClient extends JFrame {
             return;
         }
 
-        sendCommand("/store " + file.getName());
-        sendFile(file);
+        pendingUpload = file;
+        client.upload(file.toPath(), file.getName(), progressFor("Storing " + file.getName()))
+                .whenComplete((reply, error) -> {
+                    if (error == null) {
+                        pendingUpload = null;
+                        print(reply);
+                    } else if (cause(error) instanceof ExchangeClient.ReplyException) {
+                        // Rejected by the server, so resending would not help
+                        pendingUpload = null;
+                        print(cause(error).getMessage());
+                    } else {
+                        print("Error: Unable to send file.");
+                        showError("Error: Unable to send file.", "File Transfer Error");
+                    }
+                });
     }
 
-    private void sendFile(File file) {
-        try (FileInputStream fis = new FileInputStream(file);
-                OutputStream os = socket.getOutputStream()) {
-
-            DataOutputStream dos = new DataOutputStream(os);
-            dos.writeLong(file.length());
-
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesRead);
+    /**
+     * Sends the selected files, and the files directly inside selected directories,
+     * in one /mstore, which the server answers with a single report.
+     */
+    private void storeBatch(File[] selection) {
+        List<Path> files = new ArrayList<>();
+        for (File selected : selection) {
+            File[] children = selected.isDirectory() ? selected.listFiles(File::isFile) : new File[] { selected };
+            if (children != null) {
+                for (File child : children) {
+                    files.add(child.toPath());
+                }
             }
-            os.flush();
-        } catch (IOException e) {
-            outputArea.append("Error: Unable to send file.\n");
-            JOptionPane.showMessageDialog(this, "Error: Unable to send file.", "File Transfer Error",
-                    JOptionPane.ERROR_MESSAGE);
         }
-    }
-
-    private void receiveFile(String fileName) {
-        try {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Send the GET command to the server
-            out.println("/get " + fileName);
-
-            // Read the server's response
-            String serverResponse = in.readLine();
-            System.out.println("Server Response: " + serverResponse);
-
-            if (!serverResponse.contains("Error")) {
-                // Read and print file contents before receiving the binary data
-                StringBuilder fileContents = new StringBuilder();
-                String line;
+        if (files.isEmpty()) {
+            outputArea.append("Error: File not found.\n");
+            return;
+        }
+        outputArea.append("Storing " + files.size() + " files\n");
 
-                // Read file content until end marker is found
-                while (!(line = in.readLine()).isEmpty()) {
-                    fileContents.append(line).append("\n");
+        client.uploadAll(files, progressFor("Storing " + files.size() + " files")).whenComplete((report, error) -> {
+            if (error == null) {
+                print("Files stored: " + report.stored + " of " + files.size());
+                for (String failure : report.failures) {
+                    print(failure);
                 }
+            } else if (cause(error) instanceof ExchangeClient.ReplyException) {
+                print(cause(error).getMessage());
+            } else {
+                print("Error: Unable to send file.");
+                showError("Error: Unable to send file.", "File Transfer Error");
+            }
+        });
+    }
 
-                // Print file contents to console or output area
-                outputArea.append("File contents:\n" + fileContents.toString() + "\n");
-
-                // Receive and save the binary data
-                File file = new File(fileName);
-                try (FileOutputStream fos = new FileOutputStream(file);
-                        InputStream is = socket.getInputStream()) {
+    private void getFile(String fileName) {
+        client.download(fileName, new File(fileName).toPath(), progressFor("Receiving " + fileName))
+                .whenComplete((size, error) -> {
+                    if (error == null) {
+                        print("File received: " + fileName);
+                    } else if (cause(error) instanceof ExchangeClient.ReplyException) {
+                        print(cause(error).getMessage());
+                    } else {
+                        print("Error: Unable to receive file from server.");
+                        showError("Error: Unable to receive file from server.", "File Transfer Error");
+                    }
+                });
+    }
 
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
+    /** Saves each record under its base name in the working directory; missing files are skipped. */
+    private void getBatch(List<String> names) {
+        client.downloadAll(names, new File(System.getProperty("user.dir")).toPath(),
+                progressFor("Receiving " + names.size() + " files")).whenComplete((received, error) -> {
+                    if (error == null) {
+                        print("Files received: " + received + " of " + names.size());
+                    } else if (cause(error) instanceof ExchangeClient.ReplyException) {
+                        print(cause(error).getMessage());
+                    } else {
+                        print("Error: Unable to receive file from server.");
+                        showError("Error: Unable to receive file from server.", "File Transfer Error");
                     }
-                    fos.flush();
-                    outputArea.append("File received: " + fileName + "\n");
-                } catch (IOException e) {
-                    outputArea.append("Error: Unable to save the received file.\n");
-                    JOptionPane.showMessageDialog(this, "Error: Unable to save the received file.",
-                            "File Transfer Error",
-                            JOptionPane.ERROR_MESSAGE);
-                }
-            } else {
-                // Handle the error response from the server
-                outputArea.append("Error: " + serverResponse + "\n");
-                JOptionPane.showMessageDialog(this, serverResponse, "File Transfer Error", JOptionPane.ERROR_MESSAGE);
+                });
+    }
+
+    /** Shows a transfer's progress on the bar, posting to the event thread only when the percentage changes. */
+    private ExchangeClient.Progress progressFor(String label) {
+        AtomicInteger shown = new AtomicInteger(-1);
+        return (transferred, total) -> {
+            int percent = total > 0 ? (int) (transferred * 100 / total) : 100;
+            if (shown.getAndSet(percent) != percent) {
+                SwingUtilities.invokeLater(() -> {
+                    progressBar.setValue(percent);
+                    progressBar.setString(label + " " + percent + "%");
+                });
             }
-        } catch (IOException e) {
-            outputArea.append("Error: Unable to receive file from server.\n");
-            JOptionPane.showMessageDialog(this, "Error: Unable to receive file from server.", "File Transfer Error",
-                    JOptionPane.ERROR_MESSAGE);
-        }
+        };
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
     }
 
     private void readServerMessages() {
         String message;
         try {
-            while ((message = in.readLine()) != null) {
-                outputArea.append(message + "\n");
+            while ((message = FileExchangeServer.readLine(in)) != null) {
+                print(message);
             }
         } catch (IOException e) {
-            outputArea.append("Error: Connection with server lost.\n");
+            print("Error: Connection with server lost.");
         }
     }
 
+    /** Appends a line to the output area from any thread. */
+    private void print(String line) {
+        SwingUtilities.invokeLater(() -> outputArea.append(line + "\n"));
+    }
+
+    private void showError(String message, String title) {
+        SwingUtilities.invokeLater(
+                () -> JOptionPane.showMessageDialog(this, message, title, JOptionPane.ERROR_MESSAGE));
+    }
+
     private void closeConnection() {
         try {
             if (socket != null) {
@@ -297,6 +432,11 @@ public class FileExchangeClient extends JFrame {
             if (readThread != null) {
                 readThread.interrupt();
             }
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+            out = null;
             outputArea.append("Connection closed. Thank you!.\n");
         } catch (IOException e) {
             outputArea.append("Error: Unable to close connection.\n");
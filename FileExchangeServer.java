@@ -1,19 +1,36 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
 
 public class FileExchangeServer {
-    private static final String STORAGE_DIR = "server_files";
-    private static Set<String> registeredAliases = new HashSet<>();
+    static final String STORAGE_DIR = "server_files";
+    private static final Map<String, FileDigest> digestCache = new ConcurrentHashMap<>();
+    // Runs the streams of framed connections; virtual threads on the virtual engine
+    private static ExecutorService streamExecutor = Executors.newCachedThreadPool();
+    // Set by --tls-keystore; every connection is then TLS
+    static SSLContext tls;
 
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.out.println("Usage: java FileExchangeServer <IP address> <port>");
+        if (args.length < 2) {
+            System.out.println("Usage: java FileExchangeServer <IP address> <port> [--engine=pool|virtual|nio] [--max-transfers=N] [--max-rate=KB/s] [--alias-rate=KB/s] [--weights=alias:weight,...] [--cache-size=MB] [--idle-timeout=seconds] [--store-compressed=codec] [--fsync=none|on-close|group-commit] [--metrics-port=N] [--cluster=host:port,...] [--replicas=N] [--cluster-route=redirect|forward] [--cold-after=seconds] [--tls-keystore=file] [--tls-password=secret]");
             return;
         }
 
@@ -26,17 +43,161 @@ public class FileExchangeServer {
             return;
         }
 
-        System.out.println("File Exchange Server started.");
-        System.out.println("Listening on IP address " + ipAddress + " and port " + port);
+        Map<String, String> options = parseOptions(args);
+        String engine = options.getOrDefault("engine", "pool");
+        if (!engine.equals("pool") && !engine.equals("virtual") && !engine.equals("nio")) {
+            System.out.println("Error: Unknown engine " + engine + ".");
+            return;
+        }
+        if (options.containsKey("max-transfers")) {
+            try {
+                TransferScheduler.configureAdmission(Integer.parseInt(options.get("max-transfers")));
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid max-transfers value.");
+                return;
+            }
+        }
+        long maxRate;
+        long aliasRate;
+        try {
+            maxRate = Long.parseLong(options.getOrDefault("max-rate", "0")) * 1024;
+            aliasRate = Long.parseLong(options.getOrDefault("alias-rate", "0")) * 1024;
+        } catch (NumberFormatException e) {
+            System.out.println("Error: Invalid max-rate or alias-rate value.");
+            return;
+        }
+        Map<String, Double> weights = options.containsKey("weights")
+                ? TransferScheduler.parseWeights(options.get("weights"))
+                : Map.of();
+        if (weights == null) {
+            System.out.println("Error: Invalid weights value.");
+            return;
+        }
+        TransferScheduler.configureShaping(maxRate, aliasRate, weights);
+        if (options.containsKey("cache-size")) {
+            try {
+                ReadCache.configure(Long.parseLong(options.get("cache-size")) * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid cache-size value.");
+                return;
+            }
+        }
 
-        ExecutorService executorService = Executors.newFixedThreadPool(10);
+        if (options.containsKey("store-compressed")) {
+            if (!Compression.isSupported(options.get("store-compressed"))) {
+                System.out.println("Error: Unknown codec " + options.get("store-compressed") + ".");
+                return;
+            }
+            BlobStore.configureCompression(options.get("store-compressed"));
+        }
+        if (options.containsKey("fsync")) {
+            if (!Durability.isSupported(options.get("fsync"))) {
+                System.out.println("Error: Unknown fsync policy " + options.get("fsync") + ".");
+                return;
+            }
+            Durability.configure(options.get("fsync"));
+        }
+        int metricsPort = 0;
+        if (options.containsKey("metrics-port")) {
+            try {
+                metricsPort = Integer.parseInt(options.get("metrics-port"));
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid metrics-port value.");
+                return;
+            }
+        }
+        // Members of a TLS cluster trust each other's certificates from the same keystore
+        SSLContext peerTls = null;
+        if (options.containsKey("tls-keystore")) {
+            Path keystore = Paths.get(options.get("tls-keystore"));
+            char[] password = options.getOrDefault("tls-password", "").toCharArray();
+            try {
+                tls = TlsChannel.serverContext(keystore, password);
+                peerTls = TlsChannel.clientContext(keystore, password);
+            } catch (IOException | GeneralSecurityException e) {
+                System.out.println("Error: Could not load keystore " + keystore + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (options.containsKey("cluster")) {
+            List<String> members = Cluster.parseMembers(options.get("cluster"));
+            if (members == null) {
+                System.out.println("Error: Invalid cluster value.");
+                return;
+            }
+            String route = options.getOrDefault("cluster-route", "redirect");
+            if (!Cluster.isSupportedRoute(route)) {
+                System.out.println("Error: Unknown cluster route " + route + ".");
+                return;
+            }
+            int replicas;
+            try {
+                replicas = Integer.parseInt(options.getOrDefault("replicas", "2"));
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid replicas value.");
+                return;
+            }
+            Cluster.configure(ipAddress + ":" + port, members, replicas, route, peerTls);
+        }
+        if (options.containsKey("cold-after")) {
+            try {
+                ColdStore.configure(Long.parseLong(options.get("cold-after")) * 1000);
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid cold-after value.");
+                return;
+            }
+        }
+        long idleTimeout = 1800;
+        if (options.containsKey("idle-timeout")) {
+            try {
+                idleTimeout = Long.parseLong(options.get("idle-timeout"));
+            } catch (NumberFormatException e) {
+                System.out.println("Error: Invalid idle-timeout value.");
+                return;
+            }
+        }
+
+        System.out.println("File Exchange Server started.");
+        System.out.println("Listening on IP address " + ipAddress + " and port " + port
+                + (tls != null ? " with TLS" : ""));
 
-        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(ipAddress))) {
+        // Accept through a blocking ServerSocketChannel so every client socket is
+        // backed by a SocketChannel that FileChannel.transferTo can target.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getByName(ipAddress), port), 50);
             Files.createDirectories(Paths.get(STORAGE_DIR));
+            BlobStore.init();
+            ColdStore.init();
+            DirectoryIndex.init();
+            Metrics.start(metricsPort);
+            if (Cluster.isEnabled()) {
+                Cluster.start();
+            }
+            if (idleTimeout > 0) {
+                SessionRegistry.startIdleSweeper(idleTimeout * 1000);
+            }
+
+            if (engine.equals("nio")) {
+                int eventLoops = Runtime.getRuntime().availableProcessors();
+                System.out.println("Using NIO engine with " + eventLoops + " event loops.");
+                Metrics.registerPool("streams", streamExecutor);
+                new NioServer(eventLoops).serve(serverChannel);
+                return;
+            }
 
+            ExecutorService executorService = engine.equals("virtual")
+                    ? newVirtualThreadExecutor()
+                    : Executors.newFixedThreadPool(10);
+            if (engine.equals("virtual")) {
+                streamExecutor = executorService;
+            }
+            Metrics.registerPool("connections", executorService);
+            Metrics.registerPool("streams", streamExecutor);
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submit(new ClientHandler(clientSocket));
+                SocketChannel clientChannel = serverChannel.accept();
+                // Replies are often several short writes; don't hold them back for ACKs
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                executorService.submit(new ClientHandler(clientChannel.socket()));
             }
         } catch (IOException e) {
             System.out.println("Error: Could not start server.");
@@ -44,28 +205,831 @@ public class FileExchangeServer {
         }
     }
 
+    /**
+     * One virtual thread per connection. Looked up reflectively so the server still
+     * builds and runs on JDKs without virtual threads, where it falls back to an
+     * unbounded platform-thread executor.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Using a virtual thread per connection.");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Warning: Virtual threads unavailable on this JDK; using a thread per connection.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 2; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int eq = arg.indexOf('=');
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                System.out.println("Warning: Ignoring unrecognized argument " + arg);
+            }
+        }
+        return options;
+    }
+
+    /** Registers the alias in a "/register <handle>" command for the session and writes the reply. */
+    static void handleRegister(String message, SessionRegistry.Session session, PrintWriter out) {
+        String[] parts = message.split(" ", 2);
+        if (parts.length == 2) {
+            String alias = parts[1];
+            if (SessionRegistry.register(session, alias)) {
+                out.println("Welcome " + alias + "!");
+            } else {
+                out.println("Error: Registration failed. Handle or alias already exists.");
+            }
+        } else {
+            out.println("Error: Command parameters do not match or are not allowed.");
+        }
+    }
+
+    /** Marks a connection from another cluster member, whose commands are then never routed. */
+    static void handlePeer(SessionRegistry.Session session, PrintWriter out) {
+        if (!Cluster.isEnabled()) {
+            out.println("Error: Cluster mode is not enabled.");
+            return;
+        }
+        session.markPeer();
+        out.println("PEER");
+    }
+
+    /**
+     * In cluster mode, replies "MOVED <host>:<port>" and returns true if the
+     * command names a file this member does not own and is not to forward.
+     * /store, /get and /stat are forwarded in forward mode; /have never is.
+     */
+    static boolean redirected(String message, SessionRegistry.Session session, PrintWriter out) {
+        if (!Cluster.isEnabled()) {
+            return false;
+        }
+        String fileName = null;
+        boolean forwardable = true;
+        switch (Metrics.command(message)) {
+            case STORE:
+                String[] store = parseStore(message);
+                fileName = store != null ? store[1] : null;
+                break;
+            case GET:
+                ByteRange range = parseGet(message);
+                fileName = range != null ? range.fileName : null;
+                break;
+            case STAT:
+                String[] stat = message.split(" ", 2);
+                fileName = stat.length == 2 ? stat[1] : null;
+                break;
+            case HAVE:
+                String[] have = message.split(" ", 4);
+                fileName = have.length == 4 ? have[3] : null;
+                forwardable = false;
+                break;
+            default:
+                return false;
+        }
+        if (fileName == null || !isValidName(fileName) || Cluster.isLocal(fileName, session)
+                || (forwardable && Cluster.forwards())) {
+            return false;
+        }
+        out.println("MOVED " + Cluster.primary(fileName));
+        return true;
+    }
+
+    /**
+     * Publishes a received /store body: into the blob store, or in forward mode
+     * to the owners of a name this member does not own, after which the temp
+     * file is discarded. On failure the temp file is left to the caller.
+     */
+    static void publishStore(Path temp, String fileName, byte[] sha256, SessionRegistry.Session session)
+            throws IOException {
+        if (Cluster.isLocal(fileName, session)) {
+            BlobStore.publish(temp, fileName, sha256);
+            return;
+        }
+        Cluster.forwardStore(temp, fileName);
+        BlobStore.discard(temp);
+    }
+
+    /**
+     * Handles "/have <sha256> <size> <filename>", sent before an upload. If a blob
+     * with that content is already stored the name is linked to it and the upload
+     * is complete; otherwise the reply is "SEND" and the client uploads the body.
+     */
+    static void handleHave(String message, PrintWriter out) {
+        String[] parts = message.split(" ", 4);
+        if (parts.length != 4) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+        String fileName = parts[3];
+        if (!isValidName(fileName)) {
+            out.println("Error: File name is not allowed.");
+            return;
+        }
+        try {
+            if (BlobStore.linkExisting(parts[1], Long.parseLong(parts[2]), fileName)) {
+                String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+                out.println("File uploaded successfully: " + fileName + " " + timestamp);
+            } else {
+                out.println("SEND");
+            }
+        } catch (NumberFormatException e) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+        } catch (IOException e) {
+            out.println("Error: Failed to store file " + fileName);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts or resumes a chunked upload from
+     * "/upload <fileSize> <chunkSize> <sha256> <filename>" and replies with the
+     * chunk ranges still missing. Returns the upload, or null if it could not be
+     * started.
+     */
+    static ChunkedUpload handleUpload(String message, PrintWriter out) {
+        String[] parts = message.split(" ", 5);
+        if (parts.length != 5) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return null;
+        }
+
+        String fileName = parts[4];
+        if (!isValidName(fileName)) {
+            out.println("Error: File name is not allowed.");
+            return null;
+        }
+        long fileSize;
+        int chunkSize;
+        byte[] sha256;
+        try {
+            fileSize = Long.parseLong(parts[1]);
+            chunkSize = Integer.parseInt(parts[2]);
+            sha256 = HexFormat.of().parseHex(parts[3]);
+        } catch (IllegalArgumentException e) {
+            // A malformed number, or a digest that is not hex
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return null;
+        }
+        if (sha256.length != 32) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return null;
+        }
+        if (fileSize < 0 || chunkSize <= 0) {
+            out.println("Error: File size is invalid.");
+            return null;
+        }
+        // The received set is a bitmap of chunkCount bits, so the count is bounded
+        long chunkCount = ChunkedUpload.chunkCount(fileSize, chunkSize);
+        if (chunkCount == 0 && fileSize > 0 || chunkCount > ChunkedUpload.MAX_CHUNKS) {
+            out.println("Error: Too many chunks.");
+            return null;
+        }
+        if (chunkSize > ChunkedUpload.MAX_CHUNK_SIZE) {
+            out.println("Error: Chunk size is too large.");
+            return null;
+        }
+
+        try {
+            ChunkedUpload upload = ChunkedUpload.open(fileName, fileSize, chunkSize, sha256);
+            out.println("MISSING " + upload.missingRanges());
+            if (upload.isComplete()) {
+                publishUpload(upload, out);
+            }
+            return upload;
+        } catch (IOException e) {
+            out.println("Error: Failed to store file " + fileName);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stores a chunk whose body has been read and checksummed. Replies
+     * "NAK <index>" on a checksum mismatch so the client resends it. Returns true
+     * once the last chunk is in and the file has been published.
+     */
+    static boolean handleChunkReceived(ChunkedUpload upload, ChunkedUpload.Chunk chunk, ByteBuffer body,
+            boolean verified, PrintWriter out) throws IOException {
+        if (!verified) {
+            out.println("NAK " + chunk.index);
+            return false;
+        }
+        upload.store(chunk, body);
+        if (!upload.isComplete()) {
+            return false;
+        }
+        return publishUpload(upload, out);
+    }
+
+    private static boolean publishUpload(ChunkedUpload upload, PrintWriter out) throws IOException {
+        if (!upload.publish()) {
+            out.println("Error: File does not match its digest.");
+            return false;
+        }
+        String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        out.println("File uploaded successfully: " + upload.getFileName() + " " + timestamp);
+        return true;
+    }
+
+    /**
+     * Byte range of a "/get [codec=<codec>] [bytes=<first>-<last>] <filename>"
+     * request. The range is inclusive, as in an HTTP Range header; without one
+     * the whole file is sent. A codec only applies to whole-file requests.
+     */
+    static class ByteRange {
+        final String fileName;
+        final long first;
+        final long last;
+        final String codec;
+
+        ByteRange(String fileName, long first, long last, String codec) {
+            this.fileName = fileName;
+            this.first = first;
+            this.last = last;
+            this.codec = codec;
+        }
+
+        boolean isWholeFile() {
+            return first == 0 && last < 0;
+        }
+
+        /** Number of bytes to send from a file of the given size, or -1 if unsatisfiable. */
+        long length(long fileSize) {
+            if (last < 0) {
+                return fileSize;
+            }
+            if (first >= fileSize) {
+                return -1;
+            }
+            return Math.min(last, fileSize - 1) - first + 1;
+        }
+    }
+
+    /** Parses a /get command; returns null if the parameters are malformed. */
+    static ByteRange parseGet(String message) {
+        String[] parts = message.split(" ", 2);
+        if (parts.length != 2) {
+            return null;
+        }
+        String codec = null;
+        if (parts[1].startsWith("codec=")) {
+            String[] codecAndRest = parts[1].split(" ", 2);
+            codec = codecAndRest[0].substring(6);
+            if (codecAndRest.length != 2 || !Compression.isSupported(codec)) {
+                return null;
+            }
+            parts[1] = codecAndRest[1];
+        }
+        if (!parts[1].startsWith("bytes=")) {
+            return new ByteRange(parts[1], 0, -1, codec);
+        }
+
+        String[] rangeAndName = parts[1].split(" ", 2);
+        String[] bounds = rangeAndName[0].substring(6).split("-", 2);
+        if (rangeAndName.length != 2 || bounds.length != 2) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(bounds[0]);
+            long last = Long.parseLong(bounds[1]);
+            if (first < 0 || last < first) {
+                return null;
+            }
+            return new ByteRange(rangeAndName[1], first, last, codec);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A /get body that is not sent straight from the stored file: compressed for
+     * the wire, or inflated from a blob stored compressed. The header line goes
+     * first, then count bytes of the channel from position.
+     */
+    static class PreparedBody {
+        final String header;
+        final FileChannel channel;
+        final long position;
+        final long count;
+
+        PreparedBody(String header, FileChannel channel, long position, long count) {
+            this.header = header;
+            this.channel = channel;
+            this.position = position;
+            this.count = count;
+        }
+    }
+
+    private interface Spooler {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Prepares the body of a /get for length content bytes, or returns null if the
+     * stored file can be sent as it is. A compressed reply has the header
+     * "OK <length> <codec> <compressed length>". This may compress or inflate the
+     * whole file, so the NIO engine calls it on a worker.
+     */
+    static PreparedBody prepareBody(ByteRange range, long length) throws IOException {
+        Path file = Paths.get(STORAGE_DIR, range.fileName);
+        boolean storedCompressed = BlobStore.isCompressed(range.fileName);
+        if (range.codec != null && range.isWholeFile() && length > 0) {
+            if (storedCompressed) {
+                // Already Deflate on disk: send the stream as stored
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                long count = channel.size() - BlobStore.COMPRESSED_HEADER;
+                return new PreparedBody("OK " + length + " " + range.codec + " " + count, channel,
+                        BlobStore.COMPRESSED_HEADER, count);
+            }
+            if (Compression.isCompressible(file)) {
+                FileChannel channel = spool(out -> {
+                    try (InputStream in = Files.newInputStream(file)) {
+                        Compression.compress(in, length, out, range.codec);
+                    }
+                });
+                long count = channel.size();
+                if (count < length * 0.9) {
+                    return new PreparedBody("OK " + length + " " + range.codec + " " + count, channel, 0, count);
+                }
+                channel.close();
+            }
+        }
+        if (!storedCompressed) {
+            return null;
+        }
+
+        FileChannel channel = spool(out -> {
+            try (InputStream stored = new BufferedInputStream(Files.newInputStream(file))) {
+                stored.skipNBytes(BlobStore.COMPRESSED_HEADER);
+                InputStream in = Compression.decompress(stored);
+                in.skipNBytes(range.first);
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = length;
+                while (remaining > 0) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Compressed blob is shorter than its header");
+                    }
+                    out.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+            }
+        });
+        return new PreparedBody("OK " + length, channel, 0, length);
+    }
+
+    /** Writes a body to a temp file and returns it open for reading; the file itself is already deleted. */
+    private static FileChannel spool(Spooler spooler) throws IOException {
+        Path temp = BlobStore.newTempFile();
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                spooler.writeTo(out);
+            }
+            return FileChannel.open(temp, StandardOpenOption.READ);
+        } finally {
+            BlobStore.discard(temp);
+        }
+    }
+
+    /**
+     * Fetches a file this member does not hold from its owners, for a /get in
+     * forward mode. The reply is never compressed. Returns null if the range is
+     * not satisfiable.
+     */
+    static PreparedBody prepareForwarded(ByteRange range) throws IOException {
+        FileChannel channel = Cluster.fetch(range.fileName);
+        long length = range.length(channel.size());
+        if (length < 0) {
+            channel.close();
+            return null;
+        }
+        return new PreparedBody("OK " + length, channel, range.first, length);
+    }
+
+    /**
+     * Names a client may store or fetch: flat names only, with no separators and
+     * no dot names, since .index, .blobs, .uploads and .segments under STORAGE_DIR
+     * hold the server's own bookkeeping.
+     */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && name.indexOf('/') < 0 && name.indexOf('\\') < 0
+                && name.indexOf('\0') < 0 && name.indexOf('\n') < 0;
+    }
+
+    /**
+     * Splits "/store [codec=<codec>] <filename>" into the codec, null if none, and
+     * the file name. Returns null if malformed. With a codec the body is the file
+     * size, then the compressed size, then the compressed bytes.
+     */
+    static String[] parseStore(String message) {
+        String[] parts = message.split(" ", 2);
+        if (parts.length != 2) {
+            return null;
+        }
+        if (!parts[1].startsWith("codec=")) {
+            return new String[] { null, parts[1] };
+        }
+        String[] codecAndName = parts[1].split(" ", 2);
+        String codec = codecAndName[0].substring(6);
+        if (codecAndName.length != 2 || !Compression.isSupported(codec)) {
+            return null;
+        }
+        return new String[] { codec, codecAndName[1] };
+    }
+
+    /**
+     * Replies to "/codecs <codec>..." with "CODECS" and the offered codecs this
+     * server supports, in the client's order. A client sends it once after
+     * connecting and then picks a codec per transfer.
+     */
+    static void handleCodecs(String message, PrintWriter out) {
+        StringBuilder reply = new StringBuilder("CODECS");
+        for (String codec : message.substring("/codecs".length()).trim().split(" +")) {
+            if (Compression.isSupported(codec)) {
+                reply.append(' ').append(codec);
+            }
+        }
+        out.println(reply);
+    }
+
+    /**
+     * Replies to "/stat <filename>" with "STAT <size> <sha256>", which a client
+     * uses to size a parallel download and verify it afterwards. A peer also gets
+     * the copy's cluster write stamp, "<written> <origin>". In forward mode a file
+     * this member neither owns nor holds is looked up on its owners.
+     */
+    static void handleStat(String message, SessionRegistry.Session session, PrintWriter out) {
+        String[] parts = message.split(" ", 2);
+        if (parts.length != 2) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+        if (!isValidName(parts[1])) {
+            out.println("Error: File name is not allowed.");
+            return;
+        }
+        File file = new File(STORAGE_DIR, parts[1]);
+        ColdStore.Location cold = ColdStore.location(parts[1]);
+        if (cold != null && !file.isFile()) {
+            out.println(statLine(parts[1], cold.size, cold.sha256, session));
+            return;
+        }
+        if (!file.isFile() && !Cluster.isLocal(parts[1], session)) {
+            try {
+                ExchangeClient.Stat stat = Cluster.stat(parts[1]);
+                out.println("STAT " + stat.size + " " + stat.sha256);
+            } catch (ExchangeClient.ReplyException e) {
+                out.println(e.getMessage());
+            } catch (IOException e) {
+                out.println("Error: Failed to read file " + parts[1]);
+            }
+            return;
+        }
+        if (!file.isFile()) {
+            out.println("Error: File not found in the server.");
+            return;
+        }
+        try {
+            FileDigest digest = digestOf(file);
+            out.println(statLine(parts[1], digest.size, digest.sha256, session));
+        } catch (IOException e) {
+            out.println("Error: Failed to read file " + parts[1]);
+        }
+    }
+
+    private static String statLine(String name, long size, String sha256, SessionRegistry.Session session) {
+        if (!session.isPeer()) {
+            return "STAT " + size + " " + sha256;
+        }
+        Cluster.Stamp stamp = Cluster.stamp(name, sha256);
+        return "STAT " + size + " " + sha256 + " " + stamp.written + " " + stamp.origin;
+    }
+
+    /**
+     * Handles "/stamp <sha256> <written> <origin> <filename>" from another cluster
+     * member, sent before it pushes a copy here: the copy takes the stamp of the
+     * one it comes from as soon as it lands. Refused if this member holds a later
+     * write of the name.
+     */
+    static void handleStamp(String message, SessionRegistry.Session session, PrintWriter out) {
+        if (!session.isPeer()) {
+            out.println("Error: Command not found.");
+            return;
+        }
+        String[] parts = message.split(" ", 5);
+        long written;
+        try {
+            written = parts.length == 5 ? Long.parseLong(parts[2]) : -1;
+        } catch (NumberFormatException e) {
+            written = -1;
+        }
+        if (written < 0 || !isValidName(parts[4])) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+        if (Cluster.adopt(parts[4], new Cluster.Stamp(parts[1], written, parts[3]))) {
+            out.println("STAMPED");
+        } else {
+            out.println("Error: File has a later write.");
+        }
+    }
+
+    private static class FileDigest {
+        final long size;
+        final long modified;
+        final String sha256;
+
+        FileDigest(long size, long modified, String sha256) {
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * SHA-256 of a stored file: taken from the blob index when the file was
+     * stored through it, otherwise hashed and cached until its size or mtime changes.
+     */
+    private static FileDigest digestOf(File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        String indexed = BlobStore.digestOf(file.getName());
+        if (indexed != null) {
+            return new FileDigest(BlobStore.contentSize(file.getName()), modified, indexed);
+        }
+        FileDigest cached = digestCache.get(file.getName());
+        if (cached != null && cached.size == size && cached.modified == modified) {
+            return cached;
+        }
+
+        FileDigest digest = new FileDigest(size, modified, HexFormat.of().formatHex(sha256(file.toPath())));
+        digestCache.put(file.getName(), digest);
+        return digest;
+    }
+
+    static byte[] sha256(Path path) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Reads one command line straight from the byte stream, so binary bodies that
+     * follow a command are left unread for the handler. Lines are UTF-8 on the
+     * wire whatever the platform charset.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Plain "/dir" lists every name, served from the in-memory index, or in
+     * cluster mode from the listing merged across the members. With options
+     * "/dir [prefix=<p>] [after=<name>] [since=<version>] [limit=<n>]" the reply is
+     * "DIR <version> <count> <more>" followed by count entry lines: a page of the
+     * listing in name order, or with since= the changes after that version.
+     * The last option's value runs to the end of the line, so names with spaces go last.
+     * Pages and change feeds are always this member's own, as their versions are.
+     */
+    static void handleDir(String message, PrintWriter out) {
+        if (message.equals("/dir")) {
+            out.println("Server Directory:");
+            for (String file : Cluster.isEnabled() ? Cluster.names() : DirectoryIndex.names()) {
+                out.println(file);
+            }
+            return;
+        }
+
+        Map<String, String> options = parseCommandOptions(message.substring("/dir".length()).trim(),
+                "prefix", "after", "since", "limit");
+        if (options == null) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+        String prefix = options.getOrDefault("prefix", "");
+        DirectoryIndex.Page page;
+        try {
+            int limit = Integer.parseInt(options.getOrDefault("limit", String.valueOf(DirectoryIndex.DEFAULT_LIMIT)));
+            if (limit <= 0 || limit > DirectoryIndex.MAX_LIMIT) {
+                out.println("Error: Limit must be between 1 and " + DirectoryIndex.MAX_LIMIT + ".");
+                return;
+            }
+            if (options.containsKey("since")) {
+                page = DirectoryIndex.changesSince(Long.parseLong(options.get("since")), prefix, limit);
+                if (page == null) {
+                    out.println("Error: Changes since version " + options.get("since") + " are no longer available.");
+                    return;
+                }
+            } else {
+                page = DirectoryIndex.list(prefix, options.get("after"), limit);
+            }
+        } catch (NumberFormatException e) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+
+        out.println("DIR " + page.version + " " + page.entries.size() + " " + (page.more ? 1 : 0));
+        for (DirectoryIndex.Entry entry : page.entries) {
+            out.println(entry.format());
+        }
+    }
+
+    /**
+     * Parses "key=value" command options limited to the given keys. A value runs
+     * up to the next known key, so it may contain spaces. Returns null on an
+     * unknown key.
+     */
+    static Map<String, String> parseCommandOptions(String arguments, String... keys) {
+        Map<String, String> options = new HashMap<>();
+        if (arguments.isEmpty()) {
+            return options;
+        }
+        String key = null;
+        for (String token : arguments.split(" ")) {
+            int eq = token.indexOf('=');
+            String name = eq > 0 ? token.substring(0, eq) : "";
+            if (!name.isEmpty() && Arrays.asList(keys).contains(name)) {
+                key = name;
+                options.put(key, token.substring(eq + 1));
+            } else if (key != null) {
+                // A value containing spaces
+                options.put(key, options.get(key) + " " + token);
+            } else {
+                return null;
+            }
+        }
+        return options;
+    }
+
+    static void handleCache(PrintWriter out) {
+        out.println("CACHE " + ReadCache.stats());
+    }
+
+    /** Replies "QUEUE" and the admission and shaping counters, e.g. to watch for queued transfers. */
+    static void handleQueue(PrintWriter out) {
+        out.println("QUEUE " + TransferScheduler.stats());
+    }
+
+    static void handleLeave(SessionRegistry.Session session, PrintWriter out) {
+        SessionRegistry.release(session);
+        out.println("Disconnecting...");
+    }
+
+    /**
+     * Plain "/list" names every registered handle. "/list [after=<alias>] [limit=<n>]"
+     * replies "LIST <count> <more>" followed by one page of sessions in alias
+     * order, each "<connected at> <bytes received> <bytes sent> <alias>".
+     */
+    static void handleList(String message, PrintWriter out) {
+        if (message.equals("/list")) {
+            out.println("Registered Handles:");
+            for (String alias : SessionRegistry.aliases()) {
+                out.println(alias);
+            }
+            return;
+        }
+
+        Map<String, String> options = parseCommandOptions(message.substring("/list".length()).trim(),
+                "after", "limit");
+        if (options == null) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+        int limit;
+        try {
+            limit = Integer.parseInt(options.getOrDefault("limit", String.valueOf(SessionRegistry.DEFAULT_LIMIT)));
+        } catch (NumberFormatException e) {
+            out.println("Error: Command parameters do not match or are not allowed.");
+            return;
+        }
+        if (limit <= 0 || limit > SessionRegistry.MAX_LIMIT) {
+            out.println("Error: Limit must be between 1 and " + SessionRegistry.MAX_LIMIT + ".");
+            return;
+        }
+
+        SessionRegistry.Page page = SessionRegistry.list(options.get("after"), limit);
+        out.println("LIST " + page.sessions.size() + " " + (page.more ? 1 : 0));
+        for (SessionRegistry.Session session : page.sessions) {
+            out.println(session.format());
+        }
+    }
+
+    /**
+     * Serves a connection that switched to framed mode until it closes. Each
+     * stream gets its own command loop, sharing the connection's session.
+     */
+    static void serveFramed(SessionRegistry.Session session, InputStream in, OutputStream out) throws IOException {
+        new Multiplexer(in, out, streamExecutor, (streamIn, streamOut) -> new ClientHandler(session)
+                .serveStream(streamIn, streamOut)).serve();
+    }
+
+    static void handleHelp(PrintWriter out) {
+        out.println("/join <server_ip_add> <port>");
+        out.println("/leave");
+        out.println("/register <handle>");
+        out.println("/store [codec=<codec>] <filename>");
+        out.println("/codecs <codec>...");
+        out.println("/have <sha256> <filesize> <filename>");
+        out.println("/mstore <count>");
+        out.println("/mget <count>");
+        out.println("/upload <filesize> <chunksize> <sha256> <filename>");
+        out.println("/delta <filesize> <chunkcount> <filename>");
+        out.println("/chunk <index> <offset> <length> <crc32c> [<codec> <compressed length>]");
+        out.println("/dir [prefix=<prefix>] [after=<filename>] [since=<version>] [limit=<n>]");
+        out.println("/get [codec=<codec>] [bytes=<first>-<last>] <filename>");
+        out.println("/stat <filename>");
+        out.println("/list [after=<handle>] [limit=<n>]");
+        out.println("/cache");
+        out.println("/queue");
+        out.println("/frames");
+        out.println("/?");
+    }
+
+    /**
+     * Blocking per-connection handler, run on a pool or virtual thread. The I/O
+     * paths only block in socket/file I/O and java.util.concurrent primitives,
+     * and hold no synchronized block of their own. Virtual threads therefore
+     * unmount instead of pinning their carrier while a transfer waits, but only
+     * on JDK 21 and later: before that, PrintWriter and BufferedInputStream
+     * synchronize internally, which pins the carrier.
+     */
     private static class ClientHandler implements Runnable {
         private final Socket socket;
-        private String handle;
+        private final SessionRegistry.Session session;
+        // Where /get bodies go: the socket, or a stream of a framed connection
+        private WritableByteChannel bodyTarget;
+        private ChunkedUpload upload;
+        private ByteBuffer chunkBody;
+
+        /** A body transfer, run while holding a slot in its lane. */
+        private interface Transfer {
+            void run() throws IOException;
+        }
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
+            this.session = SessionRegistry.open(socket.getRemoteSocketAddress(), () -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.out.println("Error: Failed to close client socket.");
+                }
+            });
+        }
+
+        /** Handler for one stream of a framed connection. */
+        ClientHandler(SessionRegistry.Session session) {
+            this.socket = null;
+            this.session = session;
         }
 
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-                out.println("Connection to the File Exchange Server is successful!");
-                String message;
-
-                while ((message = in.readLine()) != null) {
-                    processCommand(message, out, in);
+            try {
+                if (tls != null) {
+                    // Handshaken here rather than on the accepting thread
+                    TlsChannel secure = TlsChannel.server(socket.getChannel(), tls);
+                    secure.handshake();
+                    bodyTarget = secure;
+                    serve(Channels.newInputStream(secure), Channels.newOutputStream(secure));
+                } else {
+                    bodyTarget = socket.getChannel() != null
+                            ? socket.getChannel()
+                            : Channels.newChannel(socket.getOutputStream());
+                    serve(socket.getInputStream(), socket.getOutputStream());
                 }
+            } catch (SSLException e) {
+                System.out.println("Error: TLS connection with client failed: " + e.getMessage());
             } catch (IOException e) {
                 System.out.println("Error: Connection with client lost.");
             } finally {
+                SessionRegistry.close(session);
+                if (upload != null) {
+                    upload.release();
+                }
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -74,131 +1038,453 @@ public class FileExchangeServer {
             }
         }
 
-        private void processCommand(String message, PrintWriter out, BufferedReader in) throws IOException {
-            if (message.startsWith("/register")) {
-                handleRegister(message, out);
+        private void serve(InputStream socketIn, OutputStream socketOut) throws IOException {
+            // Commands and file bodies share one buffered byte stream; lines are parsed
+            // with readLine so no body bytes are lost to a reader's read-ahead.
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(socketIn));
+                    PrintWriter out = new PrintWriter(
+                            new OutputStreamWriter(socketOut, StandardCharsets.UTF_8), true)) {
+                out.println("Connection to the File Exchange Server is successful!");
+                String message;
+
+                while ((message = readLine(in)) != null) {
+                    session.touch();
+                    if (message.equals("/frames")) {
+                        // Bytes already buffered in "in" are the first frames
+                        out.println("FRAMES 1");
+                        serveFramed(session, in, socketOut);
+                        break;
+                    }
+                    processCommand(message, out, in);
+                }
+            }
+        }
+
+        void serveStream(InputStream streamIn, OutputStream streamOut) throws IOException {
+            bodyTarget = Channels.newChannel(streamOut);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(streamIn));
+                    PrintWriter out = new PrintWriter(
+                            new OutputStreamWriter(streamOut, StandardCharsets.UTF_8), true)) {
+                String message;
+                while ((message = readLine(in)) != null) {
+                    session.touch();
+                    processCommand(message, out, in);
+                }
+            } finally {
+                if (upload != null) {
+                    upload.release();
+                }
+            }
+        }
+
+        private void processCommand(String message, PrintWriter out, DataInputStream in) throws IOException {
+            long start = System.nanoTime();
+            try {
+                dispatch(message, out, in);
+            } finally {
+                Metrics.recordCommand(Metrics.command(message), System.nanoTime() - start);
+            }
+        }
+
+        private void dispatch(String message, PrintWriter out, DataInputStream in) throws IOException {
+            if (redirected(message, session, out)) {
+                // Sent to the owning cluster member
+            } else if (message.startsWith("/register")) {
+                handleRegister(message, session, out);
             } else if (message.startsWith("/store")) {
-                handleStore(message, out, socket);
-            } else if (message.equals("/dir")) {
-                handleDir(out);
+                transfer(TransferScheduler.Lane.DISK, () -> handleStore(message, out, in));
+            } else if (message.startsWith("/have")) {
+                handleHave(message, out);
+            } else if (message.startsWith("/mstore")) {
+                transfer(TransferScheduler.Lane.DISK, () -> handleBatchStore(message, out, in));
+            } else if (message.startsWith("/mget")) {
+                transfer(TransferScheduler.Lane.NETWORK, () -> handleBatchGet(message, out, in));
+            } else if (message.startsWith("/codecs")) {
+                handleCodecs(message, out);
+            } else if (message.startsWith("/upload")) {
+                if (upload != null) {
+                    upload.release();
+                }
+                upload = handleUpload(message, out);
+            } else if (message.startsWith("/delta")) {
+                transfer(TransferScheduler.Lane.DISK, () -> handleDelta(message, out, in));
+            } else if (message.startsWith("/chunk")) {
+                transfer(TransferScheduler.Lane.DISK, () -> handleChunk(message, out, in));
+            } else if (message.startsWith("/dir")) {
+                handleDir(message, out);
+            } else if (message.startsWith("/stat")) {
+                handleStat(message, session, out);
             } else if (message.startsWith("/get")) {
-                handleGet(message, out, socket);
+                transfer(TransferScheduler.Lane.NETWORK, () -> handleGet(message, out));
+            } else if (message.equals("/peer")) {
+                handlePeer(session, out);
+            } else if (message.startsWith("/stamp")) {
+                handleStamp(message, session, out);
             } else if (message.equals("/leave")) {
-                handleLeave(out);
-            } else if (message.equals("/list")) {
-                handleList(out);
+                handleLeave(session, out);
+            } else if (message.startsWith("/list")) {
+                handleList(message, out);
+            } else if (message.equals("/cache")) {
+                handleCache(out);
+            } else if (message.equals("/queue")) {
+                handleQueue(out);
             } else if (message.equals("/?")) {
                 handleHelp(out);
+            } else if (message.equals("/frames")) {
+                out.println("Error: Already in framed mode.");
             } else {
                 out.println("Error: Command not found.");
             }
         }
 
-        private void handleRegister(String message, PrintWriter out) {
-            String[] parts = message.split(" ", 2);
-            System.out.println(parts.length);
-            if (parts.length == 2) {
-                String alias = parts[1];
-                if (registeredAliases.contains(alias)) {
-                    out.println("Error: Registration failed. Handle or alias already exists.");
-                } else {
-                    registeredAliases.add(alias);
-                    handle = alias;
-                    out.println("Welcome " + alias + "!");
-                }
-            } else {
-                out.println("Error: Command parameters do not match or are not allowed.");
+        private void transfer(TransferScheduler.Lane lane, Transfer transfer) throws IOException {
+            long start = System.nanoTime();
+            TransferScheduler.admit(lane);
+            long admitted = System.nanoTime();
+            Metrics.recordAdmissionWait(lane, admitted - start);
+            long bytes = session.bytesTransferred();
+            session.beginTransfer();
+            try {
+                transfer.run();
+            } finally {
+                session.endTransfer();
+                TransferScheduler.release(lane);
+                Metrics.recordTransfer(lane, session.bytesTransferred() - bytes, System.nanoTime() - admitted);
             }
         }
 
-        private void handleStore(String message, PrintWriter out, Socket socket) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
+        private void handleStore(String message, PrintWriter out, DataInputStream in) {
+            String[] parts = parseStore(message);
+            if (parts != null && !isValidName(parts[1])) {
+                // Refused before "Ready", so the client sends no body
+                out.println("Error: File name is not allowed.");
+            } else if (parts != null) {
+                String codec = parts[0];
                 String fileName = parts[1];
-                File file = new File(STORAGE_DIR, fileName);
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    out.println("Ready to receive file: " + fileName);
+                Path temp = null;
+                try {
+                    // Received into a temp file, then published into the blob store
+                    temp = BlobStore.newTempFile();
+                    MessageDigest digest = BlobStore.newDigest();
+                    try (FileOutputStream fos = new FileOutputStream(temp.toFile())) {
+                        out.println("Ready to receive file: " + fileName);
 
-                    InputStream is = socket.getInputStream();
-                    DataInputStream dis = new DataInputStream(is);
-                    long fileSize = dis.readLong();
+                        long fileSize = in.readLong();
 
-                    if (fileSize <= 0) {
-                        out.println("Error: File size is invalid.");
-                        return;
-                    }
+                        if (fileSize <= 0) {
+                            out.println("Error: File size is invalid.");
+                            return;
+                        }
 
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long totalBytesRead = 0;
-                    while (totalBytesRead < fileSize && (bytesRead = is.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
+                        if (codec != null) {
+                            long wireSize = in.readLong();
+                            if (!receiveCompressed(in, wireSize, fileSize, fos.getChannel(), digest)) {
+                                out.println("Error: Failed to store file " + fileName);
+                                return;
+                            }
+                            session.addReceived(wireSize);
+                        } else {
+                            byte[] buffer = new byte[64 * 1024];
+                            long totalBytesRead = 0;
+                            while (totalBytesRead < fileSize) {
+                                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalBytesRead));
+                                if (bytesRead == -1) {
+                                    throw new EOFException("Connection closed during upload");
+                                }
+                                fos.write(buffer, 0, bytesRead);
+                                digest.update(buffer, 0, bytesRead);
+                                totalBytesRead += bytesRead;
+                            }
+                            session.addReceived(fileSize);
+                        }
+                        fos.flush();
                     }
 
-                    fos.flush();
+                    publishStore(temp, fileName, digest.digest(), session);
+                    temp = null;
                     String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
                     out.println("File uploaded successfully: " + fileName + " " + timestamp);
                 } catch (IOException e) {
                     out.println("Error: Failed to store file " + fileName);
                     e.printStackTrace();
+                } finally {
+                    if (temp != null) {
+                        BlobStore.discard(temp);
+                    }
                 }
             } else {
                 out.println("Error: Command parameters do not match or are not allowed.");
             }
         }
 
-        private void handleDir(PrintWriter out) {
-            File dir = new File(STORAGE_DIR);
-            String[] files = dir.list();
-            if (files != null) {
-                out.println("Server Directory:");
-                for (String file : files) {
-                    out.println(file);
+        private void handleBatchStore(String message, PrintWriter out, DataInputStream in) throws IOException {
+            int count = BatchTransfer.parseCount(message);
+            if (count < 0) {
+                // Without a record count the records cannot be skipped, so the stream is lost
+                out.println("Error: Malformed batch header.");
+                throw new IOException("Malformed batch header: " + message);
+            }
+            BatchTransfer.Store batch = new BatchTransfer.Store(count);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                while (!batch.isComplete()) {
+                    batch.begin(in);
+                    while (batch.remaining() > 0) {
+                        int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, batch.remaining()));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Connection closed during batch upload");
+                        }
+                        batch.accept(ByteBuffer.wrap(buffer, 0, bytesRead));
+                        session.addReceived(bytesRead);
+                    }
+                    batch.end();
                 }
-            } else {
-                out.println("Error: Failed to list files.");
+                out.print(batch.report());
+                out.flush();
+            } finally {
+                batch.discard();
             }
         }
 
-        private void handleGet(String message, PrintWriter out, Socket socket) {
-            String[] parts = message.split(" ", 2);
-            if (parts.length == 2) {
-                String fileName = parts[1];
+        private void handleBatchGet(String message, PrintWriter out, DataInputStream in) throws IOException {
+            int count = BatchTransfer.parseCount(message);
+            if (count < 0) {
+                out.println("Error: Malformed batch header.");
+                throw new IOException("Malformed batch header: " + message);
+            }
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readLine(in);
+                if (name == null) {
+                    throw new EOFException("Connection closed during batch request");
+                }
+                names.add(name);
+            }
+
+            // A failure part-way through the records leaves the stream unusable, so it
+            // closes the connection rather than being reported in-band
+            BatchTransfer.Get batch = new BatchTransfer.Get(names);
+            TransferScheduler.Flow flow = TransferScheduler.open(session);
+            try {
+                out.println("MGET " + count);
+                boolean done = false;
+                while (!done) {
+                    long sent = batch.sent();
+                    done = batch.writeTo(bodyTarget, TransferScheduler.acquire(flow));
+                    TransferScheduler.sent(flow, batch.sent() - sent);
+                }
+            } finally {
+                TransferScheduler.close(flow);
+                session.addSent(batch.sent());
+                batch.close();
+            }
+        }
+
+        /**
+         * Inflates wireSize compressed bytes into target. Returns false if they did
+         * not inflate to exactly fileSize bytes; the body is consumed either way.
+         */
+        private static boolean receiveCompressed(DataInputStream in, long wireSize, long fileSize,
+                FileChannel target, MessageDigest digest) throws IOException {
+            Compression.Decoder decoder = new Compression.Decoder(fileSize);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = wireSize;
+                while (remaining > 0) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Connection closed during upload");
+                    }
+                    decoder.accept(ByteBuffer.wrap(buffer, 0, bytesRead), data -> {
+                        digest.update(data.duplicate());
+                        while (data.hasRemaining()) {
+                            target.write(data);
+                        }
+                    });
+                    remaining -= bytesRead;
+                }
+                return decoder.isValid();
+            } finally {
+                decoder.end();
+            }
+        }
+
+        private void handleDelta(String message, PrintWriter out, DataInputStream in) throws IOException {
+            DeltaUpload delta = DeltaUpload.parse(message);
+            if (delta == null) {
+                // Without a chunk count the manifest cannot be skipped, so the stream is lost
+                out.println("Error: Malformed delta header.");
+                throw new IOException("Malformed delta header: " + message);
+            }
+            // Read a run of whole records at a time rather than sized by the client's header
+            byte[] manifest = new byte[DeltaUpload.RECORD_SIZE * 1024];
+            while (!delta.isManifestComplete()) {
+                int length = (int) Math.min(manifest.length, delta.manifestRemaining());
+                in.readFully(manifest, 0, length);
+                delta.acceptManifest(ByteBuffer.wrap(manifest, 0, length));
+            }
+            if (!delta.isManifestValid()) {
+                out.println("Error: Invalid delta manifest.");
+                return;
+            }
+            if (!isValidName(delta.getFileName())) {
+                // Refused only now, so the manifest is not left to be taken for commands
+                out.println("Error: File name is not allowed.");
+                return;
+            }
+
+            try {
+                String needed;
+                try {
+                    needed = delta.resolve();
+                } catch (IOException e) {
+                    out.println("Error: Failed to store file " + delta.getFileName());
+                    e.printStackTrace();
+                    return;
+                }
+                out.println("NEED " + needed);
+
+                // Bodies of the needed chunks follow back to back
+                long bodySize = delta.bodyRemaining();
+                byte[] buffer = new byte[64 * 1024];
+                while (!delta.isBodyComplete()) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, delta.bodyRemaining()));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Connection closed during delta upload");
+                    }
+                    delta.acceptBody(ByteBuffer.wrap(buffer, 0, bytesRead));
+                }
+                session.addReceived(bodySize);
+                if (delta.failedChunk() >= 0) {
+                    out.println("Error: Chunk " + delta.failedChunk() + " failed verification.");
+                    return;
+                }
+
+                try {
+                    delta.assemble();
+                } catch (IOException e) {
+                    out.println("Error: Failed to store file " + delta.getFileName());
+                    e.printStackTrace();
+                    return;
+                }
+                String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+                out.println("File uploaded successfully: " + delta.getFileName() + " " + timestamp);
+            } finally {
+                delta.discard();
+            }
+        }
+
+        private void handleChunk(String message, PrintWriter out, DataInputStream in) throws IOException {
+            ChunkedUpload.Chunk chunk = ChunkedUpload.parseChunk(message);
+            if (chunk == null) {
+                // Without a length the body cannot be skipped, so the stream is lost
+                out.println("Error: Malformed chunk header.");
+                throw new IOException("Malformed chunk header: " + message);
+            }
+            if (upload == null || !upload.isValid(chunk)) {
+                in.skipNBytes(chunk.wireLength);
+                out.println("Error: Chunk " + chunk.index + " does not match the current upload.");
+                return;
+            }
+
+            // A failure part-way through leaves the stream unsynchronised; the
+            // connection drops and the client resumes from the progress record.
+            CRC32C crc = new CRC32C();
+            Compression.Decoder decoder = chunk.codec != null ? new Compression.Decoder(chunk.length) : null;
+            ByteBuffer body = chunkBody = ChunkedUpload.scratch(chunkBody, chunk.length);
+            try {
+                if (decoder != null) {
+                    // The decoder never yields more than chunk.length bytes
+                    byte[] buffer = new byte[64 * 1024];
+                    int remaining = chunk.wireLength;
+                    while (remaining > 0) {
+                        int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                        if (bytesRead == -1) {
+                            throw new EOFException("Connection closed during chunk " + chunk.index);
+                        }
+                        decoder.accept(ByteBuffer.wrap(buffer, 0, bytesRead), body::put);
+                        remaining -= bytesRead;
+                    }
+                } else {
+                    in.readFully(body.array(), 0, chunk.length);
+                    body.position(chunk.length);
+                }
+            } finally {
+                if (decoder != null) {
+                    decoder.end();
+                }
+            }
+            session.addReceived(chunk.wireLength);
+            body.flip();
+            crc.update(body.duplicate());
+
+            boolean verified = (int) crc.getValue() == chunk.crc32c && (decoder == null || decoder.isValid());
+            if (handleChunkReceived(upload, chunk, body, verified, out)) {
+                upload.release();
+                upload = null;
+            }
+        }
+
+        private void handleGet(String message, PrintWriter out) {
+            ByteRange range = parseGet(message);
+            if (range != null && !isValidName(range.fileName)) {
+                out.println("Error: File name is not allowed.");
+            } else if (range != null) {
+                String fileName = range.fileName;
                 File file = new File(STORAGE_DIR, fileName);
+                try {
+                    // Brings a cold file back to the hot tier before it is looked at
+                    ColdStore.read(fileName);
+                } catch (IOException e) {
+                    out.println("Error: Failed to send file " + fileName);
+                    e.printStackTrace();
+                    return;
+                }
                 if (file.exists() && !file.isDirectory()) {
                     try {
-                        // Send OK response
-                        out.println("OK");
-
-                        // Read and send file contents line by line
-                        try (BufferedReader fileReader = new BufferedReader(new FileReader(file));
-                                OutputStream os = socket.getOutputStream()) {
+                        long length = range.length(BlobStore.contentSize(fileName));
+                        if (length < 0) {
+                            out.println("Error: Requested range not satisfiable.");
+                            return;
+                        }
 
-                            String line;
-                            while ((line = fileReader.readLine()) != null) {
-                                out.println(line);
-                            }
-                            out.println(); // End of file content marker
-
-                            // Send file binary data
-                            try (FileInputStream fis = new FileInputStream(file)) {
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = fis.read(buffer)) != -1) {
-                                    os.write(buffer, 0, bytesRead);
+                        // Binary frame: "OK <length>" header line followed by exactly <length> raw bytes,
+                        // or by <compressed length> bytes if a codec was negotiated
+                        PreparedBody body = prepareBody(range, length);
+                        ByteBuffer cached = body == null ? ReadCache.get(fileName) : null;
+                        TransferScheduler.Flow flow = TransferScheduler.open(session);
+                        try {
+                            if (body != null) {
+                                try (FileChannel channel = body.channel) {
+                                    out.println(body.header);
+                                    transferFile(channel, body.position, body.count, bodyTarget, flow);
+                                }
+                                session.addSent(body.count);
+                            } else if (cached != null && cached.capacity() >= range.first + length) {
+                                cached.limit((int) (range.first + length)).position((int) range.first);
+                                out.println("OK " + length);
+                                writeFully(cached, bodyTarget, flow);
+                                session.addSent(length);
+                            } else {
+                                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                                    out.println("OK " + length);
+                                    transferFile(fileChannel, range.first, length, bodyTarget, flow);
                                 }
-                                os.flush();
+                                session.addSent(length);
                             }
-
-                            // Send file transfer completion message
-                            out.println("File sent successfully: " + fileName + " "
-                                    + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+                        } finally {
+                            TransferScheduler.close(flow);
                         }
+
+                        // Send file transfer completion message
+                        out.println("File sent successfully: " + fileName + " "
+                                + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
                     } catch (IOException e) {
                         out.println("Error: Failed to send file " + fileName);
                         e.printStackTrace();
                     }
+                } else if (!Cluster.isLocal(fileName, session)) {
+                    sendForwarded(range, out);
                 } else {
                     out.println("Error: File not found in the server.");
                 }
@@ -207,26 +1493,57 @@ public class FileExchangeServer {
             }
         }
 
-        private void handleLeave(PrintWriter out) {
-            out.println("Disconnecting...");
+        /** Relays a /get for a file on other cluster members, in forward mode. */
+        private void sendForwarded(ByteRange range, PrintWriter out) {
+            try {
+                PreparedBody body = prepareForwarded(range);
+                if (body == null) {
+                    out.println("Error: Requested range not satisfiable.");
+                    return;
+                }
+                TransferScheduler.Flow flow = TransferScheduler.open(session);
+                try (FileChannel channel = body.channel) {
+                    out.println(body.header);
+                    transferFile(channel, body.position, body.count, bodyTarget, flow);
+                } finally {
+                    TransferScheduler.close(flow);
+                }
+                session.addSent(body.count);
+                out.println("File sent successfully: " + range.fileName + " "
+                        + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            } catch (ExchangeClient.ReplyException e) {
+                out.println(e.getMessage());
+            } catch (IOException e) {
+                out.println("Error: Failed to send file " + range.fileName);
+                e.printStackTrace();
+            }
         }
 
-        private void handleList(PrintWriter out) {
-            out.println("Registered Handles:");
-            for (String alias : registeredAliases) {
-                out.println(alias);
+        private static void writeFully(ByteBuffer data, WritableByteChannel target, TransferScheduler.Flow flow)
+                throws IOException {
+            int end = data.limit();
+            while (data.hasRemaining()) {
+                data.limit(data.position() + (int) Math.min(data.remaining(), TransferScheduler.acquire(flow)));
+                TransferScheduler.sent(flow, target.write(data));
+                data.limit(end);
             }
         }
 
-        private void handleHelp(PrintWriter out) {
-            out.println("/join <server_ip_add> <port>");
-            out.println("/leave");
-            out.println("/register <handle>");
-            out.println("/store <filename>");
-            out.println("/dir");
-            out.println("/get <filename>");
-            out.println("/list");
-            out.println("/?");
+        private static void transferFile(FileChannel source, long position, long count, WritableByteChannel target,
+                TransferScheduler.Flow flow) throws IOException {
+            // transferTo lets the kernel copy straight from the page cache to the socket
+            // (sendfile) when the target is a SocketChannel; TLS has to encrypt in user space.
+            // Shaped, it goes a quantum at a time.
+            while (count > 0) {
+                long transferred = TlsChannel.transfer(source, position,
+                        Math.min(count, TransferScheduler.acquire(flow)), target);
+                TransferScheduler.sent(flow, transferred);
+                if (transferred <= 0 && position >= source.size()) {
+                    throw new EOFException("File truncated during transfer");
+                }
+                position += transferred;
+                count -= transferred;
+            }
         }
     }
 }
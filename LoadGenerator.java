@@ -0,0 +1,482 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Headless load generator with two modes.
+ *
+ * connect (the default) opens many concurrent connections against a running
+ * server, sends one /dir on each and reports how many were served within the
+ * deadline and with what latency. Connections stay open until the run ends.
+ * It runs on a single selector, so the client side itself is not limited by
+ * threads.
+ *
+ * transfer runs the given number of simulated clients, each on its own
+ * connection, storing and fetching files back to back for a fixed time. File
+ * sizes are drawn from a weighted distribution. It reports throughput and
+ * p50/p99/p999 latency per operation and size, so runs can be compared for
+ * regressions.
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_SIZES = "4k:60,64k:30,1m:9,16m:1";
+    // Names each client cycles through, which bounds the disk a long run uses
+    private static final int NAMES_PER_CLIENT = 16;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java LoadGenerator <IP address> <port> <connections> [timeout seconds]");
+            System.out.println("       java LoadGenerator <IP address> <port> <clients> --mode=transfer [--seconds=30]"
+                    + " [--warmup=5] [--sizes=" + DEFAULT_SIZES + "] [--reads=50] [--seed=42]");
+            return;
+        }
+
+        String ipAddress = args[0];
+        int port = Integer.parseInt(args[1]);
+        int connections = Integer.parseInt(args[2]);
+        InetSocketAddress address = new InetSocketAddress(ipAddress, port);
+
+        Map<String, String> options = new HashMap<>();
+        long timeoutMillis = 10_000;
+        for (int i = 3; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && arg.contains("=")) {
+                int eq = arg.indexOf('=');
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else if (i == 3) {
+                timeoutMillis = Long.parseLong(arg) * 1000;
+            } else {
+                System.out.println("Warning: Ignoring unrecognized argument " + arg);
+            }
+        }
+
+        if (options.getOrDefault("mode", "connect").equals("transfer")) {
+            SizeDistribution sizes = SizeDistribution.parse(options.getOrDefault("sizes", DEFAULT_SIZES));
+            if (sizes == null) {
+                System.out.println("Error: --sizes must look like " + DEFAULT_SIZES);
+                return;
+            }
+            runTransferTest(address, connections, sizes,
+                    Integer.parseInt(options.getOrDefault("reads", "50")),
+                    Long.parseLong(options.getOrDefault("seconds", "30")) * 1000,
+                    Long.parseLong(options.getOrDefault("warmup", "5")) * 1000,
+                    Long.parseLong(options.getOrDefault("seed", "42")));
+        } else {
+            runConnectionTest(address, connections, timeoutMillis);
+        }
+    }
+
+    /**
+     * Every connection must receive the greeting and a complete /dir reply. With
+     * a fixed thread pool only as many connections as threads are ever served;
+     * thread-per-connection and NIO engines should serve all of them.
+     */
+    static void runConnectionTest(InetSocketAddress address, int connections, long timeoutMillis)
+            throws IOException {
+        byte[] request = "/dir\n".getBytes(Charset.defaultCharset());
+        long[] latencies = new long[connections];
+        int served = 0;
+
+        try (Selector selector = Selector.open()) {
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.connect(address);
+                channel.register(selector, SelectionKey.OP_CONNECT, new Probe(request));
+            }
+
+            long deadline = start + timeoutMillis * 1_000_000;
+            int open = connections;
+            while (open > 0) {
+                long remaining = (deadline - System.nanoTime()) / 1_000_000;
+                if (remaining <= 0) {
+                    break;
+                }
+                selector.select(remaining);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe probe = (Probe) key.attachment();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (key.isConnectable() && channel.finishConnect()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            channel.write(probe.request);
+                            if (!probe.request.hasRemaining()) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        } else if (key.isReadable()) {
+                            if (channel.read(probe.response) == -1) {
+                                channel.close();
+                                open--;
+                            } else if (probe.isComplete()) {
+                                // Stay connected, like an idle client, so served
+                                // connections keep holding their server-side resources
+                                latencies[served++] = System.nanoTime() - start;
+                                key.interestOps(0);
+                                open--;
+                            }
+                        }
+                    } catch (IOException e) {
+                        channel.close();
+                        open--;
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+
+        System.out.println("Connections served: " + served + "/" + connections
+                + " within " + timeoutMillis + " ms");
+        if (served > 0) {
+            long[] sorted = Arrays.copyOf(latencies, served);
+            Arrays.sort(sorted);
+            System.out.println("Latency p50: " + percentile(sorted, 0.50) / 1_000_000 + " ms, p99: "
+                    + percentile(sorted, 0.99) / 1_000_000 + " ms, max: "
+                    + sorted[sorted.length - 1] / 1_000_000 + " ms");
+        }
+    }
+
+    static long percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    /**
+     * Every client stores and fetches files until the run ends. A store uploads
+     * fresh bytes under one of the client's names, and a get fetches a name the
+     * client stored earlier, so every reply is checked against a known size.
+     * Operations that start during the warmup are not counted.
+     */
+    static void runTransferTest(InetSocketAddress address, int clients, SizeDistribution sizes, int readPercent,
+            long runMillis, long warmupMillis, long seed) {
+        byte[] template = new byte[sizes.largest()];
+        new Random(seed).nextBytes(template);
+        long start = System.nanoTime();
+        long measureFrom = start + warmupMillis * 1_000_000;
+        long deadline = measureFrom + runMillis * 1_000_000;
+
+        List<SimulatedClient> simulated = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            SimulatedClient client = new SimulatedClient(i, address, sizes, readPercent, template,
+                    new Random(seed + i + 1), measureFrom, deadline);
+            Thread thread = new Thread(client, "client-" + i);
+            simulated.add(client);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        Latencies[][] merged = new Latencies[2][sizes.count()];
+        long finished = measureFrom;
+        int failed = 0;
+        for (SimulatedClient client : simulated) {
+            for (int op = 0; op < 2; op++) {
+                for (int size = 0; size < sizes.count(); size++) {
+                    if (merged[op][size] == null) {
+                        merged[op][size] = new Latencies();
+                    }
+                    merged[op][size].addAll(client.latencies[op][size]);
+                }
+            }
+            finished = Math.max(finished, client.finished);
+            if (client.failure != null) {
+                failed++;
+                System.out.println("Error: Client " + client.id + " stopped: " + client.failure);
+            }
+        }
+
+        double seconds = Math.max(1, finished - measureFrom) / 1e9;
+        System.out.printf("%d clients, %d%% reads, %.1f s measured after %d s warmup%n", clients, readPercent,
+                seconds, warmupMillis / 1000);
+        System.out.printf("%-6s %8s %9s %10s %9s %9s %9s %9s %9s%n", "op", "size", "count", "ops/s", "MB/s",
+                "p50 ms", "p99 ms", "p999 ms", "max ms");
+        String[] ops = { "store", "get" };
+        for (int op = 0; op < 2; op++) {
+            Latencies all = new Latencies();
+            for (int size = 0; size < sizes.count(); size++) {
+                report(ops[op], sizes.label(size), merged[op][size], seconds);
+                all.addAll(merged[op][size]);
+            }
+            report(ops[op], "all", all, seconds);
+        }
+        System.out.println("Clients failed: " + failed + "/" + clients);
+    }
+
+    private static void report(String op, String size, Latencies latencies, double seconds) {
+        if (latencies.count == 0) {
+            return;
+        }
+        long[] sorted = latencies.sorted();
+        System.out.printf("%-6s %8s %9d %10.1f %9.1f %9.2f %9.2f %9.2f %9.2f%n", op, size, sorted.length,
+                sorted.length / seconds, latencies.bytes / seconds / (1024 * 1024),
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6,
+                sorted[sorted.length - 1] / 1e6);
+    }
+
+    /** "4k:60,64k:30,1m:9,16m:1": sizes with k, m or g suffixes and relative weights. */
+    static class SizeDistribution {
+        private final String[] labels;
+        private final int[] sizes;
+        private final int[] cumulative;
+
+        private SizeDistribution(String[] labels, int[] sizes, int[] cumulative) {
+            this.labels = labels;
+            this.sizes = sizes;
+            this.cumulative = cumulative;
+        }
+
+        /** Returns null if malformed, or if a size or weight is not positive. */
+        static SizeDistribution parse(String spec) {
+            String[] entries = spec.split(",");
+            String[] labels = new String[entries.length];
+            int[] sizes = new int[entries.length];
+            int[] cumulative = new int[entries.length];
+            int total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].split(":");
+                if (parts.length != 2) {
+                    return null;
+                }
+                try {
+                    long size = parseSize(parts[0]);
+                    int weight = Integer.parseInt(parts[1]);
+                    if (size <= 0 || size > Integer.MAX_VALUE - 8 || weight <= 0) {
+                        return null;
+                    }
+                    labels[i] = parts[0];
+                    sizes[i] = (int) size;
+                    total += weight;
+                    cumulative[i] = total;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return new SizeDistribution(labels, sizes, cumulative);
+        }
+
+        private static long parseSize(String text) {
+            String lower = text.toLowerCase();
+            long unit = 1;
+            if (lower.endsWith("k")) {
+                unit = 1024;
+            } else if (lower.endsWith("m")) {
+                unit = 1024 * 1024;
+            } else if (lower.endsWith("g")) {
+                unit = 1024 * 1024 * 1024;
+            }
+            String digits = unit == 1 ? lower : lower.substring(0, lower.length() - 1);
+            return Long.parseLong(digits) * unit;
+        }
+
+        int count() {
+            return sizes.length;
+        }
+
+        String label(int index) {
+            return labels[index];
+        }
+
+        int size(int index) {
+            return sizes[index];
+        }
+
+        int largest() {
+            return Arrays.stream(sizes).max().orElse(0);
+        }
+
+        /** Index of a size drawn according to the weights. */
+        int pick(Random random) {
+            int draw = random.nextInt(cumulative[cumulative.length - 1]);
+            int index = 0;
+            while (draw >= cumulative[index]) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    /** Latencies in nanoseconds of one kind of operation, and the bytes they moved. */
+    private static class Latencies {
+        long[] values = new long[256];
+        int count;
+        long bytes;
+
+        void add(long nanos, long size) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = nanos;
+            bytes += size;
+        }
+
+        void addAll(Latencies other) {
+            if (count + other.count > values.length) {
+                values = Arrays.copyOf(values, Math.max(count + other.count, values.length * 2));
+            }
+            System.arraycopy(other.values, 0, values, count, other.count);
+            count += other.count;
+            bytes += other.bytes;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /** One client on its own connection, waiting for each reply before the next request. */
+    private static class SimulatedClient implements Runnable {
+        private static final int STORE = 0;
+        private static final int GET = 1;
+
+        final int id;
+        private final InetSocketAddress address;
+        private final SizeDistribution sizes;
+        private final int readPercent;
+        private final byte[] template;
+        private final Random random;
+        private final long measureFrom;
+        private final long deadline;
+        final Latencies[][] latencies;
+        long finished;
+        String failure;
+
+        SimulatedClient(int id, InetSocketAddress address, SizeDistribution sizes, int readPercent, byte[] template,
+                Random random, long measureFrom, long deadline) {
+            this.id = id;
+            this.address = address;
+            this.sizes = sizes;
+            this.readPercent = readPercent;
+            this.template = template;
+            this.random = random;
+            this.measureFrom = measureFrom;
+            this.deadline = deadline;
+            this.latencies = new Latencies[2][sizes.count()];
+            for (Latencies[] byOp : latencies) {
+                for (int i = 0; i < byOp.length; i++) {
+                    byOp[i] = new Latencies();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket()) {
+                socket.connect(address);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                FileExchangeServer.readLine(in);
+
+                // Size class of what each of the client's names holds, -1 if not stored yet
+                int[] stored = new int[NAMES_PER_CLIENT];
+                Arrays.fill(stored, -1);
+                long sequence = 0;
+                while (System.nanoTime() < deadline) {
+                    int slot;
+                    int sizeClass;
+                    int op;
+                    if (sequence >= NAMES_PER_CLIENT && random.nextInt(100) < readPercent) {
+                        op = GET;
+                        slot = random.nextInt(NAMES_PER_CLIENT);
+                        sizeClass = stored[slot];
+                    } else {
+                        op = STORE;
+                        slot = (int) (sequence++ % NAMES_PER_CLIENT);
+                        sizeClass = sizes.pick(random);
+                    }
+                    String name = "load-" + id + "-" + slot;
+                    int size = sizes.size(sizeClass);
+
+                    long start = System.nanoTime();
+                    if (op == STORE) {
+                        store(in, out, name, size, sequence);
+                        stored[slot] = sizeClass;
+                    } else {
+                        get(in, out, name, size);
+                    }
+                    long end = System.nanoTime();
+                    if (start >= measureFrom) {
+                        latencies[op][sizeClass].add(end - start, size);
+                        finished = end;
+                    }
+                }
+            } catch (IOException e) {
+                failure = e.getMessage();
+            }
+        }
+
+        private void store(DataInputStream in, DataOutputStream out, String name, int size, long sequence)
+                throws IOException {
+            out.write(("/store " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            out.writeLong(size);
+            // A distinct prefix, so the store cannot deduplicate it against an earlier upload
+            int prefix = Math.min(Long.BYTES, size);
+            out.write(ByteBuffer.allocate(Long.BYTES).putLong(sequence * 100_003 + id).array(), 0, prefix);
+            out.write(template, prefix, size - prefix);
+            out.flush();
+            expect(FileExchangeServer.readLine(in), "Ready to receive file");
+            expect(FileExchangeServer.readLine(in), "File uploaded successfully");
+        }
+
+        private void get(DataInputStream in, DataOutputStream out, String name, int size) throws IOException {
+            out.write(("/get " + name + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String header = FileExchangeServer.readLine(in);
+            if (!("OK " + size).equals(header)) {
+                throw new IOException("Expected OK " + size + " but got " + header);
+            }
+            in.skipNBytes(size);
+            expect(FileExchangeServer.readLine(in), "File sent successfully");
+        }
+
+        private static void expect(String line, String prefix) throws IOException {
+            if (line == null || !line.startsWith(prefix)) {
+                throw new IOException("Expected " + prefix + " but got " + line);
+            }
+        }
+    }
+
+    private static class Probe {
+        final ByteBuffer request;
+        final ByteBuffer response = ByteBuffer.allocate(64 * 1024);
+
+        Probe(byte[] request) {
+            this.request = ByteBuffer.wrap(request);
+        }
+
+        /** Greeting line plus "Server Directory:" header and at least one more line. */
+        boolean isComplete() {
+            String text = new String(response.array(), 0, response.position(), Charset.defaultCharset());
+            int header = text.indexOf("Server Directory:");
+            return header >= 0 && text.indexOf('\n', header) >= 0 || text.contains("Error: Failed to list files.");
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, gauges and histograms for the server. They are published as
+ * attributes of the JMX MBean FileExchangeServer:type=Metrics and, with
+ * --metrics-port, as plain text in the Prometheus exposition format from
+ * http://127.0.0.1:<port>/metrics.
+ *
+ * Recording sits on the transfer hot paths, so it never allocates. Counters are
+ * LongAdders, and a histogram is a fixed array of atomic bucket counts.
+ * Gauges and percentiles are only computed when the metrics are read.
+ */
+public class Metrics {
+    private static final String PREFIX = "fileexchange_";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /** Commands of the text protocol, each with its own latency histogram. */
+    enum Command {
+        REGISTER("/register"), STORE("/store"), HAVE("/have"), MSTORE("/mstore"), MGET("/mget"), CODECS("/codecs"),
+        UPLOAD("/upload"), CHUNK("/chunk"), DELTA("/delta"), DIR("/dir"), STAT("/stat"), GET("/get"),
+        LEAVE("/leave"), LIST("/list"), CACHE("/cache"), QUEUE("/queue"), HELP("/?"), FRAMES("/frames"),
+        PEER("/peer"), STAMP("/stamp"), OTHER("");
+
+        final String prefix;
+        final Histogram latency = new Histogram();
+
+        Command(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    // values() clones the array on every call
+    private static final Command[] COMMANDS = Command.values();
+
+    private static final LongAdder bytesReceived = new LongAdder();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final Histogram[] throughput = { new Histogram(), new Histogram() };
+    private static final Histogram[] admissionWait = { new Histogram(), new Histogram() };
+    private static final Histogram fsyncLatency = new Histogram();
+    private static final Histogram fsyncBatch = new Histogram();
+    private static final Histogram publishLatency = new Histogram();
+    private static final Histogram handshakeLatency = new Histogram();
+    private static final Map<String, ExecutorService> pools = new ConcurrentSkipListMap<>();
+
+    /**
+     * Log-linear histogram in the style of HdrHistogram: values below 128 are
+     * counted exactly, larger ones in 64 buckets per power of two, which keeps
+     * every percentile within 1.6% of the recorded value.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 6;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_SHIFT = 34;
+
+        private final AtomicLongArray counts = new AtomicLongArray(2 * SUB_COUNT + MAX_SHIFT * SUB_COUNT);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // Lost a race with a concurrent larger value; retry
+            }
+        }
+
+        private static int index(long value) {
+            if (value < 2 * SUB_COUNT) {
+                return (int) value;
+            }
+            int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BITS, MAX_SHIFT);
+            int sub = (int) Math.min(value >>> shift, 2 * SUB_COUNT - 1) - SUB_COUNT;
+            return 2 * SUB_COUNT + (shift - 1) * SUB_COUNT + sub;
+        }
+
+        // Largest value that falls into the bucket
+        private static long highestValue(int index) {
+            if (index < 2 * SUB_COUNT) {
+                return index;
+            }
+            int shift = (index - 2 * SUB_COUNT) / SUB_COUNT + 1;
+            long sub = (index - 2 * SUB_COUNT) % SUB_COUNT;
+            return ((SUB_COUNT + sub + 1) << shift) - 1;
+        }
+
+        /** Count, sum, max and the QUANTILES, read in one pass over the buckets. */
+        private void sample(Samples out, String name, String labels) {
+            long[] snapshot = new long[counts.length()];
+            long count = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            out.add(name + "_count", labels, count);
+            out.add(name + "_sum", labels, sum.sum());
+            for (double quantile : QUANTILES) {
+                long rank = (long) Math.ceil(quantile * count);
+                long seen = 0;
+                long value = 0;
+                for (int i = 0; i < snapshot.length && count > 0; i++) {
+                    seen += snapshot[i];
+                    if (seen >= Math.max(1, rank)) {
+                        value = Math.min(highestValue(i), max.get());
+                        break;
+                    }
+                }
+                out.add(name, join(labels, "quantile=\"" + quantile + "\""), value);
+            }
+            out.add(name + "_max", labels, max.get());
+        }
+    }
+
+    /** Values gathered for one read, in exposition order. */
+    static class Samples {
+        private final List<String> names = new ArrayList<>();
+        private final List<Number> values = new ArrayList<>();
+
+        /** Adds PREFIX + name with optional labels, such as lane="disk". */
+        void add(String name, String labels, Number value) {
+            names.add(PREFIX + name + (labels.isEmpty() ? "" : "{" + labels + "}"));
+            values.add(value);
+        }
+
+        void writeTo(StringBuilder text) {
+            for (int i = 0; i < names.size(); i++) {
+                text.append(names.get(i)).append(' ').append(values.get(i)).append('\n');
+            }
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /** Registers the MBean and, if port is positive, serves /metrics on the loopback interface. */
+    static void start(int port) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                    new ObjectName("FileExchangeServer:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Error: Could not register metrics MBean.");
+        }
+        if (port > 0) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                StringBuilder text = new StringBuilder();
+                collect().writeTo(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Serving metrics on http://127.0.0.1:" + port + "/metrics");
+        }
+    }
+
+    /** Reports the occupancy of a thread pool under the given name. */
+    static void registerPool(String name, ExecutorService pool) {
+        pools.put(name, pool);
+    }
+
+    /** The command a protocol line starts with, without allocating. */
+    static Command command(String message) {
+        for (Command command : COMMANDS) {
+            String prefix = command.prefix;
+            if (message.startsWith(prefix)
+                    && (message.length() == prefix.length() || message.charAt(prefix.length()) == ' ')) {
+                return command;
+            }
+        }
+        return Command.OTHER;
+    }
+
+    /** Time from a command line being read until its reply, and any body, has been written. */
+    static void recordCommand(Command command, long nanos) {
+        command.latency.record(nanos / 1000);
+    }
+
+    static void recordReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    static void recordSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /** A finished transfer of bytes in either direction, timed from its admission. */
+    static void recordTransfer(TransferScheduler.Lane lane, long bytes, long nanos) {
+        if (bytes > 0 && nanos > 0) {
+            throughput[lane.ordinal()].record((long) (bytes * 1e9 / 1024 / nanos));
+        }
+    }
+
+    static void recordAdmissionWait(TransferScheduler.Lane lane, long nanos) {
+        admissionWait[lane.ordinal()].record(nanos / 1000);
+    }
+
+    static void recordFsync(long nanos) {
+        fsyncLatency.record(nanos / 1000);
+    }
+
+    /** Number of callers whose files one group-commit round forced together. */
+    static void recordFsyncBatch(int commits) {
+        fsyncBatch.record(commits);
+    }
+
+    static void recordPublish(long nanos) {
+        publishLatency.record(nanos / 1000);
+    }
+
+    /** Time from accepting a TLS connection to the end of its handshake. */
+    static void recordHandshake(long nanos) {
+        handshakeLatency.record(nanos / 1000);
+    }
+
+    /** Reads every metric. */
+    static Samples collect() {
+        Samples out = new Samples();
+        out.add("connections_active", "", SessionRegistry.sessionCount());
+        out.add("connections_opened_total", "", SessionRegistry.openedCount());
+        out.add("bytes_received_total", "", bytesReceived.sum());
+        out.add("bytes_sent_total", "", bytesSent.sum());
+        for (Command command : COMMANDS) {
+            command.latency.sample(out, "command_latency_us", "command=\"" + command.name().toLowerCase() + "\"");
+        }
+        for (TransferScheduler.Lane lane : TransferScheduler.Lane.values()) {
+            String labels = "lane=\"" + lane.name().toLowerCase() + "\"";
+            throughput[lane.ordinal()].sample(out, "transfer_throughput_kbps", labels);
+            admissionWait[lane.ordinal()].sample(out, "admission_wait_us", labels);
+        }
+        TransferScheduler.sample(out);
+        for (Map.Entry<String, ExecutorService> pool : pools.entrySet()) {
+            if (pool.getValue() instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor executor = (ThreadPoolExecutor) pool.getValue();
+                String labels = "pool=\"" + pool.getKey() + "\"";
+                out.add("pool_threads", labels, executor.getPoolSize());
+                out.add("pool_active", labels, executor.getActiveCount());
+                out.add("pool_queued", labels, executor.getQueue().size());
+            }
+        }
+        ReadCache.sample(out);
+        out.add("stored_names", "", BlobStore.nameCount());
+        ColdStore.sample(out);
+        publishLatency.sample(out, "publish_latency_us", "");
+        handshakeLatency.sample(out, "tls_handshake_latency_us", "");
+        fsyncLatency.sample(out, "fsync_latency_us", "");
+        fsyncBatch.sample(out, "fsync_batch_commits", "");
+        try {
+            FileStore store = Files.getFileStore(Paths.get(FileExchangeServer.STORAGE_DIR));
+            out.add("disk_usable_bytes", "", store.getUsableSpace());
+            out.add("disk_total_bytes", "", store.getTotalSpace());
+        } catch (IOException e) {
+            // Reported as absent
+        }
+        return out;
+    }
+
+    private static String join(String labels, String label) {
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    /** Every sample as a read-only attribute, named as in the text format. */
+    private static class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Samples samples = collect();
+            int i = samples.names.indexOf(attribute);
+            if (i < 0) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return samples.values.get(i);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Samples samples = collect();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                int i = samples.names.indexOf(attribute);
+                if (i >= 0) {
+                    list.add(new Attribute(attribute, samples.values.get(i)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // The bean has attributes only
+            throw new ReflectionException(new NoSuchMethodException(actionName), actionName + " is not an operation");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Samples samples = collect();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.names.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = new MBeanAttributeInfo(samples.names.get(i), samples.values.get(i).getClass().getName(),
+                        samples.names.get(i), true, false, false);
+            }
+            return new MBeanInfo(MetricsBean.class.getName(), "File Exchange Server metrics", attributes, null, null,
+                    null);
+        }
+    }
+}
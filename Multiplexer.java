@@ -0,0 +1,436 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Framed mode for one connection, entered with /frames. After the "FRAMES 1"
+ * reply both sides exchange only frames:
+ *
+ *   type (1 byte) | flags (1) | stream id (4) | payload length (4) | payload
+ *
+ * DATA frames carry stream bytes and FIN in the flags ends one direction of a
+ * stream. WINDOW frames return flow-control credit (a 4-byte increment) for a
+ * stream, and RESET frames abort one with a reason. Each stream behaves like a
+ * separate text-mode connection, commands and bodies alike, so a client
+ * pipelines requests by opening one stream per request; the stream id is the
+ * request id. Stream ids must increase, and a client opens a stream by
+ * sending DATA on a new id.
+ *
+ * Every stream may have at most WINDOW_SIZE bytes in flight in each direction,
+ * so a stream whose reader is slow stalls itself and not the connection.
+ * Outgoing frames are written round-robin across streams, one frame of at most
+ * MAX_FRAME bytes per turn, so a large download cannot starve short replies.
+ */
+public class Multiplexer {
+    static final int DATA = 0;
+    static final int WINDOW = 1;
+    static final int RESET = 2;
+    static final int FIN = 1;
+    static final int HEADER_SIZE = 10;
+    static final int MAX_FRAME = 64 * 1024;
+    static final int WINDOW_SIZE = 256 * 1024;
+    static final int MAX_STREAMS = 64;
+
+    /** Serves one stream; returning closes it, throwing resets it. */
+    interface Handler {
+        void serve(InputStream in, OutputStream out) throws IOException;
+    }
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Executor executor;
+    private final Handler handler;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private int highestId;
+
+    // Guards all stream state and the outbound queues
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    // WINDOW and RESET frames, sent ahead of data
+    private final Deque<byte[]> control = new ArrayDeque<>();
+    // Streams with queued data, served round-robin
+    private final Deque<Stream> ready = new ArrayDeque<>();
+    private boolean closed;
+
+    Multiplexer(InputStream in, OutputStream out, Executor executor, Handler handler) {
+        this.in = new DataInputStream(in);
+        this.out = new BufferedOutputStream(out, MAX_FRAME + HEADER_SIZE);
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /** Outgoing bytes of a stream waiting for the writer. */
+    private static class Chunk {
+        byte[] data;
+        int length;
+        boolean fin;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private class Stream {
+        final int id;
+        final Condition changed = lock.newCondition();
+        final Deque<byte[]> received = new ArrayDeque<>();
+        int readOffset;
+        int receiveCredit = WINDOW_SIZE;
+        int consumed;
+        boolean receivedFin;
+
+        final Deque<Chunk> outgoing = new ArrayDeque<>();
+        int sendCredit = WINDOW_SIZE;
+        boolean sentFin;
+        boolean reset;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Reads frames on the calling thread until the connection ends. Stream
+     * handlers run on the executor, as does the writer.
+     */
+    void serve() throws IOException {
+        executor.execute(this::writeFrames);
+        try {
+            while (true) {
+                int type;
+                try {
+                    type = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                int flags = in.readUnsignedByte();
+                int id = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Frame of " + length + " bytes");
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (type == DATA) {
+                    receiveData(id, payload, (flags & FIN) != 0);
+                } else if (type == WINDOW && length == 4) {
+                    receiveWindow(id, new DataInputStream(new ByteArrayInputStream(payload)).readInt());
+                } else if (type == RESET) {
+                    receiveReset(id);
+                } else {
+                    throw new IOException("Unknown frame type " + type);
+                }
+            }
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                pending.signalAll();
+                for (Stream stream : streams.values()) {
+                    stream.changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void receiveData(int id, byte[] payload, boolean fin) throws IOException {
+        Stream stream = streams.get(id);
+        if (stream == null) {
+            // Late data for a stream that already ended is dropped
+            if (id <= highestId) {
+                return;
+            }
+            highestId = id;
+            if (streams.size() >= MAX_STREAMS) {
+                queueControl(RESET, id, "Error: Too many streams.".getBytes());
+                return;
+            }
+            stream = new Stream(id);
+            streams.put(id, stream);
+            Stream started = stream;
+            executor.execute(() -> run(started));
+        }
+
+        lock.lock();
+        try {
+            if (payload.length > stream.receiveCredit) {
+                throw new IOException("Stream " + id + " exceeded its window");
+            }
+            if (payload.length > 0) {
+                stream.received.add(payload);
+                stream.receiveCredit -= payload.length;
+            }
+            stream.receivedFin |= fin;
+            stream.changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void receiveWindow(int id, int increment) {
+        Stream stream = streams.get(id);
+        if (stream == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            stream.sendCredit += increment;
+            stream.changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void receiveReset(int id) {
+        Stream stream = streams.get(id);
+        if (stream == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            stream.reset = true;
+            stream.outgoing.clear();
+            stream.changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(Stream stream) {
+        try {
+            handler.serve(new StreamInput(stream), new StreamOutput(stream));
+        } catch (IOException e) {
+            lock.lock();
+            try {
+                if (!stream.reset && !closed) {
+                    stream.reset = true;
+                    stream.outgoing.clear();
+                    String reason = e.getMessage() != null ? e.getMessage() : "Error: Stream failed.";
+                    queueControl(RESET, stream.id, reason.getBytes());
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            streams.remove(stream.id);
+        }
+    }
+
+    // Queues a frame that bypasses flow control
+    private void queueControl(int type, int id, byte[] payload) {
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        frame[0] = (byte) type;
+        putInt(frame, 2, id);
+        putInt(frame, 6, payload.length);
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, payload.length);
+        lock.lock();
+        try {
+            control.add(frame);
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void putInt(byte[] target, int offset, int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+
+    /** Single writer: control frames first, then one data frame per ready stream in turn. */
+    private void writeFrames() {
+        byte[] header = new byte[HEADER_SIZE];
+        try {
+            while (true) {
+                byte[] frame = null;
+                Chunk chunk = null;
+                int id = 0;
+                boolean more;
+                lock.lock();
+                try {
+                    while (!closed && control.isEmpty() && ready.isEmpty()) {
+                        pending.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    frame = control.poll();
+                    if (frame == null) {
+                        Stream stream = ready.poll();
+                        chunk = stream.outgoing.poll();
+                        id = stream.id;
+                        if (!stream.outgoing.isEmpty()) {
+                            ready.add(stream);
+                        }
+                    }
+                    more = !control.isEmpty() || !ready.isEmpty();
+                } finally {
+                    lock.unlock();
+                }
+
+                if (frame != null) {
+                    out.write(frame);
+                } else if (chunk != null) {
+                    header[0] = DATA;
+                    header[1] = (byte) (chunk.fin ? FIN : 0);
+                    putInt(header, 2, id);
+                    putInt(header, 6, chunk.length);
+                    out.write(header);
+                    out.write(chunk.data, 0, chunk.length);
+                }
+                if (!more) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closing the socket ends the reader as well
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+        }
+    }
+
+    private class StreamInput extends InputStream {
+        private final Stream stream;
+
+        StreamInput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                while (stream.received.isEmpty() && !stream.receivedFin && !stream.reset && !closed) {
+                    stream.changed.awaitUninterruptibly();
+                }
+                if (stream.reset || closed && stream.received.isEmpty()) {
+                    throw new IOException("Stream " + stream.id + " closed");
+                }
+                if (stream.received.isEmpty()) {
+                    return -1;
+                }
+                byte[] head = stream.received.peek();
+                int count = Math.min(length, head.length - stream.readOffset);
+                System.arraycopy(head, stream.readOffset, buffer, offset, count);
+                stream.readOffset += count;
+                if (stream.readOffset == head.length) {
+                    stream.received.poll();
+                    stream.readOffset = 0;
+                }
+
+                // Return credit in batches rather than one WINDOW frame per read
+                stream.consumed += count;
+                if (stream.consumed >= WINDOW_SIZE / 2 && !stream.receivedFin) {
+                    stream.receiveCredit += stream.consumed;
+                    byte[] increment = new byte[4];
+                    putInt(increment, 0, stream.consumed);
+                    stream.consumed = 0;
+                    queueControl(WINDOW, stream.id, increment);
+                }
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private class StreamOutput extends OutputStream {
+        private final Stream stream;
+
+        StreamOutput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /**
+         * Appends to the stream's last queued frame while the writer has not taken
+         * it, so a burst of short reply lines goes out as one frame.
+         */
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            lock.lock();
+            try {
+                while (length > 0) {
+                    while (stream.sendCredit == 0 && !stream.reset && !closed) {
+                        stream.changed.awaitUninterruptibly();
+                    }
+                    if (stream.reset || closed || stream.sentFin) {
+                        throw new IOException("Stream " + stream.id + " closed");
+                    }
+                    Chunk last = stream.outgoing.peekLast();
+                    if (last == null || last.length == MAX_FRAME) {
+                        last = new Chunk(Math.min(MAX_FRAME, Math.max(length, 1024)));
+                        stream.outgoing.add(last);
+                    }
+                    if (last.length == last.data.length) {
+                        last.data = Arrays.copyOf(last.data, Math.min(MAX_FRAME, last.data.length * 2));
+                    }
+                    int count = Math.min(length, Math.min(stream.sendCredit, last.data.length - last.length));
+                    System.arraycopy(buffer, offset, last.data, last.length, count);
+                    last.length += count;
+                    stream.sendCredit -= count;
+                    offset += count;
+                    length -= count;
+                    schedule();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (stream.sentFin || stream.reset || closed) {
+                    return;
+                }
+                stream.sentFin = true;
+                Chunk last = stream.outgoing.peekLast();
+                if (last == null) {
+                    last = new Chunk(0);
+                    stream.outgoing.add(last);
+                }
+                last.fin = true;
+                schedule();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Called with the lock held
+        private void schedule() {
+            if (!ready.contains(stream)) {
+                ready.add(stream);
+            }
+            pending.signal();
+        }
+    }
+}
@@ -0,0 +1,1304 @@
+import java.io.*;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Non-blocking server engine. A small number of selector event loops multiplex
+ * every client connection, so an idle client costs a file descriptor and two
+ * buffers instead of a thread. Speaks the same command set as ClientHandler.
+ * With --tls-keystore every connection reads and writes through a non-blocking
+ * TlsChannel, whose handshake the loop drives like any other I/O.
+ */
+public class NioServer {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Runs commands that may block for a long time (e.g. hashing a large file) off the event loops
+    private static final ExecutorService workers = Executors.newCachedThreadPool();
+
+    private final EventLoop[] eventLoops;
+    private int nextLoop;
+
+    public NioServer(int eventLoopCount) throws IOException {
+        eventLoops = new EventLoop[eventLoopCount];
+        Metrics.registerPool("nio-workers", workers);
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop();
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.start();
+        }
+    }
+
+    /**
+     * Accepts connections on the calling thread and spreads them round-robin
+     * across the event loops. Never returns unless accepting fails.
+     */
+    public void serve(ServerSocketChannel serverChannel) throws IOException {
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            clientChannel.configureBlocking(false);
+            clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            eventLoops[nextLoop].register(clientChannel);
+            nextLoop = (nextLoop + 1) % eventLoops.length;
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /** Runs the task on this loop's thread, where connection state may be touched. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            System.out.println("Error: Event loop task failed.");
+                            e.printStackTrace();
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // A bug in one command must not strand every connection on this loop
+                            System.out.println("Error: Connection failed unexpectedly.");
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Error: Event loop failure.");
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                Connection connection = null;
+                try {
+                    connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.send("Connection to the File Exchange Server is successful!\n");
+                    connection.flush();
+                    connection.updateInterest();
+                } catch (IOException e) {
+                    if (connection != null) {
+                        connection.close();
+                    } else {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                            // Nothing left to release
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Something queued for writing to the client: a text response or a file region. */
+    private interface Outbound {
+        /** Writes as much as the socket accepts, at most limit bytes, and returns how many were written. */
+        long writeTo(WritableByteChannel channel, long limit) throws IOException;
+
+        boolean isDone();
+
+        default void release() {
+        }
+    }
+
+    private static class BufferOutbound implements Outbound {
+        private final ByteBuffer buffer;
+
+        BufferOutbound(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel channel, long limit) throws IOException {
+            if (limit >= buffer.remaining()) {
+                return channel.write(buffer);
+            }
+            int end = buffer.limit();
+            buffer.limit(buffer.position() + (int) limit);
+            try {
+                return channel.write(buffer);
+            } finally {
+                buffer.limit(end);
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            return !buffer.hasRemaining();
+        }
+    }
+
+    private static class FileOutbound implements Outbound {
+        private final FileChannel file;
+        private long position;
+        private long remaining;
+
+        FileOutbound(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel channel, long limit) throws IOException {
+            long written = 0;
+            while (remaining > 0 && written < limit) {
+                long transferred = TlsChannel.transfer(file, position, Math.min(remaining, limit - written), channel);
+                if (transferred == 0) {
+                    if (position >= file.size()) {
+                        throw new EOFException("File truncated during transfer");
+                    }
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+                written += transferred;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isDone() {
+            return remaining == 0;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // Read-only channel; nothing to flush
+            }
+        }
+    }
+
+    /** The records of an /mget reply, produced as the socket drains. */
+    private static class BatchOutbound implements Outbound {
+        private final BatchTransfer.Get batch;
+        private final SessionRegistry.Session session;
+        private boolean done;
+
+        BatchOutbound(BatchTransfer.Get batch, SessionRegistry.Session session) {
+            this.batch = batch;
+            this.session = session;
+        }
+
+        @Override
+        public long writeTo(WritableByteChannel channel, long limit) throws IOException {
+            long sent = batch.sent();
+            done = batch.writeTo(channel, limit);
+            return batch.sent() - sent;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public void release() {
+            session.addSent(batch.sent());
+            batch.close();
+        }
+    }
+
+    private enum State {
+        COMMAND, STORE_SIZE, STORE_BODY, CHUNK_BODY, CHUNK_SKIP, DELTA_MANIFEST, DELTA_BODY, BATCH_RECORD,
+        BATCH_NAMES
+    }
+
+    /**
+     * Per-connection state machine. Incoming bytes accumulate in readBuffer and
+     * are framed into command lines, or copied into the file being stored.
+     * Commands are only processed while the write queue is empty, so replies stay
+     * in order and a slow reader stalls its own connection, not the loop.
+     * A transfer holds its admission slot, and a /get its shaping flow, until
+     * the connection is idle again.
+     */
+    private static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        // Set when the server runs TLS; io is then this, else the socket channel itself
+        private final TlsChannel tls;
+        private final ByteChannel io;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final Deque<Outbound> writeQueue = new ArrayDeque<>();
+        private SelectionKey key;
+        private State state = State.COMMAND;
+        private boolean awaitingWorker;
+        private boolean framed;
+        // A last error line is queued; nothing more is read, and the connection closes once it is written
+        private boolean closing;
+        private final SessionRegistry.Session session;
+
+        // The command being served, timed until the connection is idle again
+        private Metrics.Command command;
+        private long commandStart;
+        private TransferScheduler.Lane admitted;
+        private long admissionStart;
+        private long transferStart;
+        private long transferBytes;
+        private boolean awaitingAdmission;
+        private TransferScheduler.Flow flow;
+        private boolean awaitingGrant;
+        private boolean granted;
+
+        private FileChannel storeChannel;
+        private Path storeTemp;
+        private MessageDigest storeDigest;
+        private String storeFileName;
+        private String storeCodec;
+        private Compression.Decoder storeDecoder;
+        private long storeRemaining;
+
+        private ChunkedUpload upload;
+        private ChunkedUpload.Chunk chunk;
+        private final CRC32C chunkCrc = new CRC32C();
+        private ByteBuffer chunkBody;
+        private int chunkRemaining;
+        private Compression.Decoder chunkDecoder;
+
+        private DeltaUpload delta;
+
+        private BatchTransfer.Store batchStore;
+        private boolean batchInRecord;
+        private int batchCount;
+        private List<String> batchNames;
+
+        Connection(EventLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.tls = FileExchangeServer.tls != null ? TlsChannel.server(channel, FileExchangeServer.tls) : null;
+            this.io = tls != null ? tls : channel;
+            this.session = SessionRegistry.open(channel.getRemoteAddress(), () -> loop.execute(this::close));
+        }
+
+        void onReadable() throws IOException {
+            if (io.read(readBuffer) == -1) {
+                close();
+                return;
+            }
+            session.touch();
+            process();
+        }
+
+        void onWritable() throws IOException {
+            session.touch();
+            flush();
+            process();
+        }
+
+        private void process() throws IOException {
+            readBuffer.flip();
+            boolean progress = true;
+            while (progress && !closing && readBuffer.hasRemaining()) {
+                switch (state) {
+                    case COMMAND:
+                        flush();
+                        progress = !framed && !awaitingWorker && !awaitingAdmission && writeQueue.isEmpty()
+                                && processLine();
+                        break;
+                    case STORE_SIZE:
+                        progress = readStoreSize();
+                        break;
+                    case STORE_BODY:
+                        progress = readStoreBody();
+                        break;
+                    case CHUNK_BODY:
+                        progress = readChunkBody();
+                        break;
+                    case CHUNK_SKIP:
+                        progress = skipChunkBody();
+                        break;
+                    case DELTA_MANIFEST:
+                        progress = readDeltaManifest();
+                        break;
+                    case DELTA_BODY:
+                        progress = readDeltaBody();
+                        break;
+                    case BATCH_RECORD:
+                        progress = readBatchRecord();
+                        break;
+                    case BATCH_NAMES:
+                        progress = readBatchName();
+                        break;
+                }
+            }
+            readBuffer.compact();
+            if (framed) {
+                handOff();
+                return;
+            }
+
+            if (state == State.COMMAND && !awaitingWorker && !awaitingAdmission && writeQueue.isEmpty()
+                    && !readBuffer.hasRemaining()) {
+                // A full buffer without a newline can never frame a command
+                readBuffer.clear();
+                send("Error: Command too long.\n");
+            }
+            if (state == State.BATCH_NAMES && !readBuffer.hasRemaining()) {
+                throw new IOException("Batch name too long");
+            }
+            flush();
+            if (closing && writeQueue.isEmpty() && (tls == null || !tls.hasPendingOutput())) {
+                close();
+                return;
+            }
+            if (state == State.COMMAND && !awaitingWorker && !awaitingAdmission && writeQueue.isEmpty()) {
+                finishCommand();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Replies with error and then closes, for a header whose body cannot be
+         * skipped, so the stream is lost. The threaded engine does the same.
+         */
+        private void fail(String error) {
+            state = State.COMMAND;
+            send(error + "\n");
+            closing = true;
+        }
+
+        private boolean processLine() throws IOException {
+            String line = nextLine();
+            if (line == null) {
+                return false;
+            }
+            // Idle again, so whatever command came before is complete
+            finishCommand();
+            command = Metrics.command(line);
+            commandStart = System.nanoTime();
+            processCommand(line);
+            return true;
+        }
+
+        /**
+         * Takes a slot in the lane for a transfer command. Returns false if the
+         * command has to wait; it is then run again once admitted, and no further
+         * input is read until then.
+         */
+        private boolean admit(TransferScheduler.Lane lane, String message) {
+            if (admitted == lane) {
+                return true;
+            }
+            admissionStart = System.nanoTime();
+            if (!TransferScheduler.admit(lane, () -> loop.execute(() -> onAdmitted(lane, message)))) {
+                awaitingAdmission = true;
+                return false;
+            }
+            admitted(lane);
+            return true;
+        }
+
+        private void admitted(TransferScheduler.Lane lane) {
+            admitted = lane;
+            transferStart = System.nanoTime();
+            transferBytes = session.bytesTransferred();
+            Metrics.recordAdmissionWait(lane, transferStart - admissionStart);
+            session.beginTransfer();
+            if (lane == TransferScheduler.Lane.NETWORK) {
+                flow = TransferScheduler.open(session);
+            }
+        }
+
+        private void onAdmitted(TransferScheduler.Lane lane, String message) {
+            awaitingAdmission = false;
+            if (!channel.isOpen()) {
+                TransferScheduler.release(lane);
+                return;
+            }
+            admitted(lane);
+            try {
+                processCommand(message);
+                process();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void finishCommand() {
+            if (command != null) {
+                Metrics.recordCommand(command, System.nanoTime() - commandStart);
+                command = null;
+            }
+            finishTransfer();
+        }
+
+        private void finishTransfer() {
+            if (admitted == null) {
+                return;
+            }
+            Metrics.recordTransfer(admitted, session.bytesTransferred() - transferBytes,
+                    System.nanoTime() - transferStart);
+            TransferScheduler.close(flow);
+            if (granted) {
+                TransferScheduler.sent(flow, 0);
+                granted = false;
+            }
+            flow = null;
+            session.endTransfer();
+            TransferScheduler.release(admitted);
+            admitted = null;
+        }
+
+        /** Takes the next complete line off the read buffer, or returns null if there is none yet. */
+        private String nextLine() {
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    int end = i > start && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[end - start];
+                    readBuffer.get(line);
+                    readBuffer.position(i + 1);
+                    return new String(line, StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        private void processCommand(String message) throws IOException {
+            StringWriter response = new StringWriter();
+            PrintWriter out = new PrintWriter(response);
+
+            if (FileExchangeServer.redirected(message, session, out)) {
+                // Sent to the owning cluster member
+            } else if (message.startsWith("/register")) {
+                FileExchangeServer.handleRegister(message, session, out);
+            } else if (message.startsWith("/store")) {
+                if (admit(TransferScheduler.Lane.DISK, message)) {
+                    handleStore(message, out);
+                }
+            } else if (message.startsWith("/have")) {
+                // Linking may wait for the disk under an fsync policy
+                offload(workerOut -> FileExchangeServer.handleHave(message, workerOut), null);
+            } else if (message.startsWith("/mstore")) {
+                if (admit(TransferScheduler.Lane.DISK, message)) {
+                    handleBatchStore(message);
+                }
+            } else if (message.startsWith("/mget")) {
+                if (admit(TransferScheduler.Lane.NETWORK, message)) {
+                    handleBatchGet(message, out);
+                }
+            } else if (message.startsWith("/codecs")) {
+                FileExchangeServer.handleCodecs(message, out);
+            } else if (message.startsWith("/upload")) {
+                if (upload != null) {
+                    upload.release();
+                    upload = null;
+                }
+                // Opening reads the progress record, and a complete upload hashes the
+                // whole file on publish, so it runs on a worker
+                ChunkedUpload[] opened = new ChunkedUpload[1];
+                offload(workerOut -> opened[0] = FileExchangeServer.handleUpload(message, workerOut), () -> {
+                    if (opened[0] != null && !channel.isOpen()) {
+                        opened[0].release();
+                    } else {
+                        upload = opened[0];
+                    }
+                });
+            } else if (message.startsWith("/chunk")) {
+                if (admit(TransferScheduler.Lane.DISK, message)) {
+                    handleChunk(message, out);
+                }
+            } else if (message.startsWith("/delta")) {
+                if (admit(TransferScheduler.Lane.DISK, message)) {
+                    handleDelta(message);
+                }
+            } else if (message.startsWith("/dir")) {
+                FileExchangeServer.handleDir(message, out);
+            } else if (message.startsWith("/stat")) {
+                // Hashing, or in forward mode asking the owners, may take a while
+                offload(workerOut -> FileExchangeServer.handleStat(message, session, workerOut), null);
+            } else if (message.startsWith("/get")) {
+                if (admit(TransferScheduler.Lane.NETWORK, message)) {
+                    handleGet(message, out);
+                }
+            } else if (message.equals("/peer")) {
+                FileExchangeServer.handlePeer(session, out);
+            } else if (message.startsWith("/stamp")) {
+                FileExchangeServer.handleStamp(message, session, out);
+            } else if (message.equals("/leave")) {
+                FileExchangeServer.handleLeave(session, out);
+            } else if (message.startsWith("/list")) {
+                FileExchangeServer.handleList(message, out);
+            } else if (message.equals("/cache")) {
+                FileExchangeServer.handleCache(out);
+            } else if (message.equals("/queue")) {
+                FileExchangeServer.handleQueue(out);
+            } else if (message.equals("/?")) {
+                FileExchangeServer.handleHelp(out);
+            } else if (message.equals("/frames")) {
+                framed = true;
+            } else {
+                out.println("Error: Command not found.");
+            }
+            out.flush();
+            send(response.toString());
+        }
+
+        private void handleStore(String message, PrintWriter out) {
+            String[] parts = FileExchangeServer.parseStore(message);
+            if (parts != null && !FileExchangeServer.isValidName(parts[1])) {
+                // Refused before "Ready", so the client sends no body
+                out.println("Error: File name is not allowed.");
+            } else if (parts != null) {
+                String fileName = parts[1];
+                try {
+                    // Received into a temp file, then published into the blob store
+                    storeTemp = BlobStore.newTempFile();
+                    storeChannel = FileChannel.open(storeTemp, StandardOpenOption.WRITE);
+                    storeDigest = BlobStore.newDigest();
+                    storeFileName = fileName;
+                    storeCodec = parts[0];
+                    state = State.STORE_SIZE;
+                    out.println("Ready to receive file: " + fileName);
+                } catch (IOException e) {
+                    finishStore();
+                    out.println("Error: Failed to store file " + fileName);
+                }
+            } else {
+                out.println("Error: Command parameters do not match or are not allowed.");
+            }
+        }
+
+        private boolean readStoreSize() throws IOException {
+            // A compressed body is preceded by its compressed size as well
+            if (readBuffer.remaining() < (storeCodec != null ? 2 : 1) * Long.BYTES) {
+                return false;
+            }
+            storeRemaining = readBuffer.getLong();
+            if (storeRemaining <= 0) {
+                finishStore();
+                send("Error: File size is invalid.\n");
+                return true;
+            }
+            if (storeCodec != null) {
+                storeDecoder = new Compression.Decoder(storeRemaining);
+                storeRemaining = readBuffer.getLong();
+            }
+            state = State.STORE_BODY;
+            return true;
+        }
+
+        private boolean readStoreBody() throws IOException {
+            int count = (int) Math.min(readBuffer.remaining(), storeRemaining);
+            ByteBuffer chunk = readBuffer.slice();
+            chunk.limit(count);
+            try {
+                if (storeDecoder != null) {
+                    storeDecoder.accept(chunk, data -> {
+                        storeDigest.update(data.duplicate());
+                        while (data.hasRemaining()) {
+                            storeChannel.write(data);
+                        }
+                    });
+                } else {
+                    storeDigest.update(chunk.duplicate());
+                    while (chunk.hasRemaining()) {
+                        storeChannel.write(chunk);
+                    }
+                }
+            } catch (IOException e) {
+                finishStore();
+                send("Error: Failed to store file " + storeFileName + "\n");
+                close();
+                return false;
+            }
+            readBuffer.position(readBuffer.position() + count);
+            storeRemaining -= count;
+            session.addReceived(count);
+
+            if (storeRemaining == 0) {
+                String fileName = storeFileName;
+                Path temp = storeTemp;
+                storeTemp = null;
+                boolean valid = storeDecoder == null || storeDecoder.isValid();
+                byte[] sha256 = storeDigest.digest();
+                finishStore();
+                if (!valid) {
+                    BlobStore.discard(temp);
+                    send("Error: Failed to store file " + fileName + "\n");
+                    return true;
+                }
+                // Publishing may compress the blob at rest, or forward it, so it runs on a worker
+                offload(out -> {
+                    try {
+                        FileExchangeServer.publishStore(temp, fileName, sha256, session);
+                        String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+                        out.println("File uploaded successfully: " + fileName + " " + timestamp);
+                    } catch (IOException e) {
+                        BlobStore.discard(temp);
+                        out.println("Error: Failed to store file " + fileName);
+                    }
+                }, null);
+            }
+            return true;
+        }
+
+        private void handleChunk(String message, PrintWriter out) {
+            chunk = ChunkedUpload.parseChunk(message);
+            if (chunk == null) {
+                // Without a length the body cannot be skipped, so the stream is lost
+                fail("Error: Malformed chunk header.");
+                return;
+            }
+            chunkRemaining = chunk.wireLength;
+            if (upload == null || !upload.isValid(chunk)) {
+                out.println("Error: Chunk " + chunk.index + " does not match the current upload.");
+                state = chunkRemaining > 0 ? State.CHUNK_SKIP : State.COMMAND;
+                return;
+            }
+            chunkBody = ChunkedUpload.scratch(chunkBody, chunk.length);
+            chunkDecoder = chunk.codec != null ? new Compression.Decoder(chunk.length) : null;
+            state = State.CHUNK_BODY;
+            if (chunkRemaining == 0) {
+                finishChunk();
+            }
+        }
+
+        private boolean readChunkBody() throws IOException {
+            int count = Math.min(readBuffer.remaining(), chunkRemaining);
+            ByteBuffer body = readBuffer.slice();
+            body.limit(count);
+            // Collected in the scratch buffer; the decoder never yields more than chunk.length bytes
+            if (chunkDecoder != null) {
+                chunkDecoder.accept(body, chunkBody::put);
+            } else {
+                chunkBody.put(body);
+            }
+            readBuffer.position(readBuffer.position() + count);
+            chunkRemaining -= count;
+            session.addReceived(count);
+            if (chunkRemaining == 0) {
+                finishChunk();
+            }
+            return true;
+        }
+
+        private void finishChunk() {
+            // Recording a chunk forces it to disk, and the last one hashes the whole
+            // file on publish, so both run on a worker rather than the event loop
+            state = State.COMMAND;
+            ChunkedUpload current = upload;
+            ChunkedUpload.Chunk received = chunk;
+            ByteBuffer body = chunkBody.flip();
+            chunkCrc.reset();
+            chunkCrc.update(body.duplicate());
+            boolean verified = (int) chunkCrc.getValue() == chunk.crc32c
+                    && (chunkDecoder == null || chunkDecoder.isValid());
+            if (chunkDecoder != null) {
+                chunkDecoder.end();
+                chunkDecoder = null;
+            }
+            offload(out -> {
+                try {
+                    FileExchangeServer.handleChunkReceived(current, received, body, verified, out);
+                } catch (IOException e) {
+                    out.println("Error: Failed to store file " + current.getFileName());
+                }
+            }, () -> {
+                if (upload == current && current.isPublished()) {
+                    current.release();
+                    upload = null;
+                }
+            });
+        }
+
+        private boolean skipChunkBody() {
+            int count = Math.min(readBuffer.remaining(), chunkRemaining);
+            readBuffer.position(readBuffer.position() + count);
+            chunkRemaining -= count;
+            if (chunkRemaining == 0) {
+                state = State.COMMAND;
+            }
+            return true;
+        }
+
+        private void handleDelta(String message) {
+            delta = DeltaUpload.parse(message);
+            if (delta == null) {
+                // Without a chunk count the manifest cannot be skipped, so the stream is lost
+                fail("Error: Malformed delta header.");
+                return;
+            }
+            state = State.DELTA_MANIFEST;
+            if (delta.isManifestComplete()) {
+                finishDeltaManifest();
+            }
+        }
+
+        private boolean readDeltaManifest() {
+            // Records are taken straight off the read buffer; a partial one waits for the rest
+            int start = readBuffer.position();
+            delta.acceptManifest(readBuffer);
+            if (delta.isManifestComplete()) {
+                finishDeltaManifest();
+            }
+            return readBuffer.position() > start;
+        }
+
+        private void finishDeltaManifest() {
+            state = State.COMMAND;
+            if (!delta.isManifestValid()) {
+                delta = null;
+                send("Error: Invalid delta manifest.\n");
+                return;
+            }
+            if (!FileExchangeServer.isValidName(delta.getFileName())) {
+                // Refused only now, so the manifest is not left to be taken for commands
+                delta = null;
+                send("Error: File name is not allowed.\n");
+                return;
+            }
+
+            // Resolving may index the stored base version, which reads it from disk
+            DeltaUpload current = delta;
+            offload(out -> {
+                try {
+                    out.println("NEED " + current.resolve());
+                } catch (IOException e) {
+                    current.discard();
+                    out.println("Error: Failed to store file " + current.getFileName());
+                }
+            }, () -> {
+                if (delta != current) {
+                    return;
+                }
+                if (!current.isResolved()) {
+                    delta = null;
+                } else if (current.isBodyComplete()) {
+                    finishDeltaBody();
+                } else {
+                    state = State.DELTA_BODY;
+                }
+            });
+        }
+
+        private boolean readDeltaBody() throws IOException {
+            ByteBuffer body = readBuffer.slice();
+            delta.acceptBody(body);
+            readBuffer.position(readBuffer.position() + body.position());
+            session.addReceived(body.position());
+            if (delta.isBodyComplete()) {
+                finishDeltaBody();
+            }
+            return true;
+        }
+
+        private void finishDeltaBody() {
+            state = State.COMMAND;
+            DeltaUpload current = delta;
+            if (current.failedChunk() >= 0) {
+                current.discard();
+                delta = null;
+                send("Error: Chunk " + current.failedChunk() + " failed verification.\n");
+                return;
+            }
+            offload(out -> {
+                try {
+                    current.assemble();
+                    String timestamp = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+                    out.println("File uploaded successfully: " + current.getFileName() + " " + timestamp);
+                } catch (IOException e) {
+                    out.println("Error: Failed to store file " + current.getFileName());
+                } finally {
+                    current.discard();
+                }
+            }, () -> {
+                if (delta == current) {
+                    delta = null;
+                }
+            });
+        }
+
+        private void finishStore() {
+            if (storeChannel != null) {
+                try {
+                    storeChannel.close();
+                } catch (IOException ignored) {
+                    // Reported to the client by the caller
+                }
+            }
+            if (storeTemp != null) {
+                BlobStore.discard(storeTemp);
+            }
+            if (storeDecoder != null) {
+                storeDecoder.end();
+            }
+            storeChannel = null;
+            storeTemp = null;
+            storeFileName = null;
+            storeCodec = null;
+            storeDecoder = null;
+            state = State.COMMAND;
+        }
+
+        private void handleBatchStore(String message) {
+            int count = BatchTransfer.parseCount(message);
+            if (count < 0) {
+                // Without a record count the records cannot be skipped, so the stream is lost
+                fail("Error: Malformed batch header.");
+                return;
+            }
+            batchStore = new BatchTransfer.Store(count);
+            if (count == 0) {
+                finishBatchStore();
+                return;
+            }
+            state = State.BATCH_RECORD;
+        }
+
+        private boolean readBatchRecord() throws IOException {
+            if (!batchInRecord) {
+                if (!batchStore.begin(readBuffer)) {
+                    return false;
+                }
+                batchInRecord = true;
+            }
+            int count = (int) Math.min(readBuffer.remaining(), batchStore.remaining());
+            ByteBuffer body = readBuffer.slice();
+            body.limit(count);
+            batchStore.accept(body);
+            readBuffer.position(readBuffer.position() + count);
+            session.addReceived(count);
+
+            if (batchStore.remaining() == 0) {
+                // Small records are written on the batch pool, so this rarely blocks the loop
+                batchStore.end();
+                batchInRecord = false;
+                if (batchStore.isComplete()) {
+                    finishBatchStore();
+                }
+            }
+            return true;
+        }
+
+        private void finishBatchStore() {
+            BatchTransfer.Store batch = batchStore;
+            batchStore = null;
+            state = State.COMMAND;
+            // The report waits for the pool to finish writing, so it runs on a worker
+            offload(workerOut -> workerOut.print(batch.report()), null);
+        }
+
+        private void handleBatchGet(String message, PrintWriter out) {
+            batchCount = BatchTransfer.parseCount(message);
+            if (batchCount < 0) {
+                // The name lines that follow would be taken for commands
+                fail("Error: Malformed batch header.");
+                return;
+            }
+            batchNames = new ArrayList<>(batchCount);
+            if (batchCount == 0) {
+                sendBatch();
+                return;
+            }
+            state = State.BATCH_NAMES;
+        }
+
+        private boolean readBatchName() {
+            String name = nextLine();
+            if (name == null) {
+                return false;
+            }
+            batchNames.add(name);
+            if (batchNames.size() == batchCount) {
+                sendBatch();
+            }
+            return true;
+        }
+
+        private void sendBatch() {
+            state = State.COMMAND;
+            send("MGET " + batchCount + "\n");
+            writeQueue.add(new BatchOutbound(new BatchTransfer.Get(batchNames), session));
+            batchNames = null;
+        }
+
+        private void handleGet(String message, PrintWriter out) {
+            FileExchangeServer.ByteRange range = FileExchangeServer.parseGet(message);
+            if (range != null && !FileExchangeServer.isValidName(range.fileName)) {
+                out.println("Error: File name is not allowed.");
+            } else if (range != null) {
+                String fileName = range.fileName;
+                File file = new File(FileExchangeServer.STORAGE_DIR, fileName);
+                if (ColdStore.isCold(fileName)) {
+                    // Restoring reads the whole body out of its segment, so it runs on a worker
+                    boolean[] restored = new boolean[1];
+                    offload(workerOut -> {
+                        try {
+                            ColdStore.read(fileName);
+                            restored[0] = true;
+                        } catch (IOException e) {
+                            workerOut.println("Error: Failed to send file " + fileName);
+                        }
+                    }, () -> {
+                        if (restored[0] && channel.isOpen()) {
+                            StringWriter response = new StringWriter();
+                            PrintWriter loopOut = new PrintWriter(response);
+                            handleGet(message, loopOut);
+                            loopOut.flush();
+                            send(response.toString());
+                        }
+                    });
+                    return;
+                }
+                if (file.exists() && !file.isDirectory()) {
+                    try {
+                        // Only records the read; the file is already hot
+                        ColdStore.read(fileName);
+                        long length = range.length(BlobStore.contentSize(fileName));
+                        if (length < 0) {
+                            out.println("Error: Requested range not satisfiable.");
+                            return;
+                        }
+                        if (range.codec != null || BlobStore.isCompressed(fileName)) {
+                            // Compressing or inflating reads the whole file, so it runs on a worker
+                            FileExchangeServer.PreparedBody[] body = new FileExchangeServer.PreparedBody[1];
+                            offload(workerOut -> {
+                                try {
+                                    body[0] = FileExchangeServer.prepareBody(range, length);
+                                } catch (IOException e) {
+                                    workerOut.println("Error: Failed to send file " + fileName);
+                                }
+                            }, () -> {
+                                if (body[0] != null && !channel.isOpen()) {
+                                    try {
+                                        body[0].channel.close();
+                                    } catch (IOException ignored) {
+                                        // The connection is already gone
+                                    }
+                                } else if (body[0] != null) {
+                                    send(body[0].header + "\n");
+                                    writeQueue.add(new FileOutbound(body[0].channel, body[0].position, body[0].count));
+                                    session.addSent(body[0].count);
+                                    sendCompleted(fileName);
+                                } else if (file.isFile()) {
+                                    sendStored(fileName, range, length);
+                                }
+                            });
+                            return;
+                        }
+                        sendStored(fileName, range, length);
+                    } catch (IOException e) {
+                        out.println("Error: Failed to send file " + fileName);
+                    }
+                } else if (!Cluster.isLocal(fileName, session)) {
+                    sendForwarded(range);
+                } else {
+                    out.println("Error: File not found in the server.");
+                }
+            } else {
+                out.println("Error: Command parameters do not match or are not allowed.");
+            }
+        }
+
+        /** Relays a /get for a file on other cluster members, in forward mode; the fetch runs on a worker. */
+        private void sendForwarded(FileExchangeServer.ByteRange range) {
+            FileExchangeServer.PreparedBody[] body = new FileExchangeServer.PreparedBody[1];
+            offload(workerOut -> {
+                try {
+                    body[0] = FileExchangeServer.prepareForwarded(range);
+                    if (body[0] == null) {
+                        workerOut.println("Error: Requested range not satisfiable.");
+                    }
+                } catch (ExchangeClient.ReplyException e) {
+                    workerOut.println(e.getMessage());
+                } catch (IOException e) {
+                    workerOut.println("Error: Failed to send file " + range.fileName);
+                }
+            }, () -> {
+                if (body[0] != null && !channel.isOpen()) {
+                    try {
+                        body[0].channel.close();
+                    } catch (IOException ignored) {
+                        // The connection is already gone
+                    }
+                } else if (body[0] != null) {
+                    send(body[0].header + "\n");
+                    writeQueue.add(new FileOutbound(body[0].channel, body[0].position, body[0].count));
+                    session.addSent(body[0].count);
+                    sendCompleted(range.fileName);
+                }
+            });
+        }
+
+        /** Queues a /get reply straight from the stored file, or from the read cache. */
+        private void sendStored(String fileName, FileExchangeServer.ByteRange range, long length) {
+            ByteBuffer cached;
+            FileChannel fileChannel = null;
+            try {
+                cached = ReadCache.get(fileName);
+                if (cached == null || cached.capacity() < range.first + length) {
+                    cached = null;
+                    fileChannel = FileChannel.open(Paths.get(FileExchangeServer.STORAGE_DIR, fileName),
+                            StandardOpenOption.READ);
+                }
+            } catch (IOException e) {
+                send("Error: Failed to send file " + fileName + "\n");
+                return;
+            }
+
+            // Same binary frame as the threaded engine: "OK <length>" then raw bytes
+            send("OK " + length + "\n");
+            if (cached != null) {
+                cached.limit((int) (range.first + length)).position((int) range.first);
+                writeQueue.add(new BufferOutbound(cached));
+            } else {
+                writeQueue.add(new FileOutbound(fileChannel, range.first, length));
+            }
+            session.addSent(length);
+            sendCompleted(fileName);
+        }
+
+        private void sendCompleted(String fileName) {
+            send("File sent successfully: " + fileName + " "
+                    + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + "\n");
+        }
+
+        /**
+         * Runs a blocking command on the worker pool. No further commands are taken
+         * off the read buffer until its reply has been queued back on this loop,
+         * after the optional onLoop callback has updated connection state.
+         */
+        private void offload(Consumer<PrintWriter> command, Runnable onLoop) {
+            awaitingWorker = true;
+            workers.execute(() -> {
+                StringWriter response = new StringWriter();
+                PrintWriter out = new PrintWriter(response);
+                command.accept(out);
+                out.flush();
+                loop.execute(() -> {
+                    awaitingWorker = false;
+                    if (onLoop != null) {
+                        onLoop.run();
+                    }
+                    send(response.toString());
+                    try {
+                        process();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            });
+        }
+
+        /**
+         * Moves a connection that entered framed mode off the event loop. Its
+         * streams run blocking command loops anyway, so the multiplexer reads and
+         * writes the socket in blocking mode on a worker thread. Earlier replies
+         * have been flushed, since commands only run with an empty write queue.
+         */
+        private void handOff() {
+            readBuffer.flip();
+            byte[] buffered = new byte[readBuffer.remaining()];
+            readBuffer.get(buffered);
+            readBuffer.clear();
+            key.cancel();
+            // The cancelled key is deregistered by the next selection, which has
+            // happened by the time a task runs
+            loop.execute(() -> {
+                try {
+                    loop.selector.selectNow();
+                    channel.configureBlocking(true);
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                workers.execute(() -> {
+                    try {
+                        OutputStream socketOut = tls != null
+                                ? Channels.newOutputStream(tls)
+                                : channel.socket().getOutputStream();
+                        socketOut.write("FRAMES 1\n".getBytes(StandardCharsets.UTF_8));
+                        socketOut.flush();
+                        InputStream socketIn = new SequenceInputStream(new ByteArrayInputStream(buffered),
+                                new BufferedInputStream(tls != null
+                                        ? Channels.newInputStream(tls)
+                                        : channel.socket().getInputStream()));
+                        FileExchangeServer.serveFramed(session, socketIn, socketOut);
+                    } catch (IOException e) {
+                        System.out.println("Error: Connection with client lost.");
+                    } finally {
+                        loop.execute(this::close);
+                    }
+                });
+            });
+        }
+
+        void send(String text) {
+            if (!text.isEmpty()) {
+                writeQueue.add(new BufferOutbound(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8))));
+            }
+        }
+
+        void flush() throws IOException {
+            Outbound head;
+            while ((head = writeQueue.peek()) != null) {
+                long limit = Long.MAX_VALUE;
+                if (flow != null) {
+                    if (!granted) {
+                        if (awaitingGrant) {
+                            return;
+                        }
+                        TransferScheduler.Flow requested = flow;
+                        if (!TransferScheduler.request(flow, () -> loop.execute(() -> onGranted(requested)))) {
+                            awaitingGrant = true;
+                            return;
+                        }
+                        granted = true;
+                    }
+                    limit = TransferScheduler.QUANTUM;
+                }
+                long written = head.writeTo(io, limit);
+                if (flow != null) {
+                    TransferScheduler.sent(flow, written);
+                    granted = false;
+                }
+                if (!head.isDone()) {
+                    if (written < limit) {
+                        // The socket is full
+                        return;
+                    }
+                    continue;
+                }
+                writeQueue.poll().release();
+            }
+            if (tls != null) {
+                // The last records sealed may not have fitted into the socket
+                tls.flush();
+            }
+        }
+
+        private void onGranted(TransferScheduler.Flow requested) {
+            if (requested != flow) {
+                // The transfer ended before its grant arrived
+                TransferScheduler.sent(requested, 0);
+                return;
+            }
+            awaitingGrant = false;
+            granted = true;
+            try {
+                flush();
+                process();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (readBuffer.hasRemaining() && !closing) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!writeQueue.isEmpty() && !awaitingGrant && (tls == null || tls.isWritable())
+                    || tls != null && tls.hasPendingOutput()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+            if (tls != null && (ops & SelectionKey.OP_READ) != 0 && tls.hasBufferedInput()) {
+                // Already off the socket, so the selector will not report it
+                loop.execute(() -> {
+                    try {
+                        if (key.isValid()) {
+                            onReadable();
+                        }
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        void close() {
+            SessionRegistry.close(session);
+            finishTransfer();
+            finishStore();
+            if (upload != null) {
+                upload.release();
+                upload = null;
+            }
+            if (delta != null) {
+                delta.discard();
+                delta = null;
+            }
+            if (batchStore != null) {
+                batchStore.discard();
+                batchStore = null;
+            }
+            for (Outbound outbound : writeQueue) {
+                outbound.release();
+            }
+            writeQueue.clear();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                io.close();
+            } catch (IOException e) {
+                System.out.println("Error: Failed to close client socket.");
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounded cache of memory-mapped blobs for hot /get traffic, so a popular
+ * file is not reopened and re-read on every request. Entries are keyed by blob
+ * digest: blobs never change once published, so a mapping stays valid until the
+ * blob is collected, and overwriting a name simply makes /get look up a new
+ * digest. Files not stored through the BlobStore may change in place and are
+ * never cached.
+ *
+ * Eviction is segmented LRU: new blobs enter a small probation segment and are
+ * promoted to the protected segment on their second hit, so a scan over many
+ * cold files cannot push out the hot set.
+ */
+public class ReadCache {
+    private static final double PROTECTED_SHARE = 0.8;
+
+    private static long capacity = 256L * 1024 * 1024;
+    private static long maxEntrySize = capacity / 8;
+
+    private static final LinkedHashMap<String, MappedByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private static final LinkedHashMap<String, MappedByteBuffer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private static long probationBytes;
+    private static long protectedBytes;
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private ReadCache() {
+    }
+
+    /** Sets the total bytes of mappings to keep; 0 disables the cache. Call before serving. */
+    static void configure(long bytes) {
+        capacity = bytes;
+        maxEntrySize = bytes / 8;
+    }
+
+    /**
+     * Returns the whole content of fileName as a private read-only view, or null
+     * if it is not cacheable, in which case the caller reads the file itself.
+     */
+    static ByteBuffer get(String fileName) throws IOException {
+        DirectoryIndex.Entry entry = DirectoryIndex.get(fileName);
+        if (entry == null || entry.sha256 == null || entry.size == 0 || entry.size > maxEntrySize) {
+            return null;
+        }
+        String digest = entry.sha256;
+
+        lock.lock();
+        try {
+            MappedByteBuffer cached = protectedSegment.get(digest);
+            if (cached == null) {
+                cached = probation.remove(digest);
+                if (cached != null) {
+                    probationBytes -= cached.capacity();
+                    protectedSegment.put(digest, cached);
+                    protectedBytes += cached.capacity();
+                    balance();
+                }
+            }
+            if (cached != null) {
+                hits.increment();
+                return cached.asReadOnlyBuffer();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        misses.increment();
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(BlobStore.blobPath(digest), StandardOpenOption.READ)) {
+            if (channel.size() != entry.size) {
+                return null;
+            }
+            // The mapping outlives the channel and keeps the blob readable after collection
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        lock.lock();
+        try {
+            if (!probation.containsKey(digest) && !protectedSegment.containsKey(digest)) {
+                probation.put(digest, mapped);
+                probationBytes += mapped.capacity();
+                balance();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return mapped.asReadOnlyBuffer();
+    }
+
+    /** Drops a blob that has been collected. */
+    static void invalidate(String digest) {
+        lock.lock();
+        try {
+            MappedByteBuffer removed = probation.remove(digest);
+            if (removed != null) {
+                probationBytes -= removed.capacity();
+            }
+            removed = protectedSegment.remove(digest);
+            if (removed != null) {
+                protectedBytes -= removed.capacity();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static void sample(Metrics.Samples out) {
+        out.add("cache_hits_total", "", hits.sum());
+        out.add("cache_misses_total", "", misses.sum());
+        out.add("cache_evictions_total", "", evictions.sum());
+        lock.lock();
+        try {
+            out.add("cache_entries", "", probation.size() + protectedSegment.size());
+            out.add("cache_bytes", "", probationBytes + protectedBytes);
+        } finally {
+            lock.unlock();
+        }
+        out.add("cache_capacity_bytes", "", capacity);
+    }
+
+    /** "hits=<n> misses=<n> evictions=<n> entries=<n> bytes=<n>" */
+    static String stats() {
+        lock.lock();
+        try {
+            return "hits=" + hits.sum() + " misses=" + misses.sum() + " evictions=" + evictions.sum()
+                    + " entries=" + (probation.size() + protectedSegment.size())
+                    + " bytes=" + (probationBytes + protectedBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Demotes the protected segment's LRU entries into probation, then evicts
+    // probation's LRU entries until the cache fits. Called with the lock held.
+    private static void balance() {
+        long protectedCapacity = (long) (capacity * PROTECTED_SHARE);
+        Iterator<Map.Entry<String, MappedByteBuffer>> oldest = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedCapacity && oldest.hasNext()) {
+            Map.Entry<String, MappedByteBuffer> demoted = oldest.next();
+            oldest.remove();
+            protectedBytes -= demoted.getValue().capacity();
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationBytes += demoted.getValue().capacity();
+        }
+
+        oldest = probation.entrySet().iterator();
+        while (probationBytes + protectedBytes > capacity && oldest.hasNext()) {
+            MappedByteBuffer evicted = oldest.next().getValue();
+            oldest.remove();
+            probationBytes -= evicted.capacity();
+            evictions.increment();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every open connection as a Session, plus the aliases registered with
+ * /register. Both maps are concurrent and registration is a single putIfAbsent,
+ * so two connections racing for one alias cannot both win. Aliases are released
+ * on /leave and when the connection closes, and an optional sweeper closes
+ * connections that have been idle for too long.
+ */
+public class SessionRegistry {
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10000;
+
+    private static final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    // Sorted so /list can page through aliases without copying them
+    private static final NavigableMap<String, Session> aliases = new ConcurrentSkipListMap<>();
+    private static final AtomicLong nextId = new AtomicLong();
+
+    /** One connection. The closer is supplied by the engine and must be safe to call from any thread. */
+    static class Session {
+        final long id;
+        final SocketAddress remoteAddress;
+        final long connectedAt = System.currentTimeMillis();
+        private final Runnable closer;
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final AtomicInteger activeTransfers = new AtomicInteger();
+        private volatile long lastActivity = connectedAt;
+        private volatile String alias;
+        // Another cluster member, whose commands are served from this member's own files
+        private volatile boolean peer;
+
+        private Session(long id, SocketAddress remoteAddress, Runnable closer) {
+            this.id = id;
+            this.remoteAddress = remoteAddress;
+            this.closer = closer;
+        }
+
+        String getAlias() {
+            return alias;
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        boolean isPeer() {
+            return peer;
+        }
+
+        void markPeer() {
+            peer = true;
+        }
+
+        /** Marks a body transfer in progress, which keeps the session from idling out. */
+        void beginTransfer() {
+            activeTransfers.incrementAndGet();
+        }
+
+        void endTransfer() {
+            activeTransfers.decrementAndGet();
+            touch();
+        }
+
+        void addReceived(long bytes) {
+            bytesReceived.add(bytes);
+            Metrics.recordReceived(bytes);
+            touch();
+        }
+
+        void addSent(long bytes) {
+            bytesSent.add(bytes);
+            Metrics.recordSent(bytes);
+            touch();
+        }
+
+        /** Bytes received plus bytes sent, for timing a transfer. */
+        long bytesTransferred() {
+            return bytesReceived.sum() + bytesSent.sum();
+        }
+
+        /** "<connected at> <bytes received> <bytes sent> <alias>" for a paged /list. */
+        String format() {
+            return connectedAt + " " + bytesReceived.sum() + " " + bytesSent.sum() + " " + alias;
+        }
+    }
+
+    /** One page of registered aliases. */
+    static class Page {
+        final List<Session> sessions;
+        final boolean more;
+
+        Page(List<Session> sessions, boolean more) {
+            this.sessions = sessions;
+            this.more = more;
+        }
+    }
+
+    private SessionRegistry() {
+    }
+
+    static Session open(SocketAddress remoteAddress, Runnable closer) {
+        Session session = new Session(nextId.incrementAndGet(), remoteAddress, closer);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /** Forgets the session and releases its alias. Safe to call more than once. */
+    static void close(Session session) {
+        sessions.remove(session.id);
+        release(session);
+    }
+
+    /**
+     * Claims alias for the session, replacing any alias it held before. Returns
+     * false if another session holds it.
+     */
+    static boolean register(Session session, String alias) {
+        Session holder = aliases.putIfAbsent(alias, session);
+        if (holder != null && holder != session) {
+            return false;
+        }
+        String previous = session.alias;
+        session.alias = alias;
+        if (previous != null && !previous.equals(alias)) {
+            aliases.remove(previous, session);
+        }
+        return true;
+    }
+
+    static void release(Session session) {
+        String alias = session.alias;
+        if (alias != null) {
+            aliases.remove(alias, session);
+            session.alias = null;
+        }
+    }
+
+    static Iterable<String> aliases() {
+        return aliases.keySet();
+    }
+
+    static int sessionCount() {
+        return sessions.size();
+    }
+
+    static long openedCount() {
+        return nextId.get();
+    }
+
+    /** Up to limit registered sessions in alias order, after the given alias (null for the first page). */
+    static Page list(String after, int limit) {
+        Map<String, Session> view = after != null ? aliases.tailMap(after, false) : aliases;
+        List<Session> page = new ArrayList<>();
+        for (Session session : view.values()) {
+            if (page.size() == limit) {
+                return new Page(page, true);
+            }
+            page.add(session);
+        }
+        return new Page(page, false);
+    }
+
+    /**
+     * Closes sessions that have had no command or transfer for the timeout.
+     * The engines then release them through their normal disconnect path.
+     */
+    static void startIdleSweeper(long timeoutMillis) {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(timeoutMillis / 2, 30000));
+        sweeper.scheduleAtFixedRate(() -> {
+            long cutoff = System.currentTimeMillis() - timeoutMillis;
+            for (Session session : sessions.values()) {
+                if (session.activeTransfers.get() == 0 && session.lastActivity < cutoff) {
+                    System.out.println("Closing idle connection from " + session.remoteAddress);
+                    close(session);
+                    session.closer.run();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,205 @@
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Compares plaintext and TLS on loopback: /get and /upload throughput of one
+ * file, and connections per second for a fresh connection and one /stat, with
+ * a full handshake each time or resuming one session. Generates a self-signed
+ * keystore with keytool and starts a plaintext and a TLS server of its own, in
+ * scratch directories, with the same engine. Each figure is taken after a
+ * warm-up pass.
+ *
+ *     java TlsBenchmark [file size MB] [engine]
+ */
+public class TlsBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final String PASSWORD = "benchmark";
+    private static final int ROUNDS = 5;
+    private static final int CONNECTS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 256) * 1024 * 1024;
+        String engine = args.length > 1 ? args[1] : "nio";
+
+        Path scratch = Files.createTempDirectory("tls-benchmark");
+        List<Process> servers = new ArrayList<>();
+        try {
+            Path keystore = scratch.resolve("server.p12");
+            generateKeystore(keystore);
+            Path file = scratch.resolve("body");
+            byte[] body = new byte[size];
+            new Random(42).nextBytes(body);
+            Files.write(file, body);
+
+            int plainPort = freePort();
+            int tlsPort = freePort();
+            servers.add(startServer(scratch.resolve("plain"), plainPort, engine));
+            servers.add(startServer(scratch.resolve("tls"), tlsPort, engine, "--tls-keystore=" + keystore,
+                    "--tls-password=" + PASSWORD));
+            awaitPort(plainPort);
+            awaitPort(tlsPort);
+
+            System.out.println("Engine " + engine + ", " + size / (1024 * 1024) + " MB file, UseAES="
+                    + vmOption("UseAES"));
+            System.out.printf("%-10s %10s %13s %16s %19s%n", "transport", "get MB/s", "upload MB/s",
+                    "connects/s full", "connects/s resumed");
+            report("plaintext", plainPort, null, file);
+            report("tls", tlsPort, keystore, file);
+        } finally {
+            for (Process server : servers) {
+                server.destroy();
+                server.waitFor();
+            }
+            try (Stream<Path> paths = Files.walk(scratch)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static void report(String name, int port, Path keystore, Path file) throws Exception {
+        SSLContext shared = keystore != null ? clientContext(keystore) : null;
+        double megabytes = (double) Files.size(file) * ROUNDS / (1024 * 1024);
+        try (ExchangeClient client = newClient(port, shared)) {
+            await(client.upload(file, "body", ExchangeClient.Progress.NONE));
+            Path target = file.resolveSibling(name + ".download");
+            await(client.download("body", target, ExchangeClient.Progress.NONE));
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                await(client.download("body", target, ExchangeClient.Progress.NONE));
+            }
+            double get = megabytes / ((System.nanoTime() - start) / 1e9);
+            Files.delete(target);
+
+            // A new first word each round, so /have never finds the content already stored
+            uploadVariant(client, file, -1);
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                uploadVariant(client, file, i);
+            }
+            double upload = megabytes / ((System.nanoTime() - start) / 1e9);
+
+            double full = connects(port, keystore, false);
+            double resumed = keystore != null ? connects(port, keystore, true) : full;
+            System.out.printf("%-10s %10.1f %13.1f %16.1f %19.1f%n", name, get, upload, full, resumed);
+        }
+    }
+
+    private static void uploadVariant(ExchangeClient client, Path file, int round) throws Exception {
+        try (RandomAccessFile access = new RandomAccessFile(file.toFile(), "rw")) {
+            access.writeInt(round);
+        }
+        await(client.upload(file, "body-" + round, ExchangeClient.Progress.NONE));
+    }
+
+    /** Connections per second, each opened, handshaken and used for one /stat. */
+    private static double connects(int port, Path keystore, boolean resume) throws Exception {
+        SSLContext shared = keystore != null ? clientContext(keystore) : null;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CONNECTS; i++) {
+                SSLContext context = keystore == null || resume ? shared : clientContext(keystore);
+                try (ExchangeClient client = newClient(port, context)) {
+                    await(client.stat("body"));
+                }
+            }
+            if (pass == 1) {
+                return CONNECTS / ((System.nanoTime() - start) / 1e9);
+            }
+        }
+        throw new AssertionError();
+    }
+
+    private static ExchangeClient newClient(int port, SSLContext tls) {
+        ExchangeClient client = new ExchangeClient(HOST, port, 1);
+        // Random bodies would not compress anyway; keep the codec out of the comparison
+        client.setCodecs("none");
+        client.setTls(tls);
+        return client;
+    }
+
+    private static SSLContext clientContext(Path keystore) throws Exception {
+        return TlsChannel.clientContext(keystore, PASSWORD.toCharArray());
+    }
+
+    private static void generateKeystore(Path keystore) throws IOException, InterruptedException {
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "server",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-ext", "SAN=ip:" + HOST + ",dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed to generate " + keystore);
+        }
+    }
+
+    private static Process startServer(Path directory, int port, String engine, String... options)
+            throws IOException {
+        Files.createDirectories(directory);
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "FileExchangeServer", HOST, String.valueOf(port), "--engine=" + engine));
+        command.addAll(List.of(options));
+        return new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("server.log").toFile())
+                .start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(HOST))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server on port " + port + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static String vmOption(String name) {
+        try {
+            return ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).getVMOption(name).getValue();
+        } catch (IllegalArgumentException e) {
+            return "n/a";
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+}
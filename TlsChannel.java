@@ -0,0 +1,422 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS over a SocketChannel through an SSLEngine, so one implementation serves
+ * the threaded engines, the NIO event loops and the clients. On a blocking
+ * channel handshake() runs the handshake up front and read() and write() block
+ * like the socket's own. On a non-blocking channel they drive the handshake as
+ * the socket allows, return 0 when they can make no progress, and leave sealed
+ * records behind for flush(); isWritable() tells the event loop when waiting
+ * for OP_WRITE would be pointless.
+ *
+ * Only TLS 1.3 with the AES-GCM suites is enabled. The JDK runs AES and GHASH
+ * on CPU intrinsics (AES-NI and carry-less multiply), which ChaCha20 does not
+ * get on every JDK this builds for. TLS 1.3 resumes sessions from tickets the
+ * server hands out, with no session cache lookups on the server; a client
+ * resumes when it reuses one SSLContext for the same host and port.
+ *
+ * A record carries at most 16 KB, so the network buffers hold RECORDS of them:
+ * a write seals several records and hands them to the kernel in one call, and a
+ * read pulls several in at once. Reads and writes take separate locks and may
+ * run on different threads, as the framed connections do.
+ */
+public class TlsChannel implements ByteChannel {
+    static final String PROTOCOL = "TLSv1.3";
+    static final String[] CIPHER_SUITES = {"TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384"};
+    private static final int RECORDS = 4;
+    private static final int MAX_FRAGMENT = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final int packetSize;
+    private final int applicationSize;
+    // Read from the socket, not yet unwrapped; left in fill mode
+    private final ByteBuffer netIn;
+    // Unwrapped but not yet read; left in drain mode
+    private final ByteBuffer appIn;
+    // Sealed records not yet written; left in drain mode
+    private final ByteBuffer netOut;
+    // Plaintext read from a file by transferFrom()
+    private final ByteBuffer staging;
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // netIn holds only part of a record and the socket had no more
+    private boolean starved;
+    private final long handshakeStart = System.nanoTime();
+    private volatile boolean handshaken;
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this.channel = channel;
+        this.engine = engine;
+        packetSize = engine.getSession().getPacketBufferSize();
+        applicationSize = engine.getSession().getApplicationBufferSize();
+        netIn = ByteBuffer.allocateDirect(RECORDS * packetSize);
+        appIn = ByteBuffer.allocateDirect(applicationSize).limit(0);
+        netOut = ByteBuffer.allocateDirect(RECORDS * packetSize).limit(0);
+        staging = ByteBuffer.allocateDirect(RECORDS * MAX_FRAGMENT);
+    }
+
+    /** A context for servers, with the key and certificate chain from a PKCS12 or JKS keystore. */
+    static SSLContext serverContext(Path keystore, char[] password) throws IOException, GeneralSecurityException {
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(KeyStore.getInstance(keystore.toFile(), password), password);
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(keys.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * A context for clients that trusts the certificates in truststore, or the
+     * JDK's default trust store if it is null. Share one per server to resume
+     * sessions.
+     */
+    static SSLContext clientContext(Path truststore, char[] password) throws IOException, GeneralSecurityException {
+        TrustManager[] trust = null;
+        if (truststore != null) {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(KeyStore.getInstance(truststore.toFile(), password));
+            trust = factory.getTrustManagers();
+        }
+        SSLContext context = SSLContext.getInstance(PROTOCOL);
+        context.init(null, trust, null);
+        return context;
+    }
+
+    /** The server end of an accepted connection. */
+    static TlsChannel server(SocketChannel channel, SSLContext context) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return start(channel, engine);
+    }
+
+    /** The client end of a connection to host:port, whose certificate must name host. */
+    static TlsChannel client(SocketChannel channel, SSLContext context, String host, int port) throws IOException {
+        // Keyed by host and port, so a later connection finds the session to resume
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return start(channel, engine);
+    }
+
+    private static TlsChannel start(SocketChannel channel, SSLEngine engine) throws IOException {
+        engine.setEnabledProtocols(new String[] {PROTOCOL});
+        engine.setEnabledCipherSuites(CIPHER_SUITES);
+        engine.beginHandshake();
+        return new TlsChannel(channel, engine);
+    }
+
+    /**
+     * Copies count bytes of file from position to target, and returns how many
+     * went. Through TLS they have to pass the cipher, so they are read in
+     * record-sized runs; otherwise transferTo lets the kernel send them.
+     */
+    static long transfer(FileChannel file, long position, long count, WritableByteChannel target)
+            throws IOException {
+        if (target instanceof TlsChannel) {
+            return ((TlsChannel) target).transferFrom(file, position, count);
+        }
+        return file.transferTo(position, count, target);
+    }
+
+    SocketChannel socketChannel() {
+        return channel;
+    }
+
+    /** Runs the whole handshake on a blocking channel. */
+    void handshake() throws IOException {
+        readLock.lock();
+        try {
+            while (!handshaken) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                } else if (status == HandshakeStatus.NEED_WRAP) {
+                    flush();
+                } else if (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                    if (unwrap(EMPTY) == -1) {
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                } else {
+                    finished();
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        readLock.lock();
+        try {
+            while (true) {
+                if (appIn.hasRemaining()) {
+                    return drain(dst);
+                }
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NOT_HANDSHAKING && !handshaken) {
+                    finished();
+                }
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    // A handshake flight, or a key update the peer asked for
+                    if (!flush()) {
+                        return 0;
+                    }
+                    continue;
+                }
+                int read = unwrap(dst);
+                if (read != 0 || !channel.isBlocking() && starved) {
+                    return read;
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Unwraps one record into dst, or into appIn if dst is too small to take a
+     * whole one, reading from the socket first if netIn holds no full record.
+     * Returns the bytes put into dst, 0 if none were, or -1 at the end of stream.
+     */
+    private int unwrap(ByteBuffer dst) throws IOException {
+        boolean direct = dst.remaining() >= applicationSize;
+        ByteBuffer target = direct ? dst : appIn.clear();
+        int before = target.position();
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, target);
+        } finally {
+            netIn.compact();
+            if (!direct) {
+                appIn.flip();
+            }
+        }
+        if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            finished();
+        }
+        switch (result.getStatus()) {
+            case OK:
+                starved = false;
+                return direct ? target.position() - before : (appIn.hasRemaining() ? drain(dst) : 0);
+            case BUFFER_UNDERFLOW:
+                int read = channel.read(netIn);
+                if (read == -1) {
+                    if (!handshaken) {
+                        throw new EOFException("Connection closed during the TLS handshake");
+                    }
+                    // Closing without close_notify is how most peers end a connection
+                    return -1;
+                }
+                starved = read == 0;
+                return 0;
+            case CLOSED:
+                return -1;
+            default:
+                throw new SSLException("Record larger than the session allows");
+        }
+    }
+
+    private int drain(ByteBuffer dst) {
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        int end = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(end);
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        writeLock.lock();
+        try {
+            if (!flush()) {
+                return 0;
+            }
+            if (!handshaken) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NOT_HANDSHAKING) {
+                    finished();
+                } else if (status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+                    if (channel.isBlocking()) {
+                        throw new SSLException("Write before the TLS handshake");
+                    }
+                    // The event loop writes again once reads have moved the handshake on
+                    return 0;
+                }
+            }
+            int start = src.position();
+            netOut.clear();
+            try {
+                while (src.hasRemaining() && netOut.remaining() >= packetSize) {
+                    SSLEngineResult result = engine.wrap(src, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS connection already closed");
+                    }
+                    if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                        finished();
+                    }
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        break;
+                    }
+                }
+            } finally {
+                netOut.flip();
+            }
+            flush();
+            return src.position() - start;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes sealed records still waiting, then seals and writes any handshake
+     * messages or close_notify the engine has for the peer. Returns true once
+     * nothing is left; on a blocking channel it always does.
+     */
+    boolean flush() throws IOException {
+        writeLock.lock();
+        try {
+            while (true) {
+                while (netOut.hasRemaining()) {
+                    if (channel.write(netOut) == 0) {
+                        return false;
+                    }
+                }
+                if (engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                    return true;
+                }
+                netOut.clear();
+                SSLEngineResult result;
+                try {
+                    result = engine.wrap(EMPTY, netOut);
+                } finally {
+                    netOut.flip();
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                    finished();
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK && !netOut.hasRemaining()) {
+                    return true;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /** True while sealed records wait for the socket. */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void finished() {
+        if (!handshaken) {
+            handshaken = true;
+            if (!engine.getUseClientMode()) {
+                Metrics.recordHandshake(System.nanoTime() - handshakeStart);
+            }
+        }
+    }
+
+    /** True if a read could return data without the socket becoming readable. */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || (netIn.position() > 0 && !starved);
+    }
+
+    /** False while the handshake waits for the peer, when a write can make no progress. */
+    boolean isWritable() {
+        if (handshaken) {
+            return true;
+        }
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status != HandshakeStatus.NEED_UNWRAP && status != HandshakeStatus.NEED_UNWRAP_AGAIN;
+    }
+
+    /**
+     * Reads up to one staging buffer of file from position and seals it. Returns
+     * the bytes taken, 0 if earlier records are still waiting for the socket.
+     */
+    private long transferFrom(FileChannel file, long position, long count) throws IOException {
+        writeLock.lock();
+        try {
+            if (!flush() || !isWritable()) {
+                return 0;
+            }
+            staging.clear().limit((int) Math.min(staging.capacity(), count));
+            while (staging.hasRemaining()) {
+                if (file.read(staging, position + staging.position()) <= 0) {
+                    break;
+                }
+            }
+            staging.flip();
+            // netOut holds RECORDS records, so the whole run is taken
+            return write(staging);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify if no write is under way and the socket takes it at
+     * once, then closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (handshaken && writeLock.tryLock()) {
+                try {
+                    engine.closeOutbound();
+                    flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (IOException ignored) {
+            // The peer may already be gone
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control and bandwidth shaping for file bodies.
+ *
+ * Admission: a transfer takes a slot in its lane before its body moves, DISK
+ * for bodies stored and NETWORK for bodies sent, each with --max-transfers
+ * slots, unlimited by default. Further transfers queue in arrival order. A
+ * queued client keeps its connection, and its body is simply not read yet, so
+ * TCP pushes back on the sender. /queue reports the depth of each lane. The
+ * slot count is a fixed stand-in for saturation: nothing here measures disk or
+ * network throughput, so an operator sizes it to what the host sustains.
+ *
+ * Shaping: bodies sent to clients go out in grants of at most QUANTUM bytes.
+ * A grant takes tokens from the global bucket (--max-rate, KB/s) and from the
+ * bucket of the client's alias (--alias-rate, KB/s), which is shared by all of
+ * that alias's connections. While the global bucket is empty, waiting flows
+ * are granted in weighted fair queuing order. Each flow's tag advances by
+ * bytes sent divided by its alias's weight (--weights=alias:weight,...), and
+ * the lowest tag goes next. One large download therefore gets its share and no
+ * more, and an alias with weight 2 gets twice the bandwidth of one with weight
+ * 1. A flow held back by its own alias bucket does not block the others.
+ */
+public class TransferScheduler {
+    static final int QUANTUM = 64 * 1024;
+    // Bucket capacity, as a fraction of a second of the rate: bounds the burst after idling
+    private static final double BURST_SECONDS = 0.05;
+
+    enum Lane {
+        DISK, NETWORK
+    }
+
+    private static final Gate[] gates = { new Gate(Integer.MAX_VALUE), new Gate(Integer.MAX_VALUE) };
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition changed = lock.newCondition();
+    // Flows waiting for a grant, lowest tag first
+    private static final TreeSet<Flow> waiting = new TreeSet<>((a, b) -> a.tag != b.tag
+            ? Double.compare(a.tag, b.tag)
+            : Long.compare(a.sequence, b.sequence));
+    private static final Map<String, Bucket> aliasBuckets = new HashMap<>();
+    private static final Map<String, Double> weights = new HashMap<>();
+    private static Bucket global;
+    private static double aliasRate;
+    private static double virtualTime;
+    private static long nextSequence;
+    private static long granted;
+    private static long delayed;
+
+    /** One lane's slots and the transfers queued for them. */
+    private static class Gate {
+        final ReentrantLock lock = new ReentrantLock();
+        final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+        int limit;
+        int active;
+
+        Gate(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    /** A token bucket holding bytes; it may run into debt by up to one quantum. */
+    static class Bucket {
+        final double rate;
+        final double capacity;
+        double tokens;
+        long refilledAt = System.nanoTime();
+        int flows;
+
+        Bucket(double rate) {
+            this.rate = rate;
+            this.capacity = Math.max(QUANTUM, rate * BURST_SECONDS);
+            this.tokens = capacity;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+        }
+
+        /** Returns the unused part of a grant, never filling past capacity. */
+        void refund(long bytes) {
+            tokens = Math.min(capacity, tokens + bytes);
+        }
+
+        long nanosUntilAvailable() {
+            return tokens > 0 ? 0 : (long) Math.ceil(-tokens / rate * 1e9) + 1;
+        }
+    }
+
+    /** One shaped transfer. Not thread-safe: a flow is driven by one connection. */
+    static class Flow {
+        private final String aliasKey;
+        private final Bucket aliasBucket;
+        private final double weight;
+        private double tag;
+        private long sequence;
+        private Runnable onGrant;
+
+        private Flow(String aliasKey, Bucket aliasBucket, double weight) {
+            this.aliasKey = aliasKey;
+            this.aliasBucket = aliasBucket;
+            this.weight = weight;
+        }
+    }
+
+    private TransferScheduler() {
+    }
+
+    /** Sets the slots of each lane. Call before serving. */
+    static void configureAdmission(int maxTransfers) {
+        for (Gate gate : gates) {
+            gate.limit = maxTransfers;
+        }
+    }
+
+    /**
+     * Sets the global and per-alias rates in bytes per second, 0 for unlimited,
+     * and the alias weights. Call before serving.
+     */
+    static void configureShaping(long maxRate, long perAliasRate, Map<String, Double> aliasWeights) {
+        global = maxRate > 0 ? new Bucket(maxRate) : null;
+        aliasRate = perAliasRate;
+        weights.putAll(aliasWeights);
+        if (global != null || aliasRate > 0) {
+            Thread dispatcher = new Thread(TransferScheduler::dispatch, "transfer-scheduler");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    /**
+     * Parses "--weights=alice:4,bob:2" into alias weights. Returns null if
+     * malformed or a weight is not positive.
+     */
+    static Map<String, Double> parseWeights(String spec) {
+        Map<String, Double> parsed = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            try {
+                double weight = Double.parseDouble(entry.substring(colon + 1));
+                if (colon <= 0 || !(weight > 0)) {
+                    return null;
+                }
+                parsed.put(entry.substring(0, colon), weight);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Takes a slot in the lane. Returns true if one was free; otherwise the
+     * transfer is queued and onAdmit runs, on the releasing thread, once a slot
+     * has been handed to it. Either way release() must follow.
+     */
+    static boolean admit(Lane lane, Runnable onAdmit) {
+        Gate gate = gates[lane.ordinal()];
+        gate.lock.lock();
+        try {
+            if (gate.active < gate.limit && gate.queued.isEmpty()) {
+                gate.active++;
+                return true;
+            }
+            gate.queued.add(onAdmit);
+            return false;
+        } finally {
+            gate.lock.unlock();
+        }
+    }
+
+    /** Blocks until the lane admits the transfer. */
+    static void admit(Lane lane) {
+        CompletableFuture<Void> admitted = new CompletableFuture<>();
+        if (!admit(lane, () -> admitted.complete(null))) {
+            admitted.join();
+        }
+    }
+
+    /** Frees a slot, handing it straight to the next queued transfer if there is one. */
+    static void release(Lane lane) {
+        Gate gate = gates[lane.ordinal()];
+        Runnable next;
+        gate.lock.lock();
+        try {
+            next = gate.queued.poll();
+            if (next == null) {
+                gate.active--;
+            }
+        } finally {
+            gate.lock.unlock();
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Starts shaping a transfer to the session, or returns null if no rate is
+     * configured. Every method here accepts a null flow and then never waits.
+     */
+    static Flow open(SessionRegistry.Session session) {
+        if (global == null && aliasRate <= 0) {
+            return null;
+        }
+        String alias = session.getAlias();
+        // Unregistered connections are limited one by one
+        String aliasKey = alias != null ? alias : "#" + session.id;
+        lock.lock();
+        try {
+            Bucket bucket = null;
+            if (aliasRate > 0) {
+                bucket = aliasBuckets.computeIfAbsent(aliasKey, key -> new Bucket(aliasRate));
+                bucket.flows++;
+            }
+            Flow flow = new Flow(aliasKey, bucket, alias != null ? weights.getOrDefault(alias, 1.0) : 1.0);
+            flow.tag = virtualTime;
+            return flow;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static void close(Flow flow) {
+        if (flow == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            waiting.remove(flow);
+            flow.onGrant = null;
+            if (flow.aliasBucket != null && --flow.aliasBucket.flows == 0) {
+                aliasBuckets.remove(flow.aliasKey);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Asks to send up to QUANTUM bytes. Returns true if the flow may send now;
+     * otherwise onGrant runs on the scheduler thread once it may. Each grant must
+     * be followed by sent() with the number of bytes actually written.
+     */
+    static boolean request(Flow flow, Runnable onGrant) {
+        if (flow == null) {
+            return true;
+        }
+        lock.lock();
+        try {
+            // An idle flow does not bank credit for the time it sent nothing
+            flow.tag = Math.max(flow.tag, virtualTime);
+            long now = System.nanoTime();
+            if (waiting.isEmpty() && tryGrant(flow, now)) {
+                return true;
+            }
+            flow.sequence = nextSequence++;
+            flow.onGrant = onGrant;
+            waiting.add(flow);
+            delayed++;
+            changed.signal();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Blocks until the flow may send, then returns how many bytes it may send. */
+    static long acquire(Flow flow) throws InterruptedIOException {
+        if (flow == null) {
+            return Long.MAX_VALUE;
+        }
+        CompletableFuture<Void> grant = new CompletableFuture<>();
+        if (!request(flow, () -> grant.complete(null))) {
+            try {
+                grant.get();
+            } catch (InterruptedException e) {
+                close(flow);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for bandwidth");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return QUANTUM;
+    }
+
+    /** Settles a grant: returns the unused part of the quantum and advances the flow's tag. */
+    static void sent(Flow flow, long bytes) {
+        if (flow == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            long unused = QUANTUM - Math.min(bytes, QUANTUM);
+            if (global != null) {
+                global.refund(unused);
+            }
+            if (flow.aliasBucket != null) {
+                flow.aliasBucket.refund(unused);
+            }
+            flow.tag += bytes / flow.weight;
+            if (unused > 0 && !waiting.isEmpty()) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** "<lane>-active=<n> <lane>-queued=<n> ..." plus shaping counters, for /queue. */
+    static String stats() {
+        StringBuilder stats = new StringBuilder();
+        for (Lane lane : Lane.values()) {
+            Gate gate = gates[lane.ordinal()];
+            gate.lock.lock();
+            try {
+                String name = lane.name().toLowerCase();
+                stats.append(name).append("-active=").append(gate.active).append(' ')
+                        .append(name).append("-queued=").append(gate.queued.size()).append(' ')
+                        .append(name).append("-limit=").append(gate.limit).append(' ');
+            } finally {
+                gate.lock.unlock();
+            }
+        }
+        lock.lock();
+        try {
+            stats.append("shaped-waiting=").append(waiting.size()).append(" grants=").append(granted)
+                    .append(" delayed=").append(delayed);
+        } finally {
+            lock.unlock();
+        }
+        return stats.toString();
+    }
+
+    static void sample(Metrics.Samples out) {
+        for (Lane lane : Lane.values()) {
+            Gate gate = gates[lane.ordinal()];
+            String labels = "lane=\"" + lane.name().toLowerCase() + "\"";
+            gate.lock.lock();
+            try {
+                out.add("admission_active", labels, gate.active);
+                out.add("admission_queued", labels, gate.queued.size());
+                out.add("admission_limit", labels, gate.limit);
+            } finally {
+                gate.lock.unlock();
+            }
+        }
+        lock.lock();
+        try {
+            out.add("shaping_waiting", "", waiting.size());
+            out.add("shaping_grants_total", "", granted);
+            out.add("shaping_delayed_total", "", delayed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private static boolean tryGrant(Flow flow, long now) {
+        if (global != null) {
+            global.refill(now);
+            if (global.tokens <= 0) {
+                return false;
+            }
+        }
+        if (flow.aliasBucket != null) {
+            flow.aliasBucket.refill(now);
+            if (flow.aliasBucket.tokens <= 0) {
+                return false;
+            }
+            flow.aliasBucket.tokens -= QUANTUM;
+        }
+        if (global != null) {
+            global.tokens -= QUANTUM;
+        }
+        virtualTime = Math.max(virtualTime, flow.tag);
+        granted++;
+        return true;
+    }
+
+    /** Grants waiting flows in tag order as tokens allow, sleeping until the next could go. */
+    private static void dispatch() {
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                Iterator<Flow> flows = waiting.iterator();
+                while (flows.hasNext()) {
+                    Flow flow = flows.next();
+                    if (tryGrant(flow, now)) {
+                        flows.remove();
+                        Runnable onGrant = flow.onGrant;
+                        flow.onGrant = null;
+                        // Completes a future or queues a task on an event loop; never blocks
+                        onGrant.run();
+                        continue;
+                    }
+                    if (global != null && global.tokens <= 0) {
+                        // Nobody further back can go before the head either
+                        wait = Math.min(wait, global.nanosUntilAvailable());
+                        break;
+                    }
+                    wait = Math.min(wait, flow.aliasBucket.nanosUntilAvailable());
+                }
+                try {
+                    if (wait == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The per-command work before any body moves: reading the command line off the
+ * byte stream and parsing it. The parsers are package-private in the default
+ * package, which cannot be imported, so they are called through method handles
+ * held in static finals, which the JIT inlines like direct calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final MethodHandle READ_LINE = find("FileExchangeServer", "readLine", String.class, InputStream.class);
+    private static final MethodHandle PARSE_GET = find("FileExchangeServer", "parseGet", "FileExchangeServer$ByteRange");
+    private static final MethodHandle PARSE_STORE = find("FileExchangeServer", "parseStore", String[].class);
+    private static final MethodHandle PARSE_OPTIONS = find("FileExchangeServer", "parseCommandOptions", Map.class,
+            String.class, String[].class);
+    private static final MethodHandle PARSE_CHUNK = find("ChunkedUpload", "parseChunk", "ChunkedUpload$Chunk");
+    private static final MethodHandle PARSE_COUNT = find("BatchTransfer", "parseCount", int.class);
+    private static final MethodHandle COMMAND = find("Metrics", "command", "Metrics$Command");
+
+    private static final String[] DIR_KEYS = { "prefix", "after", "since", "limit" };
+
+    private byte[] lines;
+
+    @Setup
+    public void setUp() {
+        lines = ("/get bytes=0-1048575 reports/quarterly summary.pdf\n"
+                + "/store codec=deflate reports/quarterly summary.pdf\n"
+                + "/chunk 17 1114112 65536 9a3c11f0 deflate 40122\n"
+                + "/mget 250\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** A full command line read byte by byte, as both engines' blocking paths do. */
+    @Benchmark
+    public Object readLine() throws Throwable {
+        InputStream in = new ByteArrayInputStream(lines);
+        Object last = null;
+        for (int i = 0; i < 4; i++) {
+            last = READ_LINE.invoke(in);
+        }
+        return last;
+    }
+
+    @Benchmark
+    public Object parseGet() throws Throwable {
+        return PARSE_GET.invoke("/get bytes=0-1048575 reports/quarterly summary.pdf");
+    }
+
+    @Benchmark
+    public Object parseStore() throws Throwable {
+        return PARSE_STORE.invoke("/store codec=deflate reports/quarterly summary.pdf");
+    }
+
+    @Benchmark
+    public Object parseChunk() throws Throwable {
+        return PARSE_CHUNK.invoke("/chunk 17 1114112 65536 9a3c11f0 deflate 40122");
+    }
+
+    @Benchmark
+    public Object parseDirOptions() throws Throwable {
+        return PARSE_OPTIONS.invoke("prefix=reports/ limit=500 after=reports/annual summary.pdf", DIR_KEYS);
+    }
+
+    @Benchmark
+    public int parseCount() throws Throwable {
+        return (int) PARSE_COUNT.invoke("/mget 250");
+    }
+
+    /** The command lookup done for every line to pick its latency histogram. */
+    @Benchmark
+    public Object command() throws Throwable {
+        return COMMAND.invoke("/chunk 17 1114112 65536 9a3c11f0 deflate 40122");
+    }
+
+    private static MethodHandle find(String owner, String name, String returnType) {
+        try {
+            return find(owner, name, Class.forName(returnType), String.class);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle find(String owner, String name, Class<?> returnType) {
+        return find(owner, name, returnType, String.class);
+    }
+
+    private static MethodHandle find(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            Class<?> type = Class.forName(owner);
+            // Both sit in the unnamed module, so a private lookup may see package-private members
+            return MethodHandles.privateLookupIn(type, MethodHandles.lookup())
+                    .findStatic(type, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package bench;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The body copy loops, file to loopback socket as in handleGet and the client's
+ * sendFile, and socket to file as in handleStore, across I/O strategies and
+ * buffer sizes:
+ *
+ *   stream      byte[] through InputStream/OutputStream, the loop handleStore uses
+ *   nio         direct ByteBuffer through FileChannel and SocketChannel
+ *   transferTo  FileChannel.transferTo/transferFrom, which transferFile uses; the
+ *               buffer size is the count per call, as a shaping quantum would be
+ *   mmap        the file mapped once and copied a buffer-sized slice at a time
+ *
+ * The far end of the socket is a thread that only drains or only feeds, so the
+ * score is the copy loop plus the kernel's socket and page cache work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyLoopBenchmark {
+
+    @Param({ "stream", "nio", "transferTo", "mmap" })
+    public String strategy;
+
+    @Param({ "8192", "65536", "262144", "1048576" })
+    public int bufferSize;
+
+    @Param({ "64" })
+    public int fileMegabytes;
+
+    private long fileSize;
+    private Path directory;
+    private Path source;
+    private Path target;
+    private byte[] array;
+    private ByteBuffer direct;
+
+    private ServerSocketChannel listener;
+    private SocketChannel sendSide;
+    private SocketChannel drainSide;
+    private SocketChannel feedSide;
+    private SocketChannel receiveSide;
+    private Thread drainer;
+    private Thread feeder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fileSize = fileMegabytes * 1024L * 1024;
+        directory = Files.createTempDirectory("copy-bench");
+        source = directory.resolve("source");
+        target = directory.resolve("target");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(source)) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block);
+            }
+        }
+        Files.write(target, new byte[0]);
+        array = new byte[bufferSize];
+        direct = ByteBuffer.allocateDirect(bufferSize);
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sendSide = SocketChannel.open(listener.getLocalAddress());
+        drainSide = listener.accept();
+        feedSide = SocketChannel.open(listener.getLocalAddress());
+        receiveSide = listener.accept();
+
+        drainer = daemon("drainer", () -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+            while (drainSide.read(sink) != -1) {
+                sink.clear();
+            }
+        });
+        feeder = daemon("feeder", () -> {
+            ByteBuffer data = ByteBuffer.allocateDirect(1024 * 1024);
+            while (true) {
+                data.clear();
+                while (data.hasRemaining()) {
+                    feedSide.write(data);
+                }
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        for (Closeable closeable : new Closeable[] { sendSide, drainSide, feedSide, receiveSide, listener }) {
+            closeable.close();
+        }
+        drainer.join(1000);
+        feeder.join(1000);
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(directory);
+    }
+
+    /** One whole file from disk to the socket. */
+    @Benchmark
+    public long send() throws IOException {
+        switch (strategy) {
+        case "stream":
+            try (InputStream in = new FileInputStream(source.toFile())) {
+                OutputStream out = sendSide.socket().getOutputStream();
+                long sent = 0;
+                int bytesRead;
+                while ((bytesRead = in.read(array)) != -1) {
+                    out.write(array, 0, bytesRead);
+                    sent += bytesRead;
+                }
+                return sent;
+            }
+        case "nio":
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                long sent = 0;
+                while (channel.read(direct) != -1) {
+                    direct.flip();
+                    while (direct.hasRemaining()) {
+                        sent += sendSide.write(direct);
+                    }
+                    direct.clear();
+                }
+                return sent;
+            }
+        case "transferTo":
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < fileSize) {
+                    position += channel.transferTo(position, Math.min(bufferSize, fileSize - position), sendSide);
+                }
+                return position;
+            }
+        case "mmap":
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                long sent = 0;
+                while (mapped.hasRemaining()) {
+                    mapped.limit(Math.min(mapped.capacity(), mapped.position() + bufferSize));
+                    while (mapped.hasRemaining()) {
+                        sent += sendSide.write(mapped);
+                    }
+                    mapped.limit(mapped.capacity());
+                }
+                return sent;
+            }
+        default:
+            throw new IllegalArgumentException(strategy);
+        }
+    }
+
+    /** One whole file from the socket to disk, overwriting the last one. */
+    @Benchmark
+    public long receive() throws IOException {
+        switch (strategy) {
+        case "stream":
+            try (OutputStream out = new FileOutputStream(target.toFile())) {
+                InputStream in = receiveSide.socket().getInputStream();
+                long received = 0;
+                while (received < fileSize) {
+                    int bytesRead = in.read(array, 0, (int) Math.min(array.length, fileSize - received));
+                    if (bytesRead == -1) {
+                        throw new EOFException();
+                    }
+                    out.write(array, 0, bytesRead);
+                    received += bytesRead;
+                }
+                return received;
+            }
+        case "nio":
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long received = 0;
+                while (received < fileSize) {
+                    direct.limit((int) Math.min(direct.capacity(), fileSize - received));
+                    if (receiveSide.read(direct) == -1) {
+                        throw new EOFException();
+                    }
+                    direct.flip();
+                    while (direct.hasRemaining()) {
+                        received += channel.write(direct);
+                    }
+                    direct.clear();
+                }
+                return received;
+            }
+        case "transferTo":
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (position < fileSize) {
+                    position += channel.transferFrom(receiveSide, position, Math.min(bufferSize, fileSize - position));
+                }
+                return position;
+            }
+        case "mmap":
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                long received = 0;
+                while (mapped.hasRemaining()) {
+                    mapped.limit(Math.min(mapped.capacity(), mapped.position() + bufferSize));
+                    while (mapped.hasRemaining()) {
+                        if (receiveSide.read(mapped) == -1) {
+                            throw new EOFException();
+                        }
+                    }
+                    received = mapped.position();
+                    mapped.limit(mapped.capacity());
+                }
+                return received;
+            }
+        default:
+            throw new IllegalArgumentException(strategy);
+        }
+    }
+
+    private interface Loop {
+        void run() throws IOException;
+    }
+
+    private static Thread daemon(String name, Loop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (IOException e) {
+                // The socket was closed at the end of the trial
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Batched /mstore and /mget, on both engines. */
+class BatchTransferTest {
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void reportsEachRecord(String engine) throws Exception {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("small", body(1, 100));
+        files.put("empty", new byte[0]);
+        // Over the inline limit, so it is streamed to a temp file first
+        files.put("large", body(2, 3 * 1024 * 1024 / 2));
+        files.put(".hidden", body(3, 10));
+        files.put("last", body(4, 1000));
+
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                records.write(BatchTransfer.header(file.getKey(), file.getValue().length));
+                records.write(file.getValue());
+            }
+            connection.send("/mstore " + files.size());
+            connection.write(records.toByteArray());
+            assertEquals("BATCH 4 1", connection.readLine());
+            assertEquals("FAILED invalid-name .hidden", connection.readLine());
+
+            String[] names = {"small", "missing", "large", "empty", ".hidden", "last"};
+            connection.send("/mget " + names.length);
+            for (String name : names) {
+                connection.send(name);
+            }
+            assertEquals("MGET " + names.length, connection.readLine());
+            for (String name : names) {
+                byte[] expected = name.equals(".hidden") ? null : files.get(name);
+                assertEquals(name, readName(connection));
+                long size = ByteBuffer.wrap(connection.read(Long.BYTES)).getLong();
+                if (expected == null) {
+                    assertEquals(-1, size, name);
+                } else {
+                    assertArrayEquals(expected, connection.read((int) size), name);
+                }
+            }
+            // The connection is still usable after the records
+            assertArrayEquals(files.get("last"), connection.get("last"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void refusesAMalformedCount(String engine) throws Exception {
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            assertEquals("Error: Malformed batch header.", connection.command("/mstore -1"));
+            assertNull(connection.readLine(), "the stream cannot be resynchronised, so it is closed");
+        }
+    }
+
+    private static String readName(TestServer.Connection connection) throws IOException {
+        int length = ByteBuffer.wrap(connection.read(2)).getShort() & 0xffff;
+        return new String(connection.read(length), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] body(int seed, int size) {
+        byte[] body = new byte[size];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+}
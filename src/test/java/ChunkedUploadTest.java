@@ -0,0 +1,138 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Resumable chunked uploads over /upload and /chunk, on both engines. */
+class ChunkedUploadTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final String ZERO = "0".repeat(64);
+
+    // Header and reply; none of them may start an upload
+    private static final String[][] BAD_SIZES = {
+        {"/upload -1 4 " + ZERO + " x", "Error: File size is invalid."},
+        {"/upload 10 0 " + ZERO + " x", "Error: File size is invalid."},
+        {"/upload 4294967295 1 " + ZERO + " x", "Error: Too many chunks."},
+        {"/upload 9223372036854775807 1 " + ZERO + " x", "Error: Too many chunks."},
+        {"/upload 9223372036854775807 2147483647 " + ZERO + " x", "Error: Too many chunks."},
+        {"/upload 100 2147483647 " + ZERO + " x", "Error: Chunk size is too large."},
+        {"/upload 100 10 00ff x", "Error: Command parameters do not match or are not allowed."},
+        {"/upload 100 10 x", "Error: Command parameters do not match or are not allowed."},
+    };
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void badSizesAreRefused(String engine) throws Exception {
+        try (TestServer server = TestServer.start(engine)) {
+            try (TestServer.Connection connection = server.connect()) {
+                for (String[] bad : BAD_SIZES) {
+                    assertEquals(bad[1], connection.command(bad[0]), bad[0]);
+                }
+                assertEquals("Error: File not found in the server.", connection.command("/stat x"));
+            }
+            // The event loop that served the refused headers still serves others
+            for (int i = 0; i < 4; i++) {
+                try (TestServer.Connection connection = server.connect()) {
+                    assertEquals("Error: File not found in the server.", connection.command("/stat x"));
+                }
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void resumesAndResendsOnNak(String engine) throws Exception {
+        byte[] body = new byte[2 * CHUNK_SIZE + 500];
+        new Random(4).nextBytes(body);
+        String upload = upload(body, sha256(body));
+        try (TestServer server = TestServer.start(engine)) {
+            try (TestServer.Connection connection = server.connect()) {
+                assertEquals("MISSING 0-2", connection.command(upload));
+                sendChunk(connection, body, 0, false);
+                // Any reply means the chunk before it has been recorded
+                connection.command("/stat f");
+            }
+            try (TestServer.Connection connection = server.connect()) {
+                assertEquals("MISSING 1-2", connection.command(upload));
+                sendChunk(connection, body, 1, true);
+                assertEquals("NAK 1", connection.readLine());
+                // A corrupt resend of a chunk already received must not replace it
+                sendChunk(connection, body, 0, true);
+                assertEquals("Error: Chunk 0 does not match the current upload.", connection.readLine());
+                sendChunk(connection, body, 1, false);
+                sendChunk(connection, body, 2, false);
+                assertTrue(connection.readLine().startsWith("File uploaded successfully: f"));
+                assertArrayEquals(body, connection.get("f"));
+            }
+        }
+    }
+
+    /** Sends chunk index of body; corrupt flips a byte after the checksum was taken. */
+    private static void sendChunk(TestServer.Connection connection, byte[] body, int index, boolean corrupt)
+            throws IOException {
+        int offset = index * CHUNK_SIZE;
+        byte[] chunk = Arrays.copyOfRange(body, offset, Math.min(body.length, offset + CHUNK_SIZE));
+        CRC32C crc = new CRC32C();
+        crc.update(chunk);
+        if (corrupt) {
+            chunk[0] ^= 1;
+        }
+        connection.send("/chunk " + index + " " + offset + " " + chunk.length + " "
+                + Integer.toHexString((int) crc.getValue()));
+        connection.write(chunk);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void differentContentIsADifferentUpload(String engine) throws Exception {
+        byte[] first = new byte[2 * CHUNK_SIZE + 500];
+        byte[] second = first.clone();
+        new Random(5).nextBytes(first);
+        new Random(6).nextBytes(second);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            assertEquals("MISSING 0-2", connection.command(upload(first, sha256(first))));
+            sendChunk(connection, first, 0, false);
+            // Same name and size, other content: nothing of the first upload is reused
+            assertEquals("MISSING 0-2", connection.command(upload(second, sha256(second))));
+            for (int index = 0; index < 3; index++) {
+                sendChunk(connection, second, index, false);
+            }
+            assertTrue(connection.readLine().startsWith("File uploaded successfully: f"));
+            assertArrayEquals(second, connection.get("f"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void assembledFileMustMatchItsDigest(String engine) throws Exception {
+        byte[] body = new byte[2 * CHUNK_SIZE + 500];
+        new Random(7).nextBytes(body);
+        String upload = upload(body, ZERO);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            assertEquals("MISSING 0-2", connection.command(upload));
+            for (int index = 0; index < 3; index++) {
+                sendChunk(connection, body, index, false);
+            }
+            assertEquals("Error: File does not match its digest.", connection.readLine());
+            assertEquals("Error: File not found in the server.", connection.command("/stat f"));
+            // The upload starts over rather than keeping chunks of unknown origin
+            assertEquals("MISSING 0-2", connection.command(upload));
+        }
+    }
+
+    private static String upload(byte[] body, String sha256) {
+        return "/upload " + body.length + " " + CHUNK_SIZE + " " + sha256 + " f";
+    }
+
+    private static String sha256(byte[] body) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+    }
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import org.junit.jupiter.api.Test;
+
+/** Members of a two-server cluster, each started with the other in its --cluster list. */
+class ClusterTest {
+    private static final long SETTLE_MILLIS = 15_000;
+
+    @Test
+    void conflictingWritesSettleOnTheLaterOne() throws Exception {
+        int[] ports = {TestServer.freePort(), TestServer.freePort()};
+        try (TestServer first = startMember(ports, 0, "--replicas=2");
+                TestServer second = startMember(ports, 1, "--replicas=2");
+                TestServer.Connection firstConnection = first.connect();
+                TestServer.Connection secondConnection = second.connect()) {
+            assertTrue(firstConnection.store("f", bytes("earlier")).startsWith("File uploaded successfully"));
+            Thread.sleep(50);
+            assertTrue(secondConnection.store("f", bytes("later")).startsWith("File uploaded successfully"));
+
+            long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+            while (!("later".equals(text(firstConnection, "f")) && "later".equals(text(secondConnection, "f")))) {
+                assertTrue(System.currentTimeMillis() < deadline, "members did not settle on the later write");
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    /** A peer announces the stamp before pushing, and the copy carries it from the moment it lands. */
+    @Test
+    void announcedStampAppliesWhenTheCopyLands() throws Exception {
+        int[] ports = {TestServer.freePort(), TestServer.freePort()};
+        try (TestServer first = startMember(ports, 0, "--replicas=2");
+                TestServer.Connection peer = first.connect()) {
+            assertEquals("PEER", peer.command("/peer"));
+            String sha256 = "0a0b6e3c7d0c6c0e1c1b0f9f2f1c5e1d3c1d5f5b4a7e0e1e6d8c1b0e0f1d2c3b";
+            long written = System.currentTimeMillis() + 3_600_000;
+            assertEquals("STAMPED", peer.command("/stamp " + sha256 + " " + written + " z:1 f"));
+            // Nothing of that content has landed yet, so the copy keeps a stamp of its own
+            assertTrue(peer.store("f", bytes("pushed")).startsWith("File uploaded successfully"));
+            assertFalse(peer.command("/stat f").endsWith(" " + written + " z:1"));
+
+            String pushed = sha256(bytes("pushed"));
+            assertEquals("STAMPED", peer.command("/stamp " + pushed + " " + written + " z:1 g"));
+            assertTrue(peer.store("g", bytes("pushed")).startsWith("File uploaded successfully"));
+            assertEquals("STAT 6 " + pushed + " " + written + " z:1", peer.command("/stat g"));
+
+            // An older write is refused once the member holds a later one
+            assertEquals("Error: File has a later write.", peer.command("/stamp " + sha256 + " 1 a:1 g"));
+        }
+    }
+
+    @Test
+    void redirectsRequestsForAnotherMembersFile() throws Exception {
+        int[] ports = {TestServer.freePort(), TestServer.freePort()};
+        // One owner per name, so half the names belong to the other member
+        try (TestServer first = startMember(ports, 0, "--replicas=1");
+                TestServer second = startMember(ports, 1, "--replicas=1");
+                TestServer.Connection firstConnection = first.connect();
+                TestServer.Connection secondConnection = second.connect()) {
+            String moved = "MOVED " + second.address();
+            String name = null;
+            for (int i = 0; name == null; i++) {
+                assertTrue(i < 64, "no name placed on the second member");
+                if (firstConnection.command("/stat f" + i).equals(moved)) {
+                    name = "f" + i;
+                }
+            }
+            assertEquals(moved, firstConnection.command("/store " + name));
+            assertEquals(moved, firstConnection.command("/get " + name));
+            assertEquals(moved, firstConnection.command("/have " + sha256(bytes("x")) + " 1 " + name));
+
+            assertTrue(secondConnection.store(name, bytes("owned")).startsWith("File uploaded successfully"));
+            assertEquals("owned", text(secondConnection, name));
+            assertEquals(moved, firstConnection.command("/get " + name));
+            // A peer is always served locally, never redirected
+            assertEquals("PEER", firstConnection.command("/peer"));
+            assertEquals("Error: File not found in the server.", firstConnection.command("/stat " + name));
+        }
+    }
+
+    @Test
+    void forwardsRequestsForAnotherMembersFile() throws Exception {
+        int[] ports = {TestServer.freePort(), TestServer.freePort()};
+        try (TestServer first = startMember(ports, 0, "--replicas=1", "--cluster-route=forward");
+                TestServer second = startMember(ports, 1, "--replicas=1", "--cluster-route=forward");
+                TestServer.Connection connection = first.connect()) {
+            // A forwarded /store has reached the owner by the time it is acknowledged
+            String name = null;
+            for (int i = 0; name == null; i++) {
+                assertTrue(i < 64, "no name placed on the second member");
+                assertTrue(connection.store("f" + i, bytes("body " + i)).startsWith("File uploaded successfully"));
+                if (Files.isRegularFile(second.storage().resolve("f" + i))) {
+                    assertFalse(Files.exists(first.storage().resolve("f" + i)));
+                    name = "f" + i;
+                }
+            }
+            String body = "body " + name.substring(1);
+            assertEquals(body, text(connection, name));
+            assertEquals("STAT " + body.length() + " " + sha256(bytes(body)), connection.command("/stat " + name));
+            // The dedup /have asks for happens on the owner, so it is never forwarded
+            assertEquals("MOVED " + second.address(),
+                    connection.command("/have " + sha256(bytes(body)) + " " + body.length() + " " + name));
+        }
+    }
+
+    private static TestServer startMember(int[] ports, int index, String... options)
+            throws IOException, InterruptedException {
+        String[] arguments = new String[options.length + 1];
+        arguments[0] = "--cluster=" + TestServer.HOST + ":" + ports[0] + "," + TestServer.HOST + ":" + ports[1];
+        System.arraycopy(options, 0, arguments, 1, options.length);
+        return TestServer.start(ports[index], "pool", arguments);
+    }
+
+    private static String text(TestServer.Connection connection, String name) throws IOException {
+        try {
+            return new String(connection.get(name), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String sha256(byte[] body) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+    }
+}
@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/** Compressed /store and /get, with and without compression at rest, on both engines. */
+class CompressionTest {
+    @ParameterizedTest
+    @CsvSource({"pool, none", "pool, deflate", "nio, none", "nio, deflate"})
+    void roundTrips(String engine, String atRest) throws Exception {
+        byte[] body = "a line of text that compresses well\n".repeat(20_000).getBytes(StandardCharsets.UTF_8);
+        String[] options = atRest.equals("none") ? new String[0] : new String[] {"--store-compressed=" + atRest};
+        try (TestServer server = TestServer.start(engine, options);
+                TestServer.Connection connection = server.connect()) {
+            assertTrue(storeCompressed(connection, "sent", body).startsWith("File uploaded successfully: sent"));
+            assertArrayEquals(body, connection.get("sent"));
+            assertArrayEquals(body, getCompressed(connection, "sent"));
+
+            assertTrue(connection.store("plain", body).startsWith("File uploaded successfully: plain"));
+            assertArrayEquals(body, getCompressed(connection, "plain"));
+            assertArrayEquals(body, connection.get("plain"));
+            assertTrue(connection.command("/stat plain").startsWith("STAT " + body.length + " "));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"pool", "nio"})
+    void refusesABodyThatDoesNotInflateToItsSize(String engine) throws Exception {
+        byte[] body = "short\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            byte[] compressed = Compression.compress(body, 0, body.length, Compression.DEFLATE);
+            assertEquals("Ready to receive file: f", connection.command("/store codec=deflate f"));
+            connection.write(ByteBuffer.allocate(2 * Long.BYTES).putLong(body.length + 1).putLong(compressed.length)
+                    .array());
+            connection.write(compressed);
+            assertEquals("Error: Failed to store file f", connection.readLine());
+            assertEquals("Error: File not found in the server.", connection.command("/stat f"));
+        }
+    }
+
+    /** "/store codec=deflate": the file size, the compressed size, then the compressed bytes. */
+    private static String storeCompressed(TestServer.Connection connection, String name, byte[] body)
+            throws IOException {
+        byte[] compressed = Compression.compress(body, 0, body.length, Compression.DEFLATE);
+        assertTrue(compressed.length < body.length / 10);
+        assertEquals("Ready to receive file: " + name, connection.command("/store codec=deflate " + name));
+        connection.write(ByteBuffer.allocate(2 * Long.BYTES).putLong(body.length).putLong(compressed.length).array());
+        connection.write(compressed);
+        return connection.readLine();
+    }
+
+    /** "/get codec=deflate" replies "OK <length> <codec> <compressed length>" before the compressed bytes. */
+    private static byte[] getCompressed(TestServer.Connection connection, String name) throws IOException {
+        String[] reply = connection.command("/get codec=deflate " + name).split(" ");
+        assertEquals("OK", reply[0]);
+        assertEquals("deflate", reply[2]);
+        byte[] compressed = connection.read(Integer.parseInt(reply[3]));
+        connection.readLine();
+        try (InputStream in = Compression.decompress(new ByteArrayInputStream(compressed))) {
+            byte[] body = in.readAllBytes();
+            assertEquals(Long.parseLong(reply[1]), body.length);
+            return body;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Delta uploads over /delta, on both engines. */
+class DeltaUploadTest {
+    @TempDir
+    Path scratch;
+
+    /** An edited file is assembled from the chunks the server already holds plus the few that changed. */
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void assemblesFromStoredChunks(String engine) throws Exception {
+        byte[] original = new byte[4 * 1024 * 1024];
+        new Random(11).nextBytes(original);
+        byte[] edited = new byte[original.length + 1000];
+        // 1000 new bytes inserted in the middle
+        new Random(12).nextBytes(edited);
+        int middle = original.length / 2;
+        System.arraycopy(original, 0, edited, 0, middle);
+        System.arraycopy(original, middle, edited, middle + 1000, original.length - middle);
+        Path first = scratch.resolve("original");
+        Path second = scratch.resolve("edited");
+        Files.write(first, original);
+        Files.write(second, edited);
+
+        try (TestServer server = TestServer.start(engine);
+                ExchangeClient client = new ExchangeClient(TestServer.HOST, server.port, 1)) {
+            client.setDeltaUploads(true);
+            client.upload(first, "f", ExchangeClient.Progress.NONE).get();
+            // The first progress report counts the bytes the server already held
+            AtomicLong reused = new AtomicLong(-1);
+            client.upload(second, "f", (transferred, total) -> reused.compareAndSet(-1, transferred)).get();
+            assertTrue(reused.get() > edited.length * 3L / 4, "reused " + reused.get() + " of " + edited.length);
+
+            try (TestServer.Connection connection = server.connect()) {
+                assertArrayEquals(edited, connection.get("f"));
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void refusesAChunkThatDoesNotMatchItsDigest(String engine) throws Exception {
+        byte[] body = "a chunk of a file".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer manifest = ByteBuffer.allocate(DeltaUpload.RECORD_SIZE);
+        manifest.put(MessageDigest.getInstance("SHA-256").digest(body)).putInt(body.length);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            connection.send("/delta " + body.length + " 1 f");
+            connection.write(manifest.array());
+            assertEquals("NEED 0", connection.readLine());
+            body[0] ^= 1;
+            connection.write(body);
+            assertEquals("Error: Chunk 0 failed verification.", connection.readLine());
+            assertEquals("Error: File not found in the server.", connection.command("/stat f"));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/** The threaded and NIO engines give a client the same replies. */
+class EngineParityTest {
+    private static final String[] COMMANDS = {
+        "/nonsense",
+        "/get missing",
+        "/stat missing",
+        "/store",
+        "/get bytes=9-1 missing",
+    };
+
+    // Header and reply; each one loses the stream, so the connection closes after the reply
+    private static final String[][] MALFORMED = {
+        {"/chunk garbage", "Error: Malformed chunk header."},
+        {"/delta 100 many x", "Error: Malformed delta header."},
+        {"/delta 100 1000 x", "Error: Malformed delta header."},
+        {"/mstore many", "Error: Malformed batch header."},
+        {"/mget -1", "Error: Malformed batch header."},
+    };
+
+    @Test
+    void repliesMatch() throws Exception {
+        assertEquals(replies("pool"), replies("nio"));
+    }
+
+    @Test
+    void malformedHeadersReplyThenClose() throws Exception {
+        for (String engine : new String[] {"pool", "nio"}) {
+            try (TestServer server = TestServer.start(engine)) {
+                for (String[] malformed : MALFORMED) {
+                    try (TestServer.Connection connection = server.connect()) {
+                        assertEquals(malformed[1], connection.command(malformed[0]), engine + ": " + malformed[0]);
+                        assertNull(connection.readLine(), engine + ": " + malformed[0]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<String> replies(String engine) throws IOException, InterruptedException {
+        List<String> replies = new ArrayList<>();
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            for (String command : COMMANDS) {
+                replies.add(connection.command(command));
+            }
+        }
+        return replies;
+    }
+}
@@ -0,0 +1,171 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ExchangeClientTest {
+    @TempDir
+    Path scratch;
+
+    /**
+     * The first connection, which /stat leaves in the pool, is cut part-way into
+     * its first range. The stream retries on a fresh connection and must fetch
+     * the range it had claimed rather than move on to the next one.
+     */
+    @Test
+    void parallelDownloadSurvivesDroppedPooledConnection() throws Exception {
+        byte[] body = new byte[(int) (2.5 * ExchangeClient.RANGE_SIZE)];
+        new Random(7).nextBytes(body);
+        Path file = scratch.resolve("body");
+        Files.write(file, body);
+
+        try (TestServer server = TestServer.start("pool");
+                CuttingProxy proxy = new CuttingProxy(server.port, 1024 * 1024)) {
+            try (ExchangeClient direct = new ExchangeClient(TestServer.HOST, server.port, 1)) {
+                direct.upload(file, "body", ExchangeClient.Progress.NONE).get();
+            }
+            try (ExchangeClient client = new ExchangeClient(TestServer.HOST, proxy.port(), 2)) {
+                client.setDownloadStreams(2);
+                Path target = scratch.resolve("download");
+                assertEquals(body.length, client.download("body", target, ExchangeClient.Progress.NONE).get());
+                assertArrayEquals(body, Files.readAllBytes(target));
+            }
+            assertTrue(proxy.connections() > 2, "the cut connection was replaced");
+        }
+    }
+
+    /**
+     * An error reply to the first of a run of pipelined chunks leaves the replies
+     * to the others unread, so that connection must not go back to the pool.
+     */
+    @Test
+    void pipelinedErrorDoesNotPoolTheConnection() throws Exception {
+        Path file = scratch.resolve("body");
+        Files.write(file, new byte[100]);
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getByName(TestServer.HOST))) {
+            AtomicInteger accepted = new AtomicInteger();
+            Thread server = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = listener.accept();
+                        serveScripted(socket, accepted.getAndIncrement() == 0);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            server.setDaemon(true);
+            server.start();
+
+            try (ExchangeClient client = new ExchangeClient(TestServer.HOST, listener.getLocalPort(), 1)) {
+                client.setCodecs("none");
+                ExecutionException upload = assertThrows(ExecutionException.class,
+                        () -> client.upload(file, "body", ExchangeClient.Progress.NONE).get());
+                assertEquals("Error: Chunk 0 does not match the current upload.", upload.getCause().getMessage());
+                ExecutionException stat = assertThrows(ExecutionException.class, () -> client.stat("body").get());
+                assertEquals("Error: File not found in the server.", stat.getCause().getMessage());
+            }
+            assertEquals(2, accepted.get());
+        }
+    }
+
+    /**
+     * Plays a server that fails the first chunk of an upload and has a reply to
+     * a later command already queued behind the error; later connections answer
+     * any command with "not found".
+     */
+    private static void serveScripted(Socket socket, boolean first) {
+        Thread thread = new Thread(() -> {
+            try (socket) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(),
+                        StandardCharsets.UTF_8), true);
+                out.println("Connection to the File Exchange Server is successful!");
+                String line;
+                while ((line = FileExchangeServer.readLine(in)) != null) {
+                    if (!first) {
+                        out.println("Error: File not found in the server.");
+                    } else if (line.startsWith("/have")) {
+                        out.println("SEND");
+                    } else if (line.startsWith("/upload")) {
+                        out.println("MISSING 0");
+                    } else if (line.startsWith("/chunk")) {
+                        in.skipNBytes(Integer.parseInt(line.split(" ")[3]));
+                        out.println("Error: Chunk 0 does not match the current upload.");
+                        out.println("Error: Stale reply.");
+                    }
+                }
+            } catch (IOException e) {
+                // The client closed the connection
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Relays loopback connections to a server, and cuts the first once it has relayed cutAfter bytes back. */
+    private static class CuttingProxy implements Closeable {
+        private final ServerSocket listener;
+        private final AtomicInteger accepted = new AtomicInteger();
+
+        CuttingProxy(int target, long cutAfter) throws IOException {
+            listener = new ServerSocket(0, 50, InetAddress.getByName(TestServer.HOST));
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket client = listener.accept();
+                        Socket server = new Socket(TestServer.HOST, target);
+                        long limit = accepted.getAndIncrement() == 0 ? cutAfter : Long.MAX_VALUE;
+                        pump(client, server, Long.MAX_VALUE);
+                        pump(server, client, limit);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return listener.getLocalPort();
+        }
+
+        int connections() {
+            return accepted.get();
+        }
+
+        private static void pump(Socket from, Socket to, long limit) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                long relayed = 0;
+                try (from; to) {
+                    int read;
+                    while (relayed < limit && (read = from.getInputStream().read(buffer)) != -1) {
+                        to.getOutputStream().write(buffer, 0, read);
+                        relayed += read;
+                    }
+                } catch (IOException e) {
+                    // The other direction closed the sockets
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+        }
+    }
+}
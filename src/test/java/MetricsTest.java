@@ -0,0 +1,28 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+    @Test
+    void commandsMatchWholeWords() {
+        assertEquals(Metrics.Command.STAT, Metrics.command("/stat f"));
+        assertEquals(Metrics.Command.STAMP, Metrics.command("/stamp 00 1 a:1 f"));
+        assertEquals(Metrics.Command.STORE, Metrics.command("/store f"));
+        assertEquals(Metrics.Command.OTHER, Metrics.command("/storage"));
+    }
+
+    @Test
+    void beanHasNoOperations() throws Exception {
+        Metrics.start(0);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("FileExchangeServer:type=Metrics");
+        assertEquals(0, server.getMBeanInfo(name).getOperations().length);
+        ReflectionException thrown = assertThrows(ReflectionException.class,
+                () -> server.invoke(name, "reset", new Object[0], new String[0]));
+        assertInstanceOf(NoSuchMethodException.class, thrown.getCause());
+    }
+}
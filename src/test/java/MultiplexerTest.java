@@ -0,0 +1,135 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Framed mode after /frames, on both engines. */
+class MultiplexerTest {
+    private static final int SIZE = 1024 * 1024;
+
+    /** A frame as read off the connection. */
+    private record Frame(int type, int flags, int id, byte[] payload) {
+        boolean fin() {
+            return (flags & Multiplexer.FIN) != 0;
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void stalledStreamWaitsForCreditWithoutBlockingOthers(String engine) throws Exception {
+        byte[] body = body(SIZE);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            connection.store("big", body);
+            assertEquals("FRAMES 1", connection.command("/frames"));
+
+            sendCommand(connection, 1, "/get big");
+            ByteArrayOutputStream download = new ByteArrayOutputStream();
+            while (download.size() < Multiplexer.WINDOW_SIZE) {
+                Frame frame = readFrame(connection);
+                assertEquals(Multiplexer.DATA, frame.type());
+                download.write(frame.payload());
+            }
+            assertEquals(Multiplexer.WINDOW_SIZE, download.size(), "a stream never sends past its window");
+
+            // Stream 1 is out of credit, so everything until stream 3 ends is stream 3's
+            sendCommand(connection, 3, "/stat big");
+            String stat = text(readStream(connection, 3));
+            assertTrue(stat.startsWith("STAT " + SIZE + " "), stat);
+
+            sendWindow(connection, 1, SIZE);
+            download.write(readStream(connection, 1));
+            byte[] reply = download.toByteArray();
+            byte[] header = ("OK " + SIZE + "\n").getBytes(StandardCharsets.UTF_8);
+            assertArrayEquals(header, Arrays.copyOf(reply, header.length));
+            assertArrayEquals(body, Arrays.copyOfRange(reply, header.length, header.length + SIZE));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void resetEndsOneStreamOnly(String engine) throws Exception {
+        byte[] body = body(SIZE);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            connection.store("big", body);
+            assertEquals("FRAMES 1", connection.command("/frames"));
+
+            // The client resets a download that is waiting for credit
+            sendCommand(connection, 1, "/get big");
+            int received = 0;
+            while (received < Multiplexer.WINDOW_SIZE) {
+                received += readFrame(connection).payload().length;
+            }
+            writeFrame(connection, Multiplexer.RESET, 0, 1, new byte[0]);
+            sendWindow(connection, 1, SIZE);
+
+            // A stream whose handler fails is reset by the server with the reason
+            sendCommand(connection, 3, "/mstore -1");
+            Frame frame;
+            do {
+                frame = readFrame(connection);
+                assertNotEquals(1, frame.id(), "a reset stream sends nothing more");
+            } while (frame.type() != Multiplexer.RESET);
+            assertEquals(3, frame.id());
+            assertEquals("Malformed batch header: /mstore -1", text(frame.payload()));
+
+            sendCommand(connection, 5, "/stat big");
+            assertTrue(text(readStream(connection, 5)).startsWith("STAT " + SIZE + " "));
+        }
+    }
+
+    /** Opens stream id with one command and ends its input. */
+    private static void sendCommand(TestServer.Connection connection, int id, String command) throws IOException {
+        writeFrame(connection, Multiplexer.DATA, Multiplexer.FIN, id, (command + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendWindow(TestServer.Connection connection, int id, int increment) throws IOException {
+        writeFrame(connection, Multiplexer.WINDOW, 0, id, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static void writeFrame(TestServer.Connection connection, int type, int flags, int id, byte[] payload)
+            throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(Multiplexer.HEADER_SIZE + payload.length);
+        frame.put((byte) type).put((byte) flags).putInt(id).putInt(payload.length).put(payload);
+        connection.write(frame.array());
+    }
+
+    private static Frame readFrame(TestServer.Connection connection) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(connection.read(Multiplexer.HEADER_SIZE));
+        int type = header.get();
+        int flags = header.get();
+        int id = header.getInt();
+        return new Frame(type, flags, id, connection.read(header.getInt()));
+    }
+
+    /** Reads DATA frames of stream id until its FIN; any other stream's frame fails the test. */
+    private static byte[] readStream(TestServer.Connection connection, int id) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (true) {
+            Frame frame = readFrame(connection);
+            assertEquals(id, frame.id());
+            assertEquals(Multiplexer.DATA, frame.type());
+            data.write(frame.payload());
+            if (frame.fin()) {
+                return data.toByteArray();
+            }
+        }
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] body(int size) {
+        byte[] body = new byte[size];
+        new Random(13).nextBytes(body);
+        return body;
+    }
+}
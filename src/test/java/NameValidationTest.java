@@ -0,0 +1,34 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Names that point into the server's bookkeeping under STORAGE_DIR are refused by both engines. */
+class NameValidationTest {
+    private static final String REFUSED = "Error: File name is not allowed.";
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void refusesBookkeepingNames(String engine) throws Exception {
+        byte[] body = "kept".getBytes(StandardCharsets.UTF_8);
+        try (TestServer server = TestServer.start(engine);
+                TestServer.Connection connection = server.connect()) {
+            // Stored first, so .index and .blobs exist
+            assertTrue(connection.store("kept", body).startsWith("File uploaded successfully"));
+            byte[] index = Files.readAllBytes(server.storage().resolve(".index"));
+
+            assertEquals(REFUSED, connection.store(".index", body));
+            assertEquals(REFUSED, connection.store(".blobs/x", body));
+            assertEquals(REFUSED, connection.command("/get .index"));
+            assertEquals(REFUSED, connection.command("/stat .index"));
+            assertEquals(REFUSED, connection.command("/have " + "0".repeat(64) + " 4 .index"));
+            assertEquals(REFUSED, connection.command("/upload 4 4 " + "0".repeat(64) + " .uploads/x"));
+
+            assertArrayEquals(index, Files.readAllBytes(server.storage().resolve(".index")));
+            assertFalse(Files.exists(server.storage().resolve(".blobs").resolve("x")));
+            assertArrayEquals(body, connection.get("kept"));
+        }
+    }
+}
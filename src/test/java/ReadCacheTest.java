@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** The read cache behind /get, watched through /cache, on both engines. */
+class ReadCacheTest {
+    private static final int SIZE = 100 * 1024;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void servesHitsAndStaysWithinCapacity(String engine) throws Exception {
+        // 1 MB of mappings, at most 128 KB each
+        try (TestServer server = TestServer.start(engine, "--cache-size=1");
+                TestServer.Connection connection = server.connect()) {
+            byte[] first = body(1, SIZE);
+            connection.store("a", first);
+            assertArrayEquals(first, connection.get("a"));
+            assertArrayEquals(first, connection.get("a"));
+            Map<String, Long> stats = stats(connection);
+            assertEquals(1, stats.get("misses"));
+            assertEquals(1, stats.get("hits"));
+
+            // Overwriting the name makes /get look up the new blob, never the old mapping
+            byte[] second = body(2, SIZE);
+            connection.store("a", second);
+            assertArrayEquals(second, connection.get("a"));
+
+            long entries = stats(connection).get("entries");
+            byte[] large = body(3, 200 * 1024);
+            connection.store("large", large);
+            assertArrayEquals(large, connection.get("large"));
+            assertEquals(entries, stats(connection).get("entries"), "a file over the entry limit is not cached");
+
+            for (int i = 0; i < 16; i++) {
+                byte[] other = body(10 + i, SIZE);
+                connection.store("f" + i, other);
+                assertArrayEquals(other, connection.get("f" + i));
+            }
+            stats = stats(connection);
+            assertTrue(stats.get("evictions") > 0);
+            assertTrue(stats.get("bytes") <= 1024 * 1024);
+        }
+    }
+
+    private static Map<String, Long> stats(TestServer.Connection connection) throws IOException {
+        String reply = connection.command("/cache");
+        assertTrue(reply.startsWith("CACHE "), reply);
+        Map<String, Long> stats = new HashMap<>();
+        for (String field : reply.substring(6).split(" ")) {
+            int equals = field.indexOf('=');
+            stats.put(field.substring(0, equals), Long.parseLong(field.substring(equals + 1)));
+        }
+        return stats;
+    }
+
+    private static byte[] body(int seed, int size) {
+        byte[] body = new byte[size];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+}
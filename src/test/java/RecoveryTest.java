@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Restarting on the storage a killed server left behind. */
+class RecoveryTest {
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void replaysTheIndexLogAndRemovesOrphans(String engine) throws Exception {
+        try (TestServer server = TestServer.start(engine, "--fsync=on-close")) {
+            try (TestServer.Connection connection = server.connect()) {
+                connection.store("a", bytes("first"));
+                connection.store("a", bytes("second"));
+                connection.store("b", bytes("removed by hand"));
+                connection.store("c", bytes("kept"));
+            }
+
+            server.crash();
+            Path storage = server.storage();
+            Path index = storage.resolve(".index");
+            // What a crash mid-upload and mid-append leaves, and a name deleted while down
+            Files.writeString(index, "0123456789abcdef torn", StandardOpenOption.APPEND);
+            Path temp = Files.writeString(storage.resolve(".blobs/tmp/upload-1.tmp"), "partial");
+            String unlinked = sha256(bytes("never linked"));
+            Path blob = storage.resolve(".blobs").resolve(unlinked.substring(0, 2)).resolve(unlinked);
+            Files.createDirectories(blob.getParent());
+            Files.writeString(blob, "never linked");
+            Files.delete(storage.resolve("b"));
+            server.restart();
+
+            try (TestServer.Connection connection = server.connect()) {
+                assertEquals("second", new String(connection.get("a"), StandardCharsets.UTF_8));
+                assertEquals("kept", new String(connection.get("c"), StandardCharsets.UTF_8));
+                assertEquals("Error: File not found in the server.", connection.command("/stat b"));
+            }
+            // The temp file, the unlinked blob, and b's blob once nothing links to it
+            assertTrue(Files.readString(server.directory.resolve("server.log"))
+                    .contains("Recovery removed 3 orphaned files."));
+            assertFalse(Files.exists(temp));
+            assertFalse(Files.exists(blob));
+            // Rewritten with one record per surviving name
+            List<String> records = Files.readAllLines(index, StandardCharsets.UTF_8);
+            assertEquals(2, records.size(), records.toString());
+            assertTrue(records.contains(sha256(bytes("second")) + " a"));
+            assertTrue(records.contains(sha256(bytes("kept")) + " c"));
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String sha256(byte[] body) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body));
+    }
+}
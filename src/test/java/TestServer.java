@@ -0,0 +1,200 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A server process of its own, started in a scratch directory on a free
+ * loopback port, for tests that talk the wire protocol. Connection speaks the
+ * raw protocol so tests can send what no client would.
+ */
+class TestServer implements AutoCloseable {
+    static final String HOST = "127.0.0.1";
+
+    final int port;
+    final Path directory;
+    private final List<String> command;
+    private Process process;
+
+    private TestServer(int port, Path directory, List<String> command) {
+        this.port = port;
+        this.directory = directory;
+        this.command = command;
+    }
+
+    static TestServer start(String engine, String... options) throws IOException, InterruptedException {
+        return start(freePort(), engine, options);
+    }
+
+    /** Starts a server on a given port, e.g. one already listed to the other members of a cluster. */
+    static TestServer start(int port, String engine, String... options) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("exchange-test");
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classes().toString(),
+                "FileExchangeServer", HOST, String.valueOf(port), "--engine=" + engine));
+        command.addAll(List.of(options));
+        TestServer server = new TestServer(port, directory, command);
+        try {
+            server.launch();
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    /** Kills the process without letting it shut down, as a crash would. */
+    void crash() throws InterruptedException {
+        process.destroyForcibly();
+        process.waitFor();
+    }
+
+    /** Starts the server again on the same port and directory. */
+    void restart() throws IOException, InterruptedException {
+        launch();
+    }
+
+    private void launch() throws IOException, InterruptedException {
+        process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve("server.log").toFile()))
+                .start();
+        awaitPort();
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(HOST))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /** "host:port" the server listens on. */
+    String address() {
+        return HOST + ":" + port;
+    }
+
+    /** The server's storage directory. */
+    Path storage() {
+        return directory.resolve(FileExchangeServer.STORAGE_DIR);
+    }
+
+    Connection connect() throws IOException {
+        return new Connection(new Socket(HOST, port));
+    }
+
+    private static Path classes() throws IOException {
+        try {
+            return Paths.get(FileExchangeServer.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void awaitPort() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(HOST, port), 1000);
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server on port " + port + " did not start", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        if (process != null) {
+            process.destroy();
+            process.waitFor();
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /** One raw connection; the greeting has been read by the time it is returned. */
+    static class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(30_000);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            readLine();
+        }
+
+        /** Sends a command line and returns the first line of the reply. */
+        String command(String line) throws IOException {
+            send(line);
+            return readLine();
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+            out.flush();
+        }
+
+        /** Reads exactly count bytes of a body. */
+        byte[] read(int count) throws IOException {
+            byte[] body = in.readNBytes(count);
+            if (body.length < count) {
+                throw new EOFException("Connection closed after " + body.length + " of " + count + " bytes");
+            }
+            return body;
+        }
+
+        /** A reply line, or null if the server closed the connection. */
+        String readLine() throws IOException {
+            return FileExchangeServer.readLine(in);
+        }
+
+        /** Stores body under name with a plain /store, and returns the final reply line. */
+        String store(String name, byte[] body) throws IOException {
+            String ready = command("/store " + name);
+            if (!ready.startsWith("Ready to receive file")) {
+                return ready;
+            }
+            out.writeLong(body.length);
+            write(body);
+            return readLine();
+        }
+
+        /** Fetches name with /get; returns the body, or throws with the error line. */
+        byte[] get(String name) throws IOException {
+            String reply = command("/get " + name);
+            if (!reply.startsWith("OK ")) {
+                throw new IOException(reply);
+            }
+            byte[] body = in.readNBytes(Integer.parseInt(reply.substring(3)));
+            readLine();
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Transfers over --tls-keystore, on both engines, with a keystore generated by keytool. */
+class TlsTest {
+    private static final String PASSWORD = "changeit";
+
+    @TempDir
+    static Path scratch;
+    private static Path keystore;
+
+    @BeforeAll
+    static void generateKeystore() throws IOException, InterruptedException {
+        keystore = scratch.resolve("server.p12");
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "server",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-ext", "SAN=ip:" + TestServer.HOST + ",dns:localhost", "-validity", "1",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        assertEquals(0, process.waitFor(), "keytool failed");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void roundTripsOverTls(String engine) throws Exception {
+        byte[] body = new byte[3 * 1024 * 1024 + 17];
+        new Random(21).nextBytes(body);
+        Path source = scratch.resolve(engine + ".source");
+        Path target = scratch.resolve(engine + ".target");
+        Files.write(source, body);
+
+        try (TestServer server = TestServer.start(engine, "--tls-keystore=" + keystore,
+                        "--tls-password=" + PASSWORD);
+                ExchangeClient client = new ExchangeClient(TestServer.HOST, server.port, 2)) {
+            client.setTls(TlsChannel.clientContext(keystore, PASSWORD.toCharArray()));
+            client.upload(source, "f", ExchangeClient.Progress.NONE).get();
+            ExchangeClient.Stat stat = client.stat("f").get();
+            assertEquals(body.length, stat.size);
+            assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(body)), stat.sha256);
+            assertEquals(body.length, client.download("f", target, ExchangeClient.Progress.NONE).get());
+            assertArrayEquals(body, Files.readAllBytes(target));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"pool", "nio"})
+    void refusesAClientThatDoesNotTrustTheServer(String engine) throws Exception {
+        try (TestServer server = TestServer.start(engine, "--tls-keystore=" + keystore,
+                        "--tls-password=" + PASSWORD);
+                ExchangeClient client = new ExchangeClient(TestServer.HOST, server.port, 1)) {
+            // The default trust store does not hold the self-signed certificate
+            client.setTls(TlsChannel.clientContext(null, null));
+            assertThrows(ExecutionException.class, () -> client.stat("f").get());
+        }
+    }
+}
@@ -0,0 +1,24 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class TransferSchedulerTest {
+    @Test
+    void refundsDoNotFillPastCapacity() {
+        TransferScheduler.Bucket bucket = new TransferScheduler.Bucket(100.0 * TransferScheduler.QUANTUM);
+        bucket.tokens -= TransferScheduler.QUANTUM;
+        bucket.refund(TransferScheduler.QUANTUM);
+        bucket.refund(TransferScheduler.QUANTUM);
+        assertEquals(bucket.capacity, bucket.tokens);
+    }
+
+    @Test
+    void admissionIsUnlimitedByDefault() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(TransferScheduler.admit(TransferScheduler.Lane.DISK, () -> fail("queued")));
+        }
+        for (int i = 0; i < 1000; i++) {
+            TransferScheduler.release(TransferScheduler.Lane.DISK);
+        }
+    }
+}